@@ -0,0 +1,108 @@
+package benchmarks;
+
+import core.CommandHandler;
+import core.RedisServer;
+import db.InMemoryDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ByteString;
+import utils.ClientState;
+import utils.ParsedCommand;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A command from the bytes a client sent to its encoded reply: parsing, lookup in the command table,
+ * the checks {@link CommandHandler} runs, execution under the command lock and encoding, on a client
+ * that is not attached to a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dslf4j.provider=org.slf4j.simple.SimpleServiceProvider",
+        "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class CommandHandlerBenchmark {
+
+    private static final int KEYS = 100_000;
+
+    @Param({"GET", "SET", "INCR", "MULTI_EXEC"})
+    private String command;
+
+    private ClientState client;
+    private ByteBuffer[] inputs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fixtures.initServer();
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        database.clear();
+        byte[] value = Fixtures.ascii("1");
+        for (int i = 0; i < KEYS; i++) {
+            database.addStringData(ByteString.of("key:" + i), value);
+        }
+        client = new ClientState(RedisServer.getBufferPool(), new LinkedList<>());
+        inputs = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            inputs[i] = encode(Fixtures.ascii("key:" + i));
+        }
+    }
+
+    private ByteBuffer encode(byte[] key) {
+        byte[] bytes = switch (command) {
+            case "GET" -> Fixtures.command(Fixtures.ascii("GET"), key);
+            case "SET" -> Fixtures.command(Fixtures.ascii("SET"), key, Fixtures.value(16));
+            case "INCR" -> Fixtures.command(Fixtures.ascii("INCR"), key);
+            case "MULTI_EXEC" -> concat(Fixtures.command(Fixtures.ascii("MULTI")),
+                    Fixtures.command(Fixtures.ascii("INCR"), key),
+                    Fixtures.command(Fixtures.ascii("GET"), key),
+                    Fixtures.command(Fixtures.ascii("EXEC")));
+            default -> throw new IllegalArgumentException("Unknown command " + command);
+        };
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            joined.put(part);
+        }
+        return joined.array();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.releaseBuffers();
+    }
+
+    @Benchmark
+    public long handle() {
+        next = next + 1 == KEYS ? 0 : next + 1;
+        ByteBuffer input = inputs[next].rewind();
+        List<ParsedCommand> commands = client.parser().parse(input);
+        CommandHandler.handleCommands(commands, client);
+        long size = client.outputBuffer().size();
+        client.outputBuffer().clear();
+        return size;
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import core.RedisServer;
+import core.RedisServer.ServerConfig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Server state the command paths expect, set up without binding a port or starting the event loop.
+ */
+final class Fixtures {
+    private static final int BUFFER_SIZE = 1024;
+    private static RedisServer server;
+
+    private Fixtures() {
+    }
+
+    static synchronized void initServer() {
+        if (server != null) {
+            return;
+        }
+        Map<String, String> properties = new HashMap<>();
+        properties.put("client-query-buffer-limit", String.valueOf(1024L * 1024 * 1024));
+        properties.put("hz", "10");
+        properties.put("active-expire-effort", "1");
+        properties.put("dir", System.getProperty("java.io.tmpdir"));
+        properties.put("dbfilename", "benchmark.rdb");
+        properties.put("appendonly", "no");
+        try {
+            server = new RedisServer(new ServerConfig(6379, BUFFER_SIZE, 5000, properties));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@code args} encoded as a RESP array of bulk strings, the way clients send commands.
+     */
+    static byte[] command(byte[]... args) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("*" + args.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (byte[] arg : args) {
+            out.writeBytes(("$" + arg.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.writeBytes(arg);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static byte[] value(int size) {
+        byte[] value = new byte[size];
+        for (int i = 0; i < size; i++) {
+            value[i] = (byte) ('a' + i % 26);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,88 @@
+package benchmarks;
+
+import db.InMemoryDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ByteString;
+import utils.Clock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keyspace operations against a database of {@code keys} string keys, walking the keys in a fixed
+ * pseudo-random order so lookups miss the CPU caches the way a real workload does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dslf4j.provider=org.slf4j.simple.SimpleServiceProvider",
+        "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class InMemoryDatabaseBenchmark {
+
+    @Param({"1000000"})
+    private int keys;
+
+    private InMemoryDatabase database;
+    private ByteString[] keyNames;
+    private ByteString[] missingKeys;
+    private byte[] value;
+    private int next;
+
+    @Setup
+    public void setup() {
+        database = InMemoryDatabase.getInstance();
+        database.clear();
+        value = Fixtures.value(16);
+        keyNames = new ByteString[keys];
+        missingKeys = new ByteString[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = ByteString.of("key:" + i);
+            missingKeys[i] = ByteString.of("missing:" + i);
+            database.addStringData(keyNames[i], value);
+        }
+        // Let incremental rehashing finish so every benchmark sees a single table.
+        database.incrementalRehash(TimeUnit.SECONDS.toNanos(10));
+    }
+
+    private int nextIndex() {
+        // A full-period walk over the keys: 1_000_003 and the key count are coprime for the default.
+        next = (int) ((next + 1_000_003L) % keys);
+        return next;
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return database.getStringData(keyNames[nextIndex()]);
+    }
+
+    @Benchmark
+    public byte[] getMissing() {
+        return database.getStringData(missingKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public void set() {
+        database.addStringData(keyNames[nextIndex()], value);
+    }
+
+    @Benchmark
+    public void setWithExpire() {
+        database.addTemporaryStringData(keyNames[nextIndex()], value, Clock.millis() + 3_600_000L);
+    }
+
+    @Benchmark
+    public long expireTime() {
+        return database.getExpireTime(keyNames[nextIndex()]);
+    }
+}
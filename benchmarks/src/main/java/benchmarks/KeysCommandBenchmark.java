@@ -0,0 +1,72 @@
+package benchmarks;
+
+import commands.KeysCommand;
+import db.InMemoryDatabase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import resp.OutputBuffer;
+import utils.BufferPool;
+import utils.ByteString;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KEYS over {@code keys} keys, half {@code user:N} and half {@code session:N}, with patterns that
+ * match everything, a prefix, single characters and character classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dslf4j.provider=org.slf4j.simple.SimpleServiceProvider",
+        "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class KeysCommandBenchmark {
+
+    @Param({"100000"})
+    private int keys;
+
+    @Param({"*", "user:*", "user:1?3*", "*[0-4]5", "nomatch:*"})
+    private String pattern;
+
+    private OutputBuffer out;
+    private KeysCommand command;
+    private List<ByteString> args;
+
+    @Setup
+    public void setup() {
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        database.clear();
+        byte[] value = Fixtures.value(16);
+        for (int i = 0; i < keys; i++) {
+            database.addStringData(ByteString.of((i % 2 == 0 ? "user:" : "session:") + i), value);
+        }
+        out = new OutputBuffer(new BufferPool(1024));
+        command = new KeysCommand("keys");
+        args = List.of(ByteString.of(pattern));
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.clear();
+    }
+
+    @Benchmark
+    public long keys() {
+        command.execute(args, out);
+        long size = out.size();
+        out.clear();
+        return size;
+    }
+}
@@ -0,0 +1,170 @@
+package benchmarks;
+
+import benchmarks.Workload.Operation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection of the load generator. It sends a batch of {@code pipeline} operations, waits
+ * for every reply, and records each operation's latency from the moment the batch was due.
+ */
+final class LoadConnection {
+    private final SocketChannel channel;
+    private final ByteBuffer out;
+    private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+    // Operations of the batch in flight, oldest first, with the replies the oldest still needs.
+    private final ArrayDeque<Operation> inFlight = new ArrayDeque<>();
+    private int repliesPending;
+    private boolean sending;
+    private long batchStartNanos;
+    private long nextBatchNanos;
+
+    LoadConnection(SocketChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.out = ByteBuffer.allocate(bufferSize);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    ByteBuffer out() {
+        return out;
+    }
+
+    boolean isIdle() {
+        return inFlight.isEmpty() && !sending;
+    }
+
+    long nextBatchNanos() {
+        return nextBatchNanos;
+    }
+
+    void scheduleNextBatch(long nanos) {
+        nextBatchNanos = nanos;
+    }
+
+    /**
+     * Starts a batch whose commands the caller has just encoded into {@link #out()} in write mode.
+     * {@code startNanos} is when it was due, so time spent behind a slow server counts as latency.
+     */
+    void startBatch(Iterable<Operation> operations, long startNanos) {
+        for (Operation operation : operations) {
+            inFlight.add(operation);
+        }
+        repliesPending = inFlight.isEmpty() ? 0 : inFlight.peekFirst().replies;
+        batchStartNanos = startNanos;
+        sending = true;
+        out.flip();
+    }
+
+    /**
+     * Writes what the socket takes; returns true once the batch has been sent.
+     */
+    boolean flush() throws IOException {
+        channel.write(out);
+        if (out.hasRemaining()) {
+            return false;
+        }
+        out.clear();
+        sending = false;
+        return true;
+    }
+
+    /**
+     * Reads the replies that have arrived and reports each completed operation to {@code stats}.
+     * Returns false when the server closed the connection.
+     */
+    boolean read(LoadStats stats) throws IOException {
+        while (true) {
+            if (!in.hasRemaining()) {
+                in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                return false;
+            }
+            if (n == 0) {
+                return true;
+            }
+            in.flip();
+            int position = in.position();
+            int end;
+            while (!inFlight.isEmpty() && (end = replyEnd(in, position)) >= 0) {
+                if (in.get(position) == '-') {
+                    stats.error();
+                }
+                position = end;
+                if (--repliesPending == 0) {
+                    stats.record(inFlight.pollFirst(), (System.nanoTime() - batchStartNanos) / 1000);
+                    repliesPending = inFlight.isEmpty() ? 0 : inFlight.peekFirst().replies;
+                }
+            }
+            in.position(position);
+            in.compact();
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with a connection that failed to close.
+        }
+    }
+
+    /**
+     * The index just past the reply that starts at {@code from}, or -1 if it has not fully arrived.
+     */
+    static int replyEnd(ByteBuffer buffer, int from) {
+        if (from >= buffer.limit()) {
+            return -1;
+        }
+        int lineEnd = lineEnd(buffer, from);
+        if (lineEnd < 0) {
+            return -1;
+        }
+        byte type = buffer.get(from);
+        if (type != '$' && type != '*') {
+            return lineEnd;
+        }
+        long length = parseLong(buffer, from + 1, lineEnd - 2);
+        if (length < 0) {
+            return lineEnd;
+        }
+        if (type == '$') {
+            long end = lineEnd + length + 2;
+            return end <= buffer.limit() ? (int) end : -1;
+        }
+        int position = lineEnd;
+        for (long i = 0; i < length; i++) {
+            position = replyEnd(buffer, position);
+            if (position < 0) {
+                return -1;
+            }
+        }
+        return position;
+    }
+
+    // The index just past the CRLF of the line starting at from, or -1.
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit() - 1; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) {
+        boolean negative = buffer.get(from) == '-';
+        long value = 0;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            value = value * 10 + (buffer.get(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,115 @@
+package benchmarks;
+
+import benchmarks.Workload.Operation;
+import org.HdrHistogram.Histogram;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A redis-benchmark style load generator: many connections spread over a few selector threads send a
+ * weighted mix of GET/SET/INCR/MULTI with the given pipeline depth, key space and value sizes, and
+ * the run ends with the throughput and latency percentiles per operation.
+ *
+ * <pre>
+ * java -cp benchmarks.jar benchmarks.LoadGenerator --port 6379 --clients 50 --requests 1000000 --pipeline 16
+ * java -cp benchmarks.jar benchmarks.LoadGenerator --clients 2000 --rate 10 --duration 30 --mix get=90,set=10
+ * </pre>
+ */
+public final class LoadGenerator {
+    private static final Map<String, String> DEFAULTS = Map.ofEntries(
+            Map.entry("host", "127.0.0.1"),
+            Map.entry("port", "6379"),
+            Map.entry("clients", "50"),
+            Map.entry("threads", "1"),
+            Map.entry("requests", "100000"),
+            // Seconds; when set, the run lasts this long instead of counting requests.
+            Map.entry("duration", "0"),
+            Map.entry("pipeline", "1"),
+            Map.entry("keyspace", "100000"),
+            Map.entry("value-size", "64"),
+            Map.entry("mix", "get=50,set=50"),
+            // Operations per second per connection; 0 sends as fast as replies come back.
+            Map.entry("rate", "0"),
+            Map.entry("seed", "1"));
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int clients = Integer.parseInt(options.get("clients"));
+        int threads = Math.min(Integer.parseInt(options.get("threads")), clients);
+        int pipeline = Integer.parseInt(options.get("pipeline"));
+        long durationSeconds = Long.parseLong(options.get("duration"));
+        double rate = Double.parseDouble(options.get("rate"));
+        long seed = Long.parseLong(options.get("seed"));
+        if (clients <= 0 || threads <= 0 || pipeline <= 0) {
+            throw new IllegalArgumentException("--clients, --threads and --pipeline must be positive");
+        }
+        Workload workload = Workload.parse(options.get("mix"), Integer.parseInt(options.get("keyspace")),
+                options.get("value-size"));
+        InetSocketAddress address = new InetSocketAddress(options.get("host"), Integer.parseInt(options.get("port")));
+
+        AtomicLong remaining = new AtomicLong(Long.parseLong(options.get("requests")));
+        long start = System.nanoTime();
+        long deadline = durationSeconds > 0 ? start + durationSeconds * 1_000_000_000L : 0;
+        List<LoadWorker> workers = new ArrayList<>();
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int connections = clients / threads + (i < clients % threads ? 1 : 0);
+            LoadWorker worker = new LoadWorker(address, connections, pipeline, rate, deadline, remaining, workload, seed + i);
+            Thread thread = new Thread(worker, "load-worker-" + i);
+            workers.add(worker);
+            workerThreads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : workerThreads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        LoadStats stats = new LoadStats();
+        for (LoadWorker worker : workers) {
+            if (worker.failure() != null) {
+                System.err.println("A worker stopped early: " + worker.failure().getMessage());
+            }
+            stats.add(worker.stats());
+        }
+        report(options, stats, seconds);
+    }
+
+    private static void report(Map<String, String> options, LoadStats stats, double seconds) {
+        Histogram total = stats.total();
+        System.out.printf("%d operations on %s connections (pipeline %s, value size %s, mix %s) in %.2f s%n",
+                total.getTotalCount(), options.get("clients"), options.get("pipeline"), options.get("value-size"),
+                options.get("mix"), seconds);
+        System.out.printf("Throughput: %.0f ops/s, errors: %d%n", total.getTotalCount() / seconds, stats.errors());
+        System.out.printf("%-8s %10s %8s %8s %8s %8s %8s   (latency in microseconds)%n",
+                "", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<Operation, Histogram> entry : stats.histograms().entrySet()) {
+            printLatencies(entry.getKey().name(), entry.getValue());
+        }
+        printLatencies("ALL", total);
+    }
+
+    private static void printLatencies(String label, Histogram histogram) {
+        System.out.printf("%-8s %10d %8d %8d %8d %8d %8d%n", label, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : "";
+            if (!DEFAULTS.containsKey(name) || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Unknown option or missing value: " + args[i]
+                        + "; options are " + DEFAULTS.keySet().stream().map(option -> "--" + option).sorted().toList());
+            }
+            options.put(name, args[++i]);
+        }
+        return options;
+    }
+}
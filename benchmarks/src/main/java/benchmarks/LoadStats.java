@@ -0,0 +1,51 @@
+package benchmarks;
+
+import benchmarks.Workload.Operation;
+import org.HdrHistogram.Histogram;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Latencies in microseconds per operation type, kept by one worker thread and merged at the end.
+ */
+final class LoadStats {
+    // Up to an hour, to three significant digits.
+    private static final long HIGHEST_TRACKABLE_MICROS = 3_600_000_000L;
+
+    private final Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+    private long errors;
+
+    void record(Operation operation, long micros) {
+        histograms.computeIfAbsent(operation, ignored -> newHistogram())
+                .recordValue(Math.min(Math.max(micros, 1), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    void error() {
+        errors++;
+    }
+
+    void add(LoadStats other) {
+        other.histograms.forEach((operation, histogram) ->
+                histograms.computeIfAbsent(operation, ignored -> newHistogram()).add(histogram));
+        errors += other.errors;
+    }
+
+    Map<Operation, Histogram> histograms() {
+        return histograms;
+    }
+
+    Histogram total() {
+        Histogram total = newHistogram();
+        histograms.values().forEach(total::add);
+        return total;
+    }
+
+    long errors() {
+        return errors;
+    }
+
+    private static Histogram newHistogram() {
+        return new Histogram(HIGHEST_TRACKABLE_MICROS, 3);
+    }
+}
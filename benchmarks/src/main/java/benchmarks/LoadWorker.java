@@ -0,0 +1,142 @@
+package benchmarks;
+
+import benchmarks.Workload.Operation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a share of the load generator's connections from one selector thread. Every connection runs
+ * closed-loop: its next batch goes out once the replies to the previous one are in, and no earlier
+ * than its rate allows.
+ */
+final class LoadWorker implements Runnable {
+    private final InetSocketAddress address;
+    private final int connections;
+    private final int pipeline;
+    private final long batchIntervalNanos;
+    private final long deadlineNanos;
+    private final AtomicLong remainingOperations;
+    private final Workload workload;
+    private final SplittableRandom random;
+    private final LoadStats stats = new LoadStats();
+    private final List<Operation> batch = new ArrayList<>();
+    private volatile IOException failure;
+
+    LoadWorker(InetSocketAddress address, int connections, int pipeline, double ratePerConnection,
+               long deadlineNanos, AtomicLong remainingOperations, Workload workload, long seed) {
+        this.address = address;
+        this.connections = connections;
+        this.pipeline = pipeline;
+        this.batchIntervalNanos = ratePerConnection > 0 ? (long) (pipeline * 1e9 / ratePerConnection) : 0;
+        this.deadlineNanos = deadlineNanos;
+        this.remainingOperations = remainingOperations;
+        this.workload = workload;
+        this.random = new SplittableRandom(seed);
+    }
+
+    LoadStats stats() {
+        return stats;
+    }
+
+    IOException failure() {
+        return failure;
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            List<LoadConnection> open = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(address);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.configureBlocking(false);
+                LoadConnection connection = new LoadConnection(channel, pipeline * workload.maxEncodedLength());
+                channel.register(selector, SelectionKey.OP_READ, connection);
+                open.add(connection);
+            }
+            long now = System.nanoTime();
+            for (LoadConnection connection : open) {
+                // Spread paced connections over one interval instead of sending in lockstep.
+                connection.scheduleNextBatch(batchIntervalNanos > 0 ? now + random.nextLong(batchIntervalNanos) : now);
+            }
+            loop(selector, open);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void loop(Selector selector, List<LoadConnection> open) throws IOException {
+        while (!open.isEmpty()) {
+            long now = System.nanoTime();
+            long nextDue = Long.MAX_VALUE;
+            for (int i = open.size() - 1; i >= 0; i--) {
+                LoadConnection connection = open.get(i);
+                if (!connection.isIdle()) {
+                    continue;
+                }
+                if (connection.nextBatchNanos() > now) {
+                    nextDue = Math.min(nextDue, connection.nextBatchNanos());
+                    continue;
+                }
+                if (!sendBatch(connection, selector)) {
+                    connection.close();
+                    open.remove(i);
+                }
+            }
+            long timeoutMillis = nextDue == Long.MAX_VALUE ? 100 : Math.max(1, (nextDue - now) / 1_000_000);
+            selector.select(timeoutMillis);
+            for (SelectionKey key : selector.selectedKeys()) {
+                LoadConnection connection = (LoadConnection) key.attachment();
+                if (key.isValid() && key.isWritable() && connection.flush()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                if (key.isValid() && key.isReadable() && !connection.read(stats)) {
+                    throw new IOException("Server closed a connection");
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Claims and sends the next batch; returns false once the run is over for this connection.
+     */
+    private boolean sendBatch(LoadConnection connection, Selector selector) throws IOException {
+        long now = System.nanoTime();
+        if (deadlineNanos > 0 && now >= deadlineNanos) {
+            return false;
+        }
+        long claimed = pipeline;
+        if (deadlineNanos == 0) {
+            long before = remainingOperations.getAndAdd(-pipeline);
+            claimed = Math.min(pipeline, before);
+            if (claimed <= 0) {
+                return false;
+            }
+        }
+        batch.clear();
+        for (int i = 0; i < claimed; i++) {
+            Operation operation = workload.next(random);
+            workload.encode(operation, random, connection.out());
+            batch.add(operation);
+        }
+        long due = batchIntervalNanos > 0 ? connection.nextBatchNanos() : now;
+        connection.startBatch(batch, due);
+        if (batchIntervalNanos > 0) {
+            connection.scheduleNextBatch(due + batchIntervalNanos);
+        }
+        if (!connection.flush()) {
+            connection.channel().keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.BufferPool;
+import utils.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding each reply type into an {@link OutputBuffer}, which is emptied back into its pool after
+ * every reply as a completed write would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dslf4j.provider=org.slf4j.simple.SimpleServiceProvider",
+        "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class RespEncoderBenchmark {
+
+    @Param({"16", "16384"})
+    private int valueSize;
+
+    private OutputBuffer out;
+    private byte[] value;
+    private List<ByteString> array;
+
+    @Setup
+    public void setup() {
+        out = new OutputBuffer(new BufferPool(1024));
+        value = Fixtures.value(valueSize);
+        array = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            array.add(ByteString.of("key:" + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        out.clear();
+    }
+
+    @Benchmark
+    public long simpleString() {
+        RespEncoder.encode(out, "OK", true);
+        return drain();
+    }
+
+    @Benchmark
+    public long bulkString() {
+        RespEncoder.encode(out, value);
+        return drain();
+    }
+
+    @Benchmark
+    public long integer() {
+        RespEncoder.encode(out, 1234567L);
+        return drain();
+    }
+
+    @Benchmark
+    public long nullBulkString() {
+        RespEncoder.encodeNull(out);
+        return drain();
+    }
+
+    @Benchmark
+    public long error() {
+        RespEncoder.encodeError(out, "ERR", "value is not an integer or out of range");
+        return drain();
+    }
+
+    @Benchmark
+    public long array() {
+        RespEncoder.encode(out, array);
+        return drain();
+    }
+
+    private long drain() {
+        long size = out.size();
+        out.clear();
+        return size;
+    }
+}
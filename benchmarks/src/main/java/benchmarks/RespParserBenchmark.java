@@ -0,0 +1,78 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import resp.RespParser;
+import utils.ParsedCommand;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a read buffer of {@code pipeline} SET commands, whole or arriving in reads of
+ * {@code readSize} bytes, off a direct buffer like the ones the event loop reads into.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dslf4j.provider=org.slf4j.simple.SimpleServiceProvider",
+        "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn"})
+public class RespParserBenchmark {
+
+    @Param({"1", "64"})
+    private int pipeline;
+
+    @Param({"16", "16384", "1048576"})
+    private int valueSize;
+
+    private ByteBuffer input;
+    private RespParser parser;
+
+    @Setup
+    public void setup() {
+        byte[] value = Fixtures.value(valueSize);
+        byte[] command = Fixtures.command(Fixtures.ascii("SET"), Fixtures.ascii("key:000001"), value);
+        input = ByteBuffer.allocateDirect(command.length * pipeline);
+        for (int i = 0; i < pipeline; i++) {
+            input.put(command);
+        }
+        input.flip();
+        parser = new RespParser();
+    }
+
+    @Benchmark
+    public List<ParsedCommand> parse() {
+        input.rewind();
+        return parser.parse(input);
+    }
+
+    /**
+     * The same input split across 1 KB reads, so most commands are completed by a later call.
+     */
+    @Benchmark
+    public int parseInReads() {
+        int parsed = 0;
+        int length = input.capacity();
+        input.position(0);
+        // Bytes the parser leaves unconsumed stay in front of the next read, as after a compact.
+        for (int end = Math.min(1024, length); ; end = Math.min(end + 1024, length)) {
+            input.limit(end);
+            parsed += parser.parse(input).size();
+            if (end == length) {
+                return parsed;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * What the load generator sends: a weighted mix of operations over {@code keyspace} keys, with value
+ * sizes drawn uniformly from {@code [minValueSize, maxValueSize]}. An operation is one command, except
+ * {@code multi}, which is a MULTI/INCR/SET/EXEC transaction answered with four replies.
+ */
+final class Workload {
+
+    enum Operation {
+        GET(1), SET(1), INCR(1), MULTI(4);
+
+        final int replies;
+
+        Operation(int replies) {
+            this.replies = replies;
+        }
+    }
+
+    private final Operation[] operations;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+    private final int keyspace;
+    private final int minValueSize;
+    private final int maxValueSize;
+    private final byte[] valueBytes;
+
+    private Workload(Operation[] operations, int[] cumulativeWeights, int keyspace, int minValueSize, int maxValueSize) {
+        this.operations = operations;
+        this.cumulativeWeights = cumulativeWeights;
+        this.totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+        this.keyspace = keyspace;
+        this.minValueSize = minValueSize;
+        this.maxValueSize = maxValueSize;
+        this.valueBytes = new byte[maxValueSize];
+        for (int i = 0; i < maxValueSize; i++) {
+            valueBytes[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    /**
+     * {@code mix} is a list such as {@code get=80,set=20}; {@code valueSize} is a size or a range such
+     * as {@code 16-1024}.
+     */
+    static Workload parse(String mix, int keyspace, String valueSize) {
+        List<Operation> operations = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] entry = part.trim().split("=");
+            if (entry.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight in the mix, got: " + part);
+            }
+            int weight = Integer.parseInt(entry[1]);
+            if (weight <= 0) {
+                continue;
+            }
+            total += weight;
+            operations.add(Operation.valueOf(entry[0].toUpperCase()));
+            weights.add(total);
+        }
+        if (operations.isEmpty()) {
+            throw new IllegalArgumentException("The mix has no operation with a positive weight: " + mix);
+        }
+        if (keyspace <= 0) {
+            throw new IllegalArgumentException("The keyspace must hold at least one key");
+        }
+        String[] range = valueSize.split("-");
+        int min = Integer.parseInt(range[0]);
+        int max = range.length > 1 ? Integer.parseInt(range[1]) : min;
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid value size: " + valueSize);
+        }
+        return new Workload(operations.toArray(new Operation[0]),
+                weights.stream().mapToInt(Integer::intValue).toArray(), keyspace, min, max);
+    }
+
+    Operation next(SplittableRandom random) {
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    /**
+     * Appends the commands of {@code operation} on a random key to {@code out}, which the caller has
+     * sized with {@link #maxEncodedLength()}.
+     */
+    void encode(Operation operation, SplittableRandom random, ByteBuffer out) {
+        byte[] key = ("key:" + random.nextInt(keyspace)).getBytes(StandardCharsets.US_ASCII);
+        int valueSize = minValueSize == maxValueSize ? minValueSize : random.nextInt(minValueSize, maxValueSize + 1);
+        switch (operation) {
+            case GET -> command(out, "GET", key, null, 0);
+            case SET -> command(out, "SET", key, valueBytes, valueSize);
+            // INCR on its own keys: SET and INCR on one key would turn counters into errors.
+            case INCR -> command(out, "INCR", counterKey(key), null, 0);
+            case MULTI -> {
+                command(out, "MULTI", null, null, 0);
+                command(out, "INCR", counterKey(key), null, 0);
+                command(out, "SET", key, valueBytes, valueSize);
+                command(out, "EXEC", null, null, 0);
+            }
+        }
+    }
+
+    int maxEncodedLength() {
+        return 512 + 2 * maxValueSize;
+    }
+
+    private static byte[] counterKey(byte[] key) {
+        byte[] counter = new byte[key.length + 8];
+        System.arraycopy("counter:".getBytes(StandardCharsets.US_ASCII), 0, counter, 0, 8);
+        System.arraycopy(key, 0, counter, 8, key.length);
+        return counter;
+    }
+
+    private static void command(ByteBuffer out, String name, byte[] key, byte[] value, int valueSize) {
+        int args = 1 + (key != null ? 1 : 0) + (value != null ? 1 : 0);
+        header(out, '*', args);
+        bulk(out, name.getBytes(StandardCharsets.US_ASCII), name.length());
+        if (key != null) {
+            bulk(out, key, key.length);
+        }
+        if (value != null) {
+            bulk(out, value, valueSize);
+        }
+    }
+
+    private static void header(ByteBuffer out, char type, int count) {
+        out.put((byte) type).put(Integer.toString(count).getBytes(StandardCharsets.US_ASCII)).put((byte) '\r').put((byte) '\n');
+    }
+
+    private static void bulk(ByteBuffer out, byte[] bytes, int length) {
+        header(out, '$', length);
+        out.put(bytes, 0, length).put((byte) '\r').put((byte) '\n');
+    }
+}
@@ -1,17 +1,24 @@
+import core.ConfigValues;
 import core.RedisServer;
 import core.RedisServer.ServerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Main {
     private static final Logger log = LoggerFactory.getLogger(Main.class);
     private static final int DEFAULT_PORT = 6379;
     private static final int BUFFER_SIZE = 1024;
     private static final int DEFAULT_TIMEOUT = 5000;
+    private static final long DEFAULT_QUERY_BUFFER_LIMIT = 1024L * 1024 * 1024;
+    private static final int DEFAULT_HZ = 10;
+    private static final String DEFAULT_SAVE_POINTS = "3600 1 300 100 60 10000";
+    private static final int DEFAULT_REPL_BACKLOG_SIZE = 1024 * 1024;
+    // Hard limit, soft limit and how long a replica may stay over the soft limit.
+    private static final String DEFAULT_REPLICA_OUTPUT_LIMIT = (256L << 20) + " " + (64L << 20) + " 60";
 
     public static void main(String[] args) {
         try {
@@ -24,8 +31,24 @@ public class Main {
     }
 
     private static ServerConfig parseConfig(String[] args) {
-        Map<String, String> properties = new HashMap<>();
-        properties.put("emptyRDB", "UkVESVMwMDEx+glyZWRpcy12ZXIFNy4yLjD6CnJlZGlzLWJpdHPAQPoFY3RpbWXCbQi8ZfoIdXNlZC1tZW3CsMQQAPoIYW9mLWJhc2XAAP/wbjv+wP9aog==");
+        // CONFIG SET writes while CONFIG GET and the background threads read.
+        Map<String, String> properties = new ConcurrentHashMap<>();
+        properties.put("client-query-buffer-limit", String.valueOf(DEFAULT_QUERY_BUFFER_LIMIT));
+        properties.put("hz", String.valueOf(DEFAULT_HZ));
+        properties.put("active-expire-effort", "1");
+        properties.put("dir", ".");
+        properties.put("dbfilename", "dump.rdb");
+        properties.put("save", DEFAULT_SAVE_POINTS);
+        properties.put("appendonly", "no");
+        properties.put("appendfilename", "appendonly.aof");
+        properties.put("appendfsync", "everysec");
+        // Decoder threads for the RDB load pipeline, next to the reading and inserting threads.
+        properties.put("rdb-load-threads", String.valueOf(Math.clamp(Runtime.getRuntime().availableProcessors() - 1, 0, 4)));
+        properties.put("async-loading", "no");
+        properties.put("repl-backlog-size", String.valueOf(DEFAULT_REPL_BACKLOG_SIZE));
+        properties.put("client-output-buffer-limit-replica", DEFAULT_REPLICA_OUTPUT_LIMIT);
+        // Seconds a full resync waits for more replicas to share the same snapshot transfer.
+        properties.put("repl-diskless-sync-delay", "5");
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "--port":
@@ -44,6 +67,81 @@ public class Main {
                         properties.put("dbfilename", args[++i]);
                     }
                     break;
+                case "--save":
+                    if (i + 1 < args.length) {
+                        properties.put("save", ConfigValues.normalize("save", args[++i]));
+                    }
+                    break;
+                case "--appendonly":
+                    if (i + 1 < args.length) {
+                        properties.put("appendonly", ConfigValues.normalize("appendonly", args[++i]));
+                    }
+                    break;
+                case "--appendfilename":
+                    if (i + 1 < args.length) {
+                        properties.put("appendfilename", args[++i]);
+                    }
+                    break;
+                case "--appendfsync":
+                    if (i + 1 < args.length) {
+                        properties.put("appendfsync", ConfigValues.normalize("appendfsync", args[++i]));
+                    }
+                    break;
+                case "--rdb-load-threads":
+                    if (i + 1 < args.length) {
+                        properties.put("rdb-load-threads", ConfigValues.normalize("rdb-load-threads", args[++i]));
+                    }
+                    break;
+                case "--async-loading":
+                    if (i + 1 < args.length) {
+                        properties.put("async-loading", ConfigValues.normalize("async-loading", args[++i]));
+                    }
+                    break;
+                case "--io-threads":
+                    if (i + 1 < args.length) {
+                        properties.put("io-threads", ConfigValues.normalize("io-threads", args[++i]));
+                    }
+                    break;
+                case "--io-mode":
+                    if (i + 1 < args.length) {
+                        properties.put("io-mode", ConfigValues.normalize("io-mode", args[++i]));
+                    }
+                    break;
+                case "--keyspace-shards":
+                    if (i + 1 < args.length) {
+                        properties.put("keyspace-shards", ConfigValues.normalize("keyspace-shards", args[++i]));
+                    }
+                    break;
+                case "--client-query-buffer-limit":
+                    if (i + 1 < args.length) {
+                        properties.put("client-query-buffer-limit", ConfigValues.normalize("client-query-buffer-limit", args[++i]));
+                    }
+                    break;
+                case "--hz":
+                    if (i + 1 < args.length) {
+                        properties.put("hz", ConfigValues.normalize("hz", args[++i]));
+                    }
+                    break;
+                case "--active-expire-effort":
+                    if (i + 1 < args.length) {
+                        properties.put("active-expire-effort", ConfigValues.normalize("active-expire-effort", args[++i]));
+                    }
+                    break;
+                case "--repl-backlog-size":
+                    if (i + 1 < args.length) {
+                        properties.put("repl-backlog-size", ConfigValues.normalize("repl-backlog-size", args[++i]));
+                    }
+                    break;
+                case "--repl-diskless-sync-delay":
+                    if (i + 1 < args.length) {
+                        properties.put("repl-diskless-sync-delay", ConfigValues.normalize("repl-diskless-sync-delay", args[++i]));
+                    }
+                    break;
+                case "--client-output-buffer-limit":
+                    if (i + 1 < args.length) {
+                        parseOutputBufferLimit(args[++i], properties);
+                    }
+                    break;
                 case "--replicaof":
                     if(i + 1 < args.length) {
                         properties.put("replicaof", args[++i]);
@@ -68,6 +166,18 @@ public class Main {
         return port;
     }
 
+    /**
+     * Parses "<class> <hard> <soft> <soft-seconds>"; only the replica class is buffered by this server.
+     */
+    private static void parseOutputBufferLimit(String limit, Map<String, String> properties) {
+        String[] parts = limit.trim().split("\\s+", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("client-output-buffer-limit expects <class> <hard> <soft> <soft-seconds>");
+        }
+        ConfigValues.parseChoice("client-output-buffer-limit class", parts[0], "replica", "slave");
+        properties.put("client-output-buffer-limit-replica", ConfigValues.normalize("client-output-buffer-limit-replica", parts[1]));
+    }
+
     private static void startServer(ServerConfig config) throws IOException {
         RedisServer server = new RedisServer(config);
 
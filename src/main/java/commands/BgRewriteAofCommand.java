@@ -0,0 +1,23 @@
+package commands;
+
+import db.AppendOnlyFile;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+public class BgRewriteAofCommand extends RedisCommand {
+
+    public BgRewriteAofCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        if(!AppendOnlyFile.backgroundRewrite()) {
+            throw new IllegalArgumentException("Background append only file rewriting already in progress");
+        }
+        RespEncoder.encode(out, "Background append only file rewriting started", true);
+    }
+}
@@ -0,0 +1,23 @@
+package commands;
+
+import db.RdbSaver;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+public class BgSaveCommand extends RedisCommand {
+
+    public BgSaveCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        if(!RdbSaver.backgroundSave()) {
+            throw new IllegalArgumentException("Background save already in progress");
+        }
+        RespEncoder.encode(out, "Background saving started", true);
+    }
+}
@@ -0,0 +1,67 @@
+package commands;
+
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+/**
+ * {@code COMMAND}, {@code COMMAND COUNT} and {@code COMMAND INFO [name ...]}: describes the commands in
+ * the {@link CommandTable} as name, arity, flags and first key, last key and step.
+ */
+public class CommandCommand extends RedisCommand {
+
+    public CommandCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void checkSyntax(List<ByteString> args) {
+        if (args.isEmpty() || args.getFirst().equalsIgnoreCase("info")) {
+            return;
+        }
+        if (!args.getFirst().equalsIgnoreCase("count") || args.size() != 1) {
+            throw new IllegalArgumentException("unknown subcommand or wrong number of arguments for '"
+                    + args.getFirst() + "'");
+        }
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        if (!args.isEmpty() && args.getFirst().equalsIgnoreCase("count")) {
+            RespEncoder.encodeInteger(out, CommandTable.size());
+            return;
+        }
+        if (args.size() > 1) {
+            RespEncoder.encodeArrayHeader(out, args.size() - 1);
+            for (ByteString commandName : args.subList(1, args.size())) {
+                CommandSpec spec = CommandTable.lookup(commandName.toString());
+                if (spec == null) {
+                    RespEncoder.encodeNull(out);
+                } else {
+                    encodeSpec(out, spec);
+                }
+            }
+            return;
+        }
+        List<CommandSpec> specs = CommandTable.all();
+        RespEncoder.encodeArrayHeader(out, specs.size());
+        for (CommandSpec spec : specs) {
+            encodeSpec(out, spec);
+        }
+    }
+
+    private static void encodeSpec(OutputBuffer out, CommandSpec spec) {
+        RespEncoder.encodeArrayHeader(out, 6);
+        RespEncoder.encode(out, spec.name());
+        RespEncoder.encodeInteger(out, spec.arity());
+        RespEncoder.encodeArrayHeader(out, spec.flags().size());
+        for (CommandSpec.Flag flag : spec.flags()) {
+            RespEncoder.encode(out, flag.replyName(), true);
+        }
+        RespEncoder.encodeInteger(out, spec.firstKey());
+        RespEncoder.encodeInteger(out, spec.lastKey());
+        RespEncoder.encodeInteger(out, spec.keyStep());
+    }
+}
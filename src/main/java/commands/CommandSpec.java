@@ -0,0 +1,43 @@
+package commands;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A command's entry in the {@link CommandTable}: its arity, counting the name and negative for "at
+ * least", its flags and the positions of its keys, laid out as Redis reports them in COMMAND INFO, and
+ * the handler every request for it runs.
+ */
+public record CommandSpec(String name, int arity, Set<Flag> flags, int firstKey, int lastKey, int keyStep,
+                          RedisCommand command) {
+
+    public enum Flag {
+        WRITE,
+        READONLY,
+        FAST,
+        ADMIN,
+        // May run while the dataset is still being loaded; everything else gets -LOADING.
+        LOADING;
+
+        public String replyName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public boolean hasFlag(Flag flag) {
+        return flags.contains(flag);
+    }
+
+    /**
+     * Whether the command touches nothing but the key in its first argument.
+     */
+    public boolean isSingleKey() {
+        return firstKey == 1 && lastKey == 1;
+    }
+
+    public void checkArity(int argumentCount) {
+        if (arity >= 0 ? argumentCount != arity : argumentCount < -arity) {
+            throw new IllegalArgumentException("wrong number of arguments for '" + name + "' command");
+        }
+    }
+}
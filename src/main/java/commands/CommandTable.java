@@ -0,0 +1,153 @@
+package commands;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.Function;
+
+import static commands.CommandSpec.Flag.*;
+
+/**
+ * Every command the server knows, looked up by name ignoring ASCII case without allocating: the name a
+ * client sent is never lower-cased. The table is an open-addressing array at most half full.
+ */
+public final class CommandTable {
+    private static final List<CommandSpec> specs = new ArrayList<>();
+    private static final CommandSpec[] slots;
+    // The lower-case name of each slot's command, for lookups by raw bytes.
+    private static final byte[][] slotNames;
+
+    static {
+        add("ping", -1, 0, 0, PingCommand::new, FAST);
+        add("echo", 2, 0, 0, EchoCommand::new, FAST);
+        add("get", 2, 1, 1, GetCommand::new, READONLY, FAST);
+        add("set", -3, 1, 1, SetCommand::new, WRITE);
+        add("incr", 2, 1, 1, IncrCommand::new, WRITE, FAST);
+        add("incrby", 3, 1, 1, IncrCommand::new, WRITE, FAST);
+        add("decr", 2, 1, 1, IncrCommand::new, WRITE, FAST);
+        add("decrby", 3, 1, 1, IncrCommand::new, WRITE, FAST);
+        add("incrbyfloat", 3, 1, 1, IncrByFloatCommand::new, WRITE, FAST);
+        add("ttl", 2, 1, 1, TtlCommand::new, READONLY, FAST);
+        add("pttl", 2, 1, 1, TtlCommand::new, READONLY, FAST);
+        add("expiretime", 2, 1, 1, ExpireTimeCommand::new, READONLY, FAST);
+        add("pexpiretime", 2, 1, 1, ExpireTimeCommand::new, READONLY, FAST);
+        add("multi", 1, 0, 0, MultiCommand::new, FAST);
+        add("exec", 1, 0, 0, ExecCommand::new);
+        add("discard", 1, 0, 0, DiscardCommand::new, FAST);
+        add("config", -2, 0, 0, ConfigCommand::new, ADMIN, LOADING);
+        add("save", 1, 0, 0, SaveCommand::new, ADMIN);
+        add("bgsave", 1, 0, 0, BgSaveCommand::new, ADMIN);
+        add("bgrewriteaof", 1, 0, 0, BgRewriteAofCommand::new, ADMIN);
+        add("lastsave", 1, 0, 0, LastSaveCommand::new, FAST);
+        add("keys", 2, 0, 0, KeysCommand::new, READONLY);
+        add("scan", -2, 0, 0, ScanCommand::new, READONLY);
+        add("object", -2, 2, 2, ObjectCommand::new, READONLY);
+        add("info", -1, 0, 0, InfoCommand::new, LOADING);
+        add("replconf", -1, 0, 0, ReplConfCommand::new, ADMIN);
+        add("psync", -3, 0, 0, PSyncCommand::new, ADMIN);
+        add("wait", 3, 0, 0, WaitCommand::new);
+        add("command", -1, 0, 0, CommandCommand::new, LOADING);
+
+        slots = new CommandSpec[Integer.highestOneBit(specs.size() * 4)];
+        slotNames = new byte[slots.length][];
+        int mask = slots.length - 1;
+        for (CommandSpec spec : specs) {
+            byte[] name = spec.name().getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(name) & mask;
+            while (slots[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = spec;
+            slotNames[slot] = name;
+        }
+    }
+
+    private static void add(String name, int arity, int firstKey, int lastKey,
+                            Function<String, RedisCommand> constructor, CommandSpec.Flag... flags) {
+        EnumSet<CommandSpec.Flag> flagSet = EnumSet.noneOf(CommandSpec.Flag.class);
+        flagSet.addAll(List.of(flags));
+        RedisCommand command = constructor.apply(name);
+        CommandSpec spec = new CommandSpec(name, arity, flagSet, firstKey, lastKey, firstKey > 0 ? 1 : 0, command);
+        command.spec = spec;
+        specs.add(spec);
+    }
+
+    /**
+     * The command called {@code name} in any case, or null if there is none.
+     */
+    public static CommandSpec lookup(String name) {
+        int mask = slots.length - 1;
+        for (int slot = hash(name) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(slotNames[slot], name)) {
+                return slots[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link #lookup(String)} for a name as it came off the wire.
+     */
+    public static CommandSpec lookup(byte[] name) {
+        int mask = slots.length - 1;
+        for (int slot = hash(name) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(slotNames[slot], name)) {
+                return slots[slot];
+            }
+        }
+        return null;
+    }
+
+    public static List<CommandSpec> all() {
+        return List.copyOf(specs);
+    }
+
+    public static int size() {
+        return specs.size();
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + toLower(name.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(byte[] name) {
+        int h = 0;
+        for (int i = 0; i < name.length; i++) {
+            h = 31 * h + toLower((char) (name[i] & 0xFF));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(byte[] lowerCase, String name) {
+        if (lowerCase.length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (lowerCase[i] != toLower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(byte[] lowerCase, byte[] name) {
+        if (lowerCase.length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length; i++) {
+            if (lowerCase[i] != toLower((char) (name[i] & 0xFF))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -1,6 +1,8 @@
 package commands;
 
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 import core.RedisServer;
 import java.util.ArrayList;
 import java.util.List;
@@ -12,36 +14,36 @@ public class ConfigCommand extends RedisCommand {
             "set", "Set configuration parameters to their respective values",
             "help", "Show helpful text about the different subcommands");
 
-    public ConfigCommand(String name, List<String> args) {
-        super(name, args);
+    public ConfigCommand(String name) {
+        super(name);
     }
 
     @Override
-    public String execute() {
+    public void execute(List<ByteString> args, OutputBuffer out) {
         if (args.isEmpty()) {
             throw new IllegalArgumentException("wrong number of arguments for '" + name + "' command");
         }
 
-        String methodName = args.getFirst().toLowerCase();
+        String methodName = args.getFirst().toString().toLowerCase();
         if (!VALID_METHODS.containsKey(methodName)) {
             throw new IllegalArgumentException("unknown CONFIG subcommand '" + methodName + "'");
         }
 
-        List<String> subCommandArgs = args.subList(1, args.size());
+        List<ByteString> subCommandArgs = args.subList(1, args.size());
         
-        return switch (methodName) {
-            case "get" -> executeGet(subCommandArgs);
-            case "set" -> executeSet(subCommandArgs);
-            case "help" -> executeHelp(subCommandArgs);
-            default -> RespEncoder.encode(null);
-        };
+        switch (methodName) {
+            case "get" -> executeGet(out, subCommandArgs);
+            case "set" -> executeSet(out, subCommandArgs);
+            case "help" -> executeHelp(out, subCommandArgs);
+            default -> RespEncoder.encodeNull(out);
+        }
     }
 
-    private String executeGet(List<String> args) {
+    private void executeGet(OutputBuffer out, List<ByteString> args) {
         if (args.isEmpty()) {
             throw new IllegalArgumentException("wrong number of arguments for CONFIG GET");
         }
-        String pattern = args.getFirst();
+        String pattern = args.getFirst().toString();
         Map<String, String> config = RedisServer.currentConfig().properties();
         List<String> response = new ArrayList<>();
         if (pattern.equals("*")) {
@@ -56,23 +58,27 @@ public class ConfigCommand extends RedisCommand {
                 response.add(value);
             }
         }
-        return RespEncoder.encode(response);
+        RespEncoder.encode(out, response);
     }
 
-    private String executeSet(List<String> args) {
+    private void executeSet(OutputBuffer out, List<ByteString> args) {
         if (args.size() != 2) {
             throw new IllegalArgumentException("wrong number of arguments for CONFIG SET");
         }
-        String parameter = args.get(0);
-        String value = args.get(1);
+        String parameter = args.get(0).toString();
+        String value = args.get(1).toString();
         if (!RedisServer.currentConfig().properties().containsKey(parameter)) {
             throw new IllegalArgumentException("invalid config parameter '" + parameter + "'");
         }
-        RedisServer.currentConfig().properties().put(parameter, value);
-        return RespEncoder.encode("OK");
+        try {
+            RedisServer.setConfig(parameter, value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("CONFIG SET failed (possibly related to argument '" + parameter + "') - " + e.getMessage());
+        }
+        RespEncoder.encode(out, "OK");
     }
 
-    private String executeHelp(List<String> args) {
+    private void executeHelp(OutputBuffer out, List<ByteString> args) {
         if(!args.isEmpty()) {
             throw new IllegalArgumentException("wrong number of arguments for CONFIG HELP");
         }
@@ -81,23 +87,7 @@ public class ConfigCommand extends RedisCommand {
             response.add("CONFIG " + entry.getKey().toUpperCase());
             response.add(entry.getValue());
         }
-        return RespEncoder.encode(response);
+        RespEncoder.encode(out, response);
     }
 
-    @Override
-    public void checkSyntax() {
-        if (args.isEmpty()) {
-            throw new IllegalArgumentException("wrong number of arguments for '" + name + "' command");
-        }
-    }
-
-    @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
-    }
 }
\ No newline at end of file
@@ -1,39 +1,29 @@
 package commands;
 
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
+import utils.ClientState;
 
 import java.util.List;
 
 public class DiscardCommand extends RedisCommand {
-    private final boolean inTransaction;
 
-    public DiscardCommand(String name, List<String> args, boolean inTransaction) {
-        super(name, args);
-        this.inTransaction = inTransaction;
+    public DiscardCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(!args.isEmpty()) {
-            throw new IllegalArgumentException("wrong number of arguments for '" + name + "' command");
-        }
-    }
-
-    @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, new IllegalStateException("DISCARD without MULTI"));
     }
 
     @Override
-    public String execute() {
-        if(!inTransaction) {
-            return RespEncoder.encode(new IllegalStateException("DISCARD without MULTI"));
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        if(!client.isInTransaction()) {
+            RespEncoder.encode(out, new IllegalStateException("DISCARD without MULTI"));
+            return;
         }
-        return RespEncoder.encode("OK", true);
+        RespEncoder.encode(out, "OK", true);
     }
 }
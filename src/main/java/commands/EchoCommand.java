@@ -1,35 +1,20 @@
 package commands;
 
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 
 import java.util.List;
 
 public class EchoCommand extends RedisCommand {
 
-    public EchoCommand(String name, List<String> args) {
-        super(name, args);
+    public EchoCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(args.size() != 1) {
-            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
-        }
-    }
-
-    @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
-    }
-
-    @Override
-    public String execute() {
-        return RespEncoder.encode(args.getFirst());
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, args.getFirst());
     }
 
 }
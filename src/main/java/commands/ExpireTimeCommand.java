@@ -0,0 +1,29 @@
+package commands;
+
+import db.InMemoryDatabase;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+/**
+ * EXPIRETIME and PEXPIRETIME: absolute Unix expiry in seconds or milliseconds, -1 for a key
+ * without expiry and -2 for a missing key.
+ */
+public class ExpireTimeCommand extends RedisCommand {
+
+    public ExpireTimeCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        long expireAt = InMemoryDatabase.getInstance().getExpireTime(args.getFirst());
+        if (expireAt < 0) {
+            RespEncoder.encode(out, expireAt);
+            return;
+        }
+        RespEncoder.encode(out, name.equals("pexpiretime") ? expireAt : expireAt / 1000);
+    }
+}
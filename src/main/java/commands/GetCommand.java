@@ -1,36 +1,26 @@
 package commands;
 
 import db.InMemoryDatabase;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 
 import java.util.List;
 
 public class GetCommand extends RedisCommand {
 
-    public GetCommand(String name, List<String> args) {
-        super(name, args);
+    public GetCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(args.size() != 1) {
-            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        Object value = InMemoryDatabase.getInstance().getStringValue(args.getFirst());
+        if (value instanceof Long number) {
+            RespEncoder.encodeBulkString(out, number);
+        } else {
+            RespEncoder.encode(out, value);
         }
     }
 
-    @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
-    }
-
-    @Override
-    public String execute() {
-        return RespEncoder.encode(InMemoryDatabase.getInstance().getStringData(args.getFirst()));
-    }
-
 }
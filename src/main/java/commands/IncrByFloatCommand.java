@@ -0,0 +1,41 @@
+package commands;
+
+import db.InMemoryDatabase;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+/**
+ * {@code INCRBYFLOAT key increment}. The command itself is propagated: replicas and the AOF repeat the
+ * same double arithmetic and arrive at the same value.
+ */
+public class IncrByFloatCommand extends RedisCommand {
+
+    public IncrByFloatCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void checkSyntax(List<ByteString> args) {
+        increment(args);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, InMemoryDatabase.getInstance().incrementByFloat(args.getFirst(), increment(args)));
+    }
+
+    private static double increment(List<ByteString> args) {
+        try {
+            double increment = ByteString.parseDouble(args.get(1).bytes());
+            if (Double.isNaN(increment) || Double.isInfinite(increment)) {
+                throw new NumberFormatException();
+            }
+            return increment;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not a valid float");
+        }
+    }
+}
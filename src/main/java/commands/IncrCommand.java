@@ -1,55 +1,46 @@
 package commands;
 
 import db.InMemoryDatabase;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 
 import java.util.List;
 
+/**
+ * {@code INCR}, {@code DECR}, {@code INCRBY} and {@code DECRBY}.
+ */
 public class IncrCommand extends RedisCommand {
 
-    public IncrCommand(String name, List<String> args) {
-        super(name, args);
+    public IncrCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(args.size() != 1) {
-            throw new IllegalArgumentException("wrong number of arguments for command");
-        }
-    }
-
-    @Override
-    public boolean isWriteCommand() {
-        return true;
+    public void checkSyntax(List<ByteString> args) {
+        delta(args);
     }
 
     @Override
-    public boolean isReplicaCommand() {
-        return false;
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encodeInteger(out, InMemoryDatabase.getInstance().incrementBy(args.getFirst(), delta(args)));
     }
 
-    @Override
-    public String execute() {
-        try {
-            String key = args.getFirst();
-            String value = InMemoryDatabase.getInstance().getStringData(key);
-            Long incrementedLongValue = value != null ? getLongValue(value) + 1 : 1;
-            InMemoryDatabase.getInstance().addStringData(key, String.valueOf(incrementedLongValue));
-            return RespEncoder.encode(incrementedLongValue);
-        } catch (IllegalArgumentException e) {
-            return RespEncoder.encode(e);
+    private long delta(List<ByteString> args) {
+        long amount = 1;
+        if (name.endsWith("by")) {
+            try {
+                amount = args.get(1).parseLong();
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("value is not an integer or out of range");
+            }
         }
-    }
-
-    private long getLongValue(String value) {
-        try {
-            long longValue = Long.parseLong(value);
-            if(longValue == Long.MAX_VALUE) {
-                throw new IllegalArgumentException("increment or decrement would overflow");
+        if (name.startsWith("decr")) {
+            if (amount == Long.MIN_VALUE) {
+                throw new IllegalArgumentException("decrement would overflow");
             }
-            return longValue;
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("value is not an integer or out of range");
+            return -amount;
         }
+        return amount;
     }
 }
@@ -1,37 +1,80 @@
 package commands;
 
 import core.RedisServer;
+import db.AppendOnlyFile;
+import db.InMemoryDatabase;
+import db.RdbLoader;
+import db.RdbSaver;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
 
 public class InfoCommand extends RedisCommand {
+    private static final String CRLF = "\r\n";
+    private static final Map<String, Supplier<String>> SECTIONS = new LinkedHashMap<>();
 
-    public InfoCommand(String name, List<String> args) {
-        super(name, args);
+    static {
+        SECTIONS.put("persistence", () -> "# Persistence" + CRLF + RdbLoader.info() + CRLF + RdbSaver.info() + CRLF + AppendOnlyFile.info());
+        SECTIONS.put("replication", () -> "# Replication" + CRLF + RedisServer.getReplicationInfo());
+        SECTIONS.put("stats", InfoCommand::stats);
+        SECTIONS.put("keyspace", InfoCommand::keyspace);
+    }
+
+    public InfoCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(args.size() > 1 ||
-                (!args.isEmpty() && !args.getFirst().equalsIgnoreCase("replication"))) {
+    public void checkSyntax(List<ByteString> args) {
+        if(args.size() > 1) {
             throw new UnsupportedOperationException("");
         }
+        if(!args.isEmpty() && !isAll(args.getFirst()) && !SECTIONS.containsKey(section(args.getFirst()))) {
+            throw new UnsupportedOperationException("unknown INFO section '" + args.getFirst() + "'");
+        }
     }
 
     @Override
-    public boolean isWriteCommand() {
-        return false;
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        if(!args.isEmpty() && !isAll(args.getFirst())) {
+            RespEncoder.encode(out, SECTIONS.get(section(args.getFirst())).get());
+            return;
+        }
+        StringBuilder info = new StringBuilder();
+        for(Supplier<String> section : SECTIONS.values()) {
+            if(!info.isEmpty()) {
+                info.append(CRLF).append(CRLF);
+            }
+            info.append(section.get());
+        }
+        RespEncoder.encode(out, info.toString());
     }
 
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
+    private static String section(ByteString arg) {
+        return arg.toString().toLowerCase(Locale.ROOT);
     }
 
-    @Override
-    public String execute() {
-        return RespEncoder.encode(RedisServer.getReplicationInfo().toString());
+    private static boolean isAll(ByteString arg) {
+        return arg.equalsIgnoreCase("all") || arg.equalsIgnoreCase("everything") || arg.equalsIgnoreCase("default");
     }
 
+    private static String stats() {
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        return "# Stats" + CRLF +
+                "expired_keys:" + database.getExpiredKeys() + CRLF +
+                "expired_stale_perc:" + String.format(Locale.ROOT, "%.2f", database.getExpiredStalePercent()) + CRLF +
+                "expired_time_cap_reached_count:" + database.getExpiredTimeCapReachedCount();
+    }
+
+    private static String keyspace() {
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        return "# Keyspace" + CRLF +
+                "db0:keys=" + database.size() + ",expires=" + database.expiresSize();
+    }
 }
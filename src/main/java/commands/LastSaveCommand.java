@@ -0,0 +1,20 @@
+package commands;
+
+import db.RdbSaver;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+public class LastSaveCommand extends RedisCommand {
+
+    public LastSaveCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, RdbSaver.lastSaveSeconds());
+    }
+}
@@ -1,40 +1,30 @@
 package commands;
 
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
+import utils.ClientState;
 
 import java.util.List;
 
 public class MultiCommand extends RedisCommand {
-    private final boolean inTransaction;
 
-    public MultiCommand(String name, List<String> args, boolean inTransaction) {
-        super(name, args);
-        this.inTransaction = inTransaction;
+    public MultiCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if(!args.isEmpty()) {
-            throw new IllegalArgumentException("wrong number of arguments for '" + name + "' command");
-        }
-    }
-
-    @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, "OK", true);
     }
 
     @Override
-    public String execute() {
-        if(inTransaction) {
-            return RespEncoder.encode(new IllegalStateException("MULTI calls can’t be nested"));
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        if(client.isInTransaction()) {
+            RespEncoder.encode(out, new IllegalStateException("MULTI calls can’t be nested"));
+            return;
         }
-        return RespEncoder.encode("OK", true);
+        RespEncoder.encode(out, "OK", true);
     }
 
 }
@@ -0,0 +1,31 @@
+package commands;
+
+import db.InMemoryDatabase;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.util.List;
+
+/**
+ * {@code OBJECT ENCODING key}: "int" for integer-encoded strings, "embstr" or "raw" for the others.
+ */
+public class ObjectCommand extends RedisCommand {
+
+    public ObjectCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void checkSyntax(List<ByteString> args) {
+        if (!args.getFirst().equalsIgnoreCase("encoding") || args.size() != 2) {
+            throw new IllegalArgumentException("unknown subcommand or wrong number of arguments for '"
+                    + args.getFirst() + "'");
+        }
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, InMemoryDatabase.getInstance().getEncoding(args.get(1)));
+    }
+}
@@ -1,41 +1,45 @@
 package commands;
 
 import core.RedisServer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import resp.RespEncoder;
+import replication.ReplicationManager;
+import resp.OutputBuffer;
+import utils.ByteString;
+import utils.ClientState;
 
 import java.util.List;
 
 public class PSyncCommand extends RedisCommand {
 
-    private static final Logger log = LoggerFactory.getLogger(PSyncCommand.class);
-
-    public PSyncCommand(String name, List<String> args) {
-        super(name, args);
+    public PSyncCommand(String name) {
+        super(name);
     }
 
     @Override
-    public String execute() {
-        String response = "FULLRESYNC " +
-                RedisServer.getReplicationInfo().getMasterReplId() +
-                " " +
-                RedisServer.getReplicationInfo().getMasterReplOffset();
-        String encodedResponse = RespEncoder.encode(response, true);
-        String encodedRdb = RedisServer.getInitialState();
-        return encodedResponse + encodedRdb;
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        psync(args, out);
     }
 
+    /**
+     * Replies to the replica and, on a master, starts streaming to it: from the requested offset, or
+     * from the snapshot it waits for when it was not able to continue.
+     */
     @Override
-    public void checkSyntax() {
-        if (getArgs().size() < 2) {
-            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        boolean continued = psync(args, out);
+        // Propagated writes follow the PSYNC reply, never precede it.
+        if (RedisServer.getReplicationInfo().getRole().equals("master")) {
+            ReplicationManager.addReplicaClient(client, !continued);
         }
     }
 
-    @Override
-    public boolean isWriteCommand() {
-        return false;
+    private static boolean psync(List<ByteString> args, OutputBuffer out) {
+        long offset;
+        try {
+            offset = args.get(1).parseLong();
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        return ReplicationManager.psync(args.get(0).toString(), offset, out);
     }
 
     @Override
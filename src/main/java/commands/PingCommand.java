@@ -1,38 +1,30 @@
 package commands;
 
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 
 import java.util.List;
 
 public class PingCommand extends RedisCommand {
 
-    public PingCommand(String name, List<String> arguments) {
-        super(name, arguments);
+    public PingCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
+    public void checkSyntax(List<ByteString> args) {
         if(args.size() > 1) {
             throw  new IllegalArgumentException("wrong number of arguments for " + name + " command");
         }
     }
 
     @Override
-    public boolean isWriteCommand() {
-        return false;
-    }
-
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
-    }
-
-    @Override
-    public String execute() {
+    public void execute(List<ByteString> args, OutputBuffer out) {
         if(args.size() == 1) {
-            return RespEncoder.encode(args.getFirst(), true);
+            RespEncoder.encode(out, args.getFirst().toString(), true);
         } else {
-            return RespEncoder.encode("PONG", true);
+            RespEncoder.encode(out, "PONG", true);
         }
     }
 }
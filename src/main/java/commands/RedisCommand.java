@@ -1,24 +1,73 @@
 package commands;
 
+import resp.OutputBuffer;
+import utils.ByteString;
+import utils.ClientState;
+
 import java.util.List;
 
+/**
+ * A command's handler. There is one per {@link CommandTable} entry, shared by every request and every
+ * thread, so handlers keep no per-request state: the arguments, without the name, are passed in.
+ */
 public abstract class RedisCommand {
 
     protected final String name;
-    protected final List<String> args;
+    // Set by the command table when the handler is registered.
+    CommandSpec spec;
 
-    public RedisCommand(String name, List<String> args) {
+    protected RedisCommand(String name) {
         this.name = name;
-        this.args = args;
     }
 
     public String getName() {
         return name;
     }
-    public List<String> getArgs() {return args;}
 
-    public abstract String execute();
-    public abstract void checkSyntax();
-    public abstract boolean isWriteCommand();
-    public abstract boolean isReplicaCommand();
+    public CommandSpec spec() {
+        return spec;
+    }
+
+    /**
+     * Runs the command and writes its reply. A command that fails throws {@link IllegalArgumentException}
+     * without having changed the keyspace, so that a failed write is neither propagated nor logged.
+     */
+    public abstract void execute(List<ByteString> args, OutputBuffer out);
+
+    /**
+     * Runs the command on behalf of {@code client}. Commands that act on the connection itself, such as
+     * WAIT parking it, override this; inside EXEC only {@link #execute(List, OutputBuffer)} is used.
+     */
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        execute(args, out);
+    }
+
+    /**
+     * Checks the argument count against the command table, then the command's own syntax.
+     */
+    public final void validate(List<ByteString> args) {
+        spec.checkArity(args.size() + 1);
+        checkSyntax(args);
+    }
+
+    /**
+     * Rejects arguments the arity alone does not rule out; the count is already checked.
+     */
+    public void checkSyntax(List<ByteString> args) {
+    }
+
+    public boolean isWriteCommand() {
+        return spec.hasFlag(CommandSpec.Flag.WRITE);
+    }
+
+    public boolean isReplicaCommand() {
+        return false;
+    }
+
+    /**
+     * Whether the command may run while the dataset is still being loaded; most reply -LOADING.
+     */
+    public boolean isAllowedWhileLoading() {
+        return spec.hasFlag(CommandSpec.Flag.LOADING);
+    }
 }
@@ -1,30 +1,65 @@
 package commands;
 
+import core.RedisServer;
+import replication.ReplicationManager;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
+import utils.ClientState;
+import utils.ClientType;
 
 import java.util.List;
 
 public class ReplConfCommand extends RedisCommand {
 
-    public ReplConfCommand(String name, List<String> args) {
-        super(name, args);
+    public ReplConfCommand(String name) {
+        super(name);
     }
 
     @Override
-    public String execute() {
-        return RespEncoder.encode("OK", true);
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        RespEncoder.encode(out, "OK", true);
     }
 
+    /**
+     * ACK and GETACK travel inside the replication link and are never answered with +OK: a replica
+     * reports the offset it has processed, and the master records it without a reply.
+     */
     @Override
-    public void checkSyntax() {
-        if (getArgs().size() == 1) {
-            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        switch (args.getFirst().toString().toLowerCase()) {
+            case "ack" -> {
+                if (client.getClientType() == ClientType.REPLICA) {
+                    ReplicationManager.acknowledge(client, parseLong(args.get(1)));
+                }
+            }
+            case "getack" -> {
+                if (client.getClientType() == ClientType.MASTER) {
+                    long offset = RedisServer.getReplicationInfo().getMasterReplOffset();
+                    RespEncoder.encode(out, List.of("REPLCONF", "ACK", String.valueOf(offset)));
+                }
+            }
+            case "listening-port" -> {
+                client.setReplicaListeningPort((int) parseLong(args.get(1)));
+                execute(args, out);
+            }
+            default -> execute(args, out);
+        }
+    }
+
+    private static long parseLong(ByteString value) {
+        try {
+            return value.parseLong();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
         }
     }
 
     @Override
-    public boolean isWriteCommand() {
-        return false;
+    public void checkSyntax(List<ByteString> args) {
+        if (args.size() == 1) {
+            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
+        }
     }
 
     @Override
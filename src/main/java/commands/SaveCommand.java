@@ -0,0 +1,28 @@
+package commands;
+
+import db.RdbSaver;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+
+import java.io.IOException;
+import java.util.List;
+
+public class SaveCommand extends RedisCommand {
+
+    public SaveCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        try {
+            RdbSaver.save();
+            RespEncoder.encode(out, "OK", true);
+        } catch (IllegalStateException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error saving DB on disk: " + e.getMessage());
+        }
+    }
+}
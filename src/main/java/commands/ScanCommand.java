@@ -0,0 +1,86 @@
+package commands;
+
+import db.InMemoryDatabase;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+import utils.GlobPattern;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code SCAN cursor [MATCH pattern] [COUNT count] [TYPE type]}: replies with the cursor for the next
+ * call, "0" once the iteration is complete, and the keys found in this step. Each call does bounded
+ * work, unlike KEYS; see {@link InMemoryDatabase#scan} for what the iteration guarantees.
+ */
+public class ScanCommand extends RedisCommand {
+    private static final int DEFAULT_COUNT = 10;
+    private static final Set<String> TYPE_NAMES = Set.of("string", "list", "hash", "set", "zset", "json", "stream");
+
+    private record Options(long cursor, byte[] pattern, int count, String type) {
+    }
+
+    public ScanCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void checkSyntax(List<ByteString> args) {
+        options(args);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        Options options = options(args);
+        List<ByteString> keys = new ArrayList<>();
+        long next = InMemoryDatabase.getInstance().scan(options.cursor(), options.count(), options.pattern(), options.type(), keys);
+        RespEncoder.encodeArrayHeader(out, 2);
+        RespEncoder.encodeBulkString(out, next);
+        RespEncoder.encode(out, keys);
+    }
+
+    private static Options options(List<ByteString> args) {
+        long cursor;
+        try {
+            cursor = Long.parseUnsignedLong(args.getFirst().toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        byte[] pattern = null;
+        int count = DEFAULT_COUNT;
+        String type = null;
+        for (int i = 1; i < args.size(); i += 2) {
+            if (i + 1 == args.size()) {
+                throw new IllegalArgumentException("syntax error");
+            }
+            ByteString value = args.get(i + 1);
+            switch (args.get(i).toString().toUpperCase()) {
+                case "MATCH" -> pattern = GlobPattern.matchesAll(value.bytes()) ? null : value.bytes();
+                case "COUNT" -> count = parseCount(value);
+                case "TYPE" -> {
+                    type = value.toString().toLowerCase();
+                    if (!TYPE_NAMES.contains(type)) {
+                        throw new IllegalArgumentException("unknown type name '" + value + "'");
+                    }
+                }
+                default -> throw new IllegalArgumentException("syntax error");
+            }
+        }
+        return new Options(cursor, pattern, count, type);
+    }
+
+    private static int parseCount(ByteString value) {
+        long count;
+        try {
+            count = value.parseLong();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("syntax error");
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+}
@@ -1,75 +1,87 @@
 package commands;
 
 import db.InMemoryDatabase;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
+import utils.Clock;
 
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalUnit;
 import java.util.List;
 import java.util.Map;
 
 public class SetCommand extends RedisCommand {
-    private long duration;
-    private static final Map<String, TemporalUnit> TTL_UNITS = Map.of(
-            "EX", ChronoUnit.SECONDS,
-            "PX", ChronoUnit.MILLIS
+    private static final Map<String, Long> TTL_UNIT_MILLIS = Map.of(
+            "EX", 1000L,
+            "PX", 1L,
+            "EXAT", 1000L,
+            "PXAT", 1L
     );
 
-    public SetCommand(String name, List<String> args) {
-        super(name, args);
+    public SetCommand(String name) {
+        super(name);
     }
 
     @Override
-    public void checkSyntax() {
-        if (args.size() < 2) {
-            throw new IllegalArgumentException("wrong number of arguments for " + name + " command");
-        }
+    public void checkSyntax(List<ByteString> args) {
         if (args.size() > 2) {
             if (args.size() != 4) {
                 throw new IllegalArgumentException("syntax error");
             }
-            if (!TTL_UNITS.containsKey(args.get(2).toUpperCase())) {
-                throw new IllegalArgumentException("invalid expire unit in '" + name + "' command");
-            }
-            this.duration = parseDuration(args.get(3));
+            durationMillis(args);
         }
     }
 
-    @Override
-    public boolean isWriteCommand() {
-        return true;
+    public static boolean hasExpiry(List<ByteString> args) {
+        return args.size() > 2;
     }
 
-    @Override
-    public boolean isReplicaCommand() {
-        return false;
-    }
 
     @Override
-    public String execute() {
-        String key = args.get(0);
-        String value = args.get(1);
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        ByteString key = args.get(0);
+        byte[] value = args.get(1).bytes();
         if (args.size() == 2) {
             InMemoryDatabase.getInstance().addStringData(key, value);
-            return RespEncoder.encode("OK", true);
+            RespEncoder.encode(out, "OK", true);
+            return;
+        }
+        // Relative TTLs are resolved against one reading of the clock, which other loops keep advancing.
+        long duration = durationMillis(args);
+        long now = Clock.millis();
+        if (!isAbsolute(args) && duration > Long.MAX_VALUE - now) {
+            throw new IllegalArgumentException("invalid expire time in 'set' command");
+        }
+        InMemoryDatabase.getInstance().addTemporaryStringData(key, value, isAbsolute(args) ? duration : now + duration);
+        RespEncoder.encode(out, "OK", true);
+    }
+
+    private static boolean isAbsolute(List<ByteString> args) {
+        return args.get(2).toString().toUpperCase().endsWith("AT");
+    }
+
+    // The TTL argument in milliseconds, relative or absolute depending on the unit.
+    private static long durationMillis(List<ByteString> args) {
+        String unit = args.get(2).toString().toUpperCase();
+        Long unitMillis = TTL_UNIT_MILLIS.get(unit);
+        if (unitMillis == null) {
+            throw new IllegalArgumentException("invalid expire unit in 'set' command");
+        }
+        long duration = parseDuration(args.get(3));
+        if (duration > Long.MAX_VALUE / unitMillis) {
+            throw new IllegalArgumentException("invalid expire time in 'set' command");
         }
-        String ttlUnit = args.get(2).toUpperCase();
-        InMemoryDatabase.getInstance().addTemporaryStringData(
-                key, value, LocalDateTime.now().plus(duration, TTL_UNITS.get(ttlUnit))
-        );
-        return RespEncoder.encode("OK", true);
+        return duration * unitMillis;
     }
 
-    private long parseDuration(String durationStr) {
+    private static long parseDuration(ByteString durationStr) {
         try {
-            long duration = Long.parseLong(durationStr);
+            long duration = durationStr.parseLong();
             if (duration <= 0) {
-                throw new IllegalArgumentException("invalid expire time in '" + name + "' command: must be positive");
+                throw new IllegalArgumentException("invalid expire time in 'set' command: must be positive");
             }
             return duration;
         } catch (NumberFormatException e) {
-            throw new IllegalArgumentException("invalid expire time in '" + name + "' command");
+            throw new IllegalArgumentException("invalid expire time in 'set' command");
         }
     }
 }
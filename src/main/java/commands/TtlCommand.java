@@ -0,0 +1,31 @@
+package commands;
+
+import db.InMemoryDatabase;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+import utils.Clock;
+
+import java.util.List;
+
+/**
+ * TTL and PTTL: remaining time to live in seconds or milliseconds, -1 for a key without expiry
+ * and -2 for a missing key.
+ */
+public class TtlCommand extends RedisCommand {
+
+    public TtlCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        long expireAt = InMemoryDatabase.getInstance().getExpireTime(args.getFirst());
+        if (expireAt < 0) {
+            RespEncoder.encode(out, expireAt);
+            return;
+        }
+        long remaining = Math.max(0, expireAt - Clock.millis());
+        RespEncoder.encode(out, name.equals("pttl") ? remaining : (remaining + 500) / 1000);
+    }
+}
@@ -0,0 +1,73 @@
+package commands;
+
+import core.RedisServer;
+import replication.ReplicationManager;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import utils.ByteString;
+import utils.ClientState;
+
+import java.util.List;
+
+/**
+ * {@code WAIT numreplicas timeout}: replies with the number of replicas that acknowledged every write
+ * made so far, parking the client until {@code numreplicas} have or the timeout (milliseconds, 0 for
+ * none) expires.
+ */
+public class WaitCommand extends RedisCommand {
+
+    public WaitCommand(String name) {
+        super(name);
+    }
+
+    @Override
+    public void checkSyntax(List<ByteString> args) {
+        if (timeoutMillis(args) < 0) {
+            throw new IllegalArgumentException("timeout is negative");
+        }
+    }
+
+    /**
+     * Inside EXEC the client cannot be parked, so this only counts the replicas already caught up.
+     */
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out) {
+        checkRole();
+        long offset = RedisServer.getReplicationInfo().getMasterReplOffset();
+        RespEncoder.encode(out, ReplicationManager.acknowledgedReplicas(offset));
+    }
+
+    @Override
+    public void execute(List<ByteString> args, OutputBuffer out, ClientState client) {
+        checkRole();
+        long offset = RedisServer.getReplicationInfo().getMasterReplOffset();
+        int acknowledged = ReplicationManager.acknowledgedReplicas(offset);
+        if (acknowledged >= numReplicas(args)) {
+            RespEncoder.encode(out, acknowledged);
+            return;
+        }
+        ReplicationManager.waitForReplicas(client, offset, numReplicas(args), timeoutMillis(args));
+    }
+
+    private void checkRole() {
+        if (RedisServer.getReplicationInfo().getRole().equals("slave")) {
+            throw new IllegalArgumentException("WAIT cannot be used with replica instances.");
+        }
+    }
+
+    private static long numReplicas(List<ByteString> args) {
+        return parseLong(args.get(0));
+    }
+
+    private static long timeoutMillis(List<ByteString> args) {
+        return parseLong(args.get(1));
+    }
+
+    private static long parseLong(ByteString value) {
+        try {
+            return value.parseLong();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
+    }
+}
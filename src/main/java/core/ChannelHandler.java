@@ -0,0 +1,12 @@
+package core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment of a key that is not a client connection, such as a replica's link to its master during
+ * the handshake. The loop hands it every readiness event of the key.
+ */
+public interface ChannelHandler {
+    void handle(SelectionKey key) throws IOException;
+}
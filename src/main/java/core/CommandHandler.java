@@ -1,37 +1,154 @@
 package core;
 
 import commands.CommandFactory;
+import commands.CommandSpec;
+import commands.CommandTable;
 import commands.RedisCommand;
+import db.AppendOnlyFile;
+import db.InMemoryDatabase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import replication.ReplicationManager;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import utils.ByteString;
 import utils.ClientState;
 import utils.ClientType;
 import utils.ParsedCommand;
 
-import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public final class CommandHandler {
     private static final Set<String> transactionalCommandNames = Set.of("multi", "exec", "discard");
+    private static final int ALL_SHARDS = -1;
+    private static final int NO_SHARD = -2;
     private static final Logger log = LoggerFactory.getLogger(CommandHandler.class);
+    // A single-key command runs under the lock of its key's shard, so commands from different I/O
+    // threads on different shards run in parallel. Everything else takes all of the locks, in order,
+    // and runs alone as every command did with a single shard.
+    private static final ReentrantLock[] shardLocks = newShardLocks(InMemoryDatabase.getInstance().shardCount());
+    // Orders the writes of different shards into one replication stream and AOF.
+    private static final ReentrantLock propagationLock = new ReentrantLock();
+
+    public static void handleCommands(List<ParsedCommand> parsedCommands, ClientState state) {
+        if(parsedCommands.isEmpty()) {
+            return;
+        }
+        if(state.isBlocked()) {
+            state.defer(parsedCommands);
+            return;
+        }
+        int held = NO_SHARD;
+        try {
+            for (int i = 0; i < parsedCommands.size(); i++) {
+                ParsedCommand command = parsedCommands.get(i);
+                // Consecutive commands under the same locks keep holding them.
+                int shard = lockedShard(command, state);
+                if(shard != held) {
+                    unlock(held);
+                    lock(shard);
+                    held = shard;
+                }
+                handleCommand(command, state);
+                // A replica's offset counts every byte of the master's stream it has processed.
+                if (state.getClientType() == ClientType.MASTER) {
+                    RedisServer.getReplicationInfo().advanceMasterReplOffset(command.encodedLength());
+                }
+                if (state.isBlocked()) {
+                    state.defer(parsedCommands.subList(i + 1, parsedCommands.size()));
+                    break;
+                }
+            }
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Runs work that touches the keyspace outside of a client command, such as the server cron.
+     */
+    public static void runExclusively(Runnable task) {
+        lock(ALL_SHARDS);
+        try {
+            task.run();
+        } finally {
+            unlock(ALL_SHARDS);
+        }
+    }
+
+    private static ReentrantLock[] newShardLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    // A replica applies its master's stream in order with everything else, and a transaction runs alone.
+    private static int lockedShard(ParsedCommand command, ClientState state) {
+        if(shardLocks.length == 1 || command.args().isEmpty() || state.isInTransaction()
+                || state.getClientType() == ClientType.MASTER) {
+            return ALL_SHARDS;
+        }
+        CommandSpec spec = CommandTable.lookup(command.name());
+        if(spec == null || !spec.isSingleKey()) {
+            return ALL_SHARDS;
+        }
+        return InMemoryDatabase.getInstance().shardOf(command.args().get(0));
+    }
+
+    private static void lock(int shard) {
+        if(shard == ALL_SHARDS) {
+            for (ReentrantLock lock : shardLocks) {
+                lock.lock();
+            }
+        } else if(shard != NO_SHARD) {
+            shardLocks[shard].lock();
+        }
+    }
+
+    private static void unlock(int shard) {
+        if(shard == ALL_SHARDS) {
+            for (int i = shardLocks.length - 1; i >= 0; i--) {
+                shardLocks[i].unlock();
+            }
+        } else if(shard != NO_SHARD) {
+            shardLocks[shard].unlock();
+        }
+    }
+
+    // Holding only a shard lock, writers on other shards may be propagating at the same time.
+    private static void propagate(ParsedCommand command) {
+        propagationLock.lock();
+        try {
+            ReplicationManager.propagateToReplicas(command);
+            AppendOnlyFile.feed(command);
+        } finally {
+            propagationLock.unlock();
+        }
+    }
 
     public static void handleCommand(ParsedCommand parsedCommand, ClientState state) {
-        Deque<String> responseQueue = state.responseQueue();
+        OutputBuffer out = state.outputBuffer();
         if(parsedCommand == null) {
             return;
         }
+        long replyStart = out.size();
         try {
-            RedisCommand command = CommandFactory.getCommand(parsedCommand, state.isInTransaction());
+            RedisCommand command = CommandFactory.getCommand(parsedCommand);
+            List<ByteString> args = parsedCommand.args();
             try {
-                command.checkSyntax();
+                command.validate(args);
+                if (RedisServer.isLoading() && !command.isAllowedWhileLoading()
+                        && state.getClientType() != ClientType.MASTER) {
+                    RespEncoder.encodeError(out, "LOADING", "Redis is loading the dataset in memory");
+                    return;
+                }
                 if (command.isReplicaCommand()) {
-                    if (state.getClientType() != ClientType.REPLICA) {
+                    if (state.getClientType() == ClientType.CLIENT) {
                         state.setClientType(ClientType.REPLICA);
-                        ReplicationManager.addReplicaClient(state);
                     }
                 }
                 if (command.isWriteCommand()) {
@@ -41,54 +158,78 @@ public final class CommandHandler {
                 }
                 if(!state.isInTransaction()) {
                     if(RedisServer.getReplicationInfo().getRole().equals("master")) {
+                        command.execute(args, out, state);
+                        // Only writes that went through are replicated and logged.
                         if(command.isWriteCommand()) {
                             log.info("Write command received.");
-                            ReplicationManager.propagateToReplicas(command);
+                            propagate(parsedCommand);
                         }
-                        responseQueue.offer(command.execute());
-                        if(command.getName().equalsIgnoreCase("multi")) {
+                        if(command.getName().equals("multi")) {
                             state.setInTransaction();
                         }
                     } else {
-                        String executedResponse = command.execute();
-                        if(!command.isWriteCommand()) {
-                            responseQueue.offer(executedResponse);
+                        command.execute(args, out, state);
+                        if(command.isWriteCommand()) {
+                            AppendOnlyFile.feed(parsedCommand);
+                            out.truncate(replyStart);
                         }
                     }
                 } else {
-                    String commandName = command.getName().toLowerCase();
+                    String commandName = command.getName();
                     if(!transactionalCommandNames.contains(commandName)) {
-                        state.transactionQueue().offer(command);
-                        responseQueue.offer(RespEncoder.encode("QUEUED", true));
+                        state.transactionQueue().offer(parsedCommand);
+                        RespEncoder.encode(out, "QUEUED", true);
                     } else if(commandName.equals("multi")) {
-                        responseQueue.offer(command.execute());
+                        command.execute(args, out, state);
                     } else if(commandName.equals("discard")) {
-                        responseQueue.offer(command.execute());
+                        command.execute(args, out, state);
                         endTransaction(state);
                     } else if(commandName.equals("exec")) {
-                        List<String> encodedCommands = new ArrayList<>();
+                        RespEncoder.encodeArrayHeader(out, state.transactionQueue().size());
+                        boolean loggedMulti = false;
                         while (!state.transactionQueue().isEmpty()) {
-                            RedisCommand queuedCmd = state.transactionQueue().poll();
-                            String txnResult = queuedCmd.execute();
-                            encodedCommands.add(txnResult);
-                            if (queuedCmd.isWriteCommand()
+                            ParsedCommand queuedCmd = state.transactionQueue().poll();
+                            RedisCommand queuedHandler = CommandFactory.getCommand(queuedCmd);
+                            if (executeQueued(queuedHandler, queuedCmd.args(), out) && queuedHandler.isWriteCommand()
                                     && RedisServer.getReplicationInfo().getRole().equals("master")
                                     && state.getClientType() == ClientType.CLIENT) {
                                 ReplicationManager.propagateToReplicas(queuedCmd);
+                                if (!loggedMulti) {
+                                    AppendOnlyFile.feedTransactionBoundary("MULTI");
+                                    loggedMulti = true;
+                                }
+                                AppendOnlyFile.feed(queuedCmd);
                             }
                         }
-                        responseQueue.offer(RespEncoder.encodeTransaction(encodedCommands));
+                        if (loggedMulti) {
+                            AppendOnlyFile.feedTransactionBoundary("EXEC");
+                        }
                         endTransaction(state);
                     }
                 }
             } catch (IllegalArgumentException e) {
-                responseQueue.offer(RespEncoder.encode(e));
-                if(state.isInTransaction() && !transactionalCommandNames.contains(command.getName().toLowerCase())) {
+                out.truncate(replyStart);
+                RespEncoder.encode(out, e);
+                if(state.isInTransaction() && !transactionalCommandNames.contains(command.getName())) {
                     endTransaction(state);
                 }
             }
         } catch(RuntimeException e) {
-            responseQueue.offer(RespEncoder.encode(e));
+            out.truncate(replyStart);
+            RespEncoder.encode(out, e);
+        }
+    }
+
+    // A failing command inside EXEC replies with its own error; the array header is already out.
+    private static boolean executeQueued(RedisCommand command, List<ByteString> args, OutputBuffer out) {
+        long replyStart = out.size();
+        try {
+            command.execute(args, out);
+            return true;
+        } catch (IllegalArgumentException e) {
+            out.truncate(replyStart);
+            RespEncoder.encode(out, e);
+            return false;
         }
     }
 
@@ -0,0 +1,154 @@
+package core;
+
+import java.util.Set;
+
+/**
+ * Validation for configuration values, shared by the command line and CONFIG SET. Each parser returns the
+ * normalized string kept in the properties map, or throws {@link IllegalArgumentException}.
+ */
+public final class ConfigValues {
+    private static final long MIN_MEMORY_LIMIT = 1024;
+    private static final long MAX_REPL_BACKLOG_SIZE = Integer.MAX_VALUE - 8;
+    // Sized at startup; changing them on a running server would leave it inconsistent.
+    private static final Set<String> IMMUTABLE = Set.of("port", "io-threads", "io-mode", "keyspace-shards", "replicaof");
+
+    private ConfigValues() {
+    }
+
+    public static boolean isImmutable(String name) {
+        return IMMUTABLE.contains(name);
+    }
+
+    public static String normalize(String name, String value) {
+        return switch (name) {
+            case "hz" -> String.valueOf(parseRange(name, value, 1, 500));
+            case "active-expire-effort" -> String.valueOf(parseRange(name, value, 1, 10));
+            case "repl-diskless-sync-delay" -> String.valueOf(parseRange(name, value, 0, 3600));
+            case "client-query-buffer-limit" -> String.valueOf(parseMemory(value));
+            case "repl-backlog-size" -> {
+                long size = parseMemory(value);
+                if (size > MAX_REPL_BACKLOG_SIZE) {
+                    throw new IllegalArgumentException(name + " must be at most " + MAX_REPL_BACKLOG_SIZE + " bytes");
+                }
+                yield String.valueOf(size);
+            }
+            case "save" -> parseSavePoints(value);
+            case "client-output-buffer-limit-replica" -> parseOutputBufferLimit(value);
+            case "appendonly", "async-loading" -> parseChoice(name, value, "yes", "no");
+            case "appendfsync" -> parseChoice(name, value, "always", "everysec", "no");
+            case "io-mode" -> parseChoice(name, value, "event-loop", "virtual-threads");
+            case "rdb-load-threads" -> String.valueOf(parseRange(name, value, 0, 64));
+            case "keyspace-shards" -> String.valueOf(parseRange(name, value, 1, 1024));
+            case "io-threads" -> String.valueOf(parseRange(name, value, 1, Integer.MAX_VALUE));
+            default -> value;
+        };
+    }
+
+    public static int parseRange(String name, String valueStr, int min, int max) {
+        int value;
+        try {
+            value = Integer.parseInt(valueStr.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer");
+        }
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+        }
+        return value;
+    }
+
+    public static String parseChoice(String name, String value, String... choices) {
+        String normalized = value.toLowerCase();
+        for (String choice : choices) {
+            if (choice.equals(normalized)) {
+                return normalized;
+            }
+        }
+        throw new IllegalArgumentException(name + " must be one of " + String.join(", ", choices));
+    }
+
+    /**
+     * Validates "seconds changes [seconds changes ...]"; an empty string disables snapshotting.
+     */
+    public static String parseSavePoints(String savePoints) {
+        String value = savePoints.trim();
+        if (value.isEmpty()) {
+            return value;
+        }
+        String[] parts = value.split("\\s+");
+        if (parts.length % 2 != 0) {
+            throw new IllegalArgumentException("save expects pairs of <seconds> <changes>");
+        }
+        for (String part : parts) {
+            if (parseLong("save", part) < 0) {
+                throw new IllegalArgumentException("save points must not be negative");
+            }
+        }
+        return String.join(" ", parts);
+    }
+
+    /**
+     * Parses the save points kept by {@link #parseSavePoints(String)} into seconds and changes pairs.
+     */
+    public static long[] savePoints(String savePoints) {
+        String value = parseSavePoints(savePoints);
+        if (value.isEmpty()) {
+            return new long[0];
+        }
+        String[] parts = value.split(" ");
+        long[] points = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            points[i] = Long.parseLong(parts[i]);
+        }
+        return points;
+    }
+
+    /**
+     * Validates "<hard> <soft> <soft-seconds>" for the replica class. A zero limit disables that check.
+     */
+    public static String parseOutputBufferLimit(String limit) {
+        String[] parts = limit.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("client-output-buffer-limit expects <hard> <soft> <soft-seconds>");
+        }
+        long hard = parts[0].equals("0") ? 0 : parseMemory(parts[0]);
+        long soft = parts[1].equals("0") ? 0 : parseMemory(parts[1]);
+        long softSeconds = parseLong("client-output-buffer-limit", parts[2]);
+        if (softSeconds < 0) {
+            throw new IllegalArgumentException("client-output-buffer-limit soft seconds must not be negative");
+        }
+        return hard + " " + soft + " " + softSeconds;
+    }
+
+    /**
+     * Parses a byte count with an optional kb, mb or gb suffix.
+     */
+    public static long parseMemory(String memoryStr) {
+        String value = memoryStr.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("gb")) {
+            unit = 1024L * 1024 * 1024;
+        } else if (value.endsWith("mb")) {
+            unit = 1024L * 1024;
+        } else if (value.endsWith("kb")) {
+            unit = 1024L;
+        }
+        long amount = parseLong("memory limit", unit == 1 ? value : value.substring(0, value.length() - 2));
+        if (amount > Long.MAX_VALUE / unit) {
+            throw new IllegalArgumentException("Memory limit " + memoryStr + " is out of range");
+        }
+        long bytes = amount * unit;
+        if (bytes < MIN_MEMORY_LIMIT) {
+            throw new IllegalArgumentException("Memory limit must be at least " + MIN_MEMORY_LIMIT + " bytes");
+        }
+        return bytes;
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be an integer, got '" + value + "'");
+        }
+    }
+}
@@ -2,26 +2,36 @@ package core;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import resp.RespParser;
+import replication.ReplicationManager;
+import resp.RespEncoder;
 import utils.ClientState;
 import utils.ClientType;
-import utils.ParsedCommand;
+import utils.Clock;
 
 import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 public class EventLoop {
 
     public static class Builder {
         private Selector selector;
         private AtomicBoolean isRunning;
+        private Consumer<SocketChannel> connectionDispatcher;
+        private Runnable cronTask;
+        private LongSupplier cronIntervalMillis;
+        private Runnable beforeSleep;
 
         public Builder selector(Selector selector) {
             this.selector = selector;
@@ -33,6 +43,25 @@ public class EventLoop {
             return this;
         }
 
+        public Builder connectionDispatcher(Consumer<SocketChannel> connectionDispatcher) {
+            this.connectionDispatcher = connectionDispatcher;
+            return this;
+        }
+
+        public Builder cronTask(Runnable cronTask, LongSupplier cronIntervalMillis) {
+            this.cronTask = cronTask;
+            this.cronIntervalMillis = cronIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Runs at the end of every loop iteration, before the loop blocks in select again.
+         */
+        public Builder beforeSleep(Runnable beforeSleep) {
+            this.beforeSleep = beforeSleep;
+            return this;
+        }
+
         public EventLoop build() {
             return new EventLoop(this);
         }
@@ -40,23 +69,163 @@ public class EventLoop {
 
     private final Selector selector;
     private final AtomicBoolean isRunning;
+    private final Consumer<SocketChannel> connectionDispatcher;
+    private final Queue<Runnable> pendingTasks;
+    // Clients with replies or replication traffic to send at the end of this iteration; loop thread only.
+    private final ArrayDeque<ClientState> pendingWrites = new ArrayDeque<>();
+    private final Runnable cronTask;
+    private final LongSupplier cronIntervalMillis;
+    private final Runnable beforeSleep;
+    private long nextCronAt;
+    private volatile Thread loopThread;
     private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
 
     private EventLoop(Builder builder) {
         selector = builder.selector;
         isRunning = builder.isRunning;
+        connectionDispatcher = builder.connectionDispatcher != null ? builder.connectionDispatcher : this::register;
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        cronTask = builder.cronTask;
+        cronIntervalMillis = builder.cronIntervalMillis;
+        beforeSleep = builder.beforeSleep;
     }
 
     public void start() {
         logger.info("Starting event loop");
+        loopThread = Thread.currentThread();
+        nextCronAt = System.nanoTime() + cronIntervalNanos();
         while(isRunning.get()) {
             try {
-                int readyOps = selector.select(RedisServer.currentConfig().timeout());
+                int readyOps = selector.select(selectTimeout());
+                Clock.update();
+                runPendingTasks();
                 if(readyOps > 0) {
                     processSelectedKeys();
                 }
+                runCronIfDue();
+                if(beforeSleep != null) {
+                    beforeSleep.run();
+                }
+                handlePendingWrites();
             } catch (IOException e) {
                 logger.error("Error while starting event loop: ", e);
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (RuntimeException e) {
+                // A bug in one client's or task's work must not stop the loop serving everyone else.
+                logger.error("Error in event loop iteration: ", e);
+            }
+        }
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Runs the task on this loop's thread. Other threads must go through here to touch
+     * state owned by this loop (its selector, keys and client buffers).
+     */
+    public void execute(Runnable task) {
+        if(inEventLoop()) {
+            task.run();
+            return;
+        }
+        pendingTasks.offer(task);
+        selector.wakeup();
+    }
+
+    public void register(SocketChannel client) {
+        register(client, new ClientState(
+                RedisServer.getBufferPool(),
+                new LinkedList<>()
+        ));
+    }
+
+    public void register(SocketChannel client, ClientState clientState) {
+        execute(() -> {
+            try {
+                client.configureBlocking(false);
+                // Replies go out once per loop iteration; Nagle would only hold the last one back.
+                client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                clientState.setOwner(this);
+                SelectionKey key = client.register(selector, SelectionKey.OP_READ, clientState);
+                clientState.setSelectionKey(key);
+                logger.debug("Client {} registered for reading", getClientInfo(client));
+                // Input read before the hand-over, such as the master's stream right behind a sync reply, or
+                // the commands that made a virtual-thread connection move here.
+                if(clientState.hasDeferredCommands() || clientState.hasBufferedInput()) {
+                    resume(clientState);
+                }
+            } catch (IOException e) {
+                logger.error("Error while registering client connection: ", e);
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    logger.debug("Error while closing client connection", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a channel whose events go to {@code handler}. Must be called on this loop's thread.
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Turns a key registered with a {@link ChannelHandler} into a client connection, processing any
+     * input already in the client's read buffer. Must be called on this loop's thread.
+     */
+    public void adopt(SelectionKey key, ClientState clientState) {
+        clientState.setOwner(this);
+        clientState.setSelectionKey(key);
+        key.attach(clientState);
+        key.interestOps(SelectionKey.OP_READ);
+        if(clientState.hasBufferedInput()) {
+            processBufferedInput(key, clientState);
+        }
+    }
+
+    private long selectTimeout() {
+        long timeout = RedisServer.currentConfig().timeout();
+        if(cronTask == null) {
+            return timeout;
+        }
+        long untilCron = (nextCronAt - System.nanoTime()) / 1_000_000L;
+        return Math.max(1, Math.min(timeout, untilCron));
+    }
+
+    private long cronIntervalNanos() {
+        return cronTask == null ? 0 : cronIntervalMillis.getAsLong() * 1_000_000L;
+    }
+
+    private void runCronIfDue() {
+        if(cronTask == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if(now - nextCronAt < 0) {
+            return;
+        }
+        nextCronAt = now + cronIntervalNanos();
+        try {
+            cronTask.run();
+        } catch (RuntimeException e) {
+            logger.error("Error while running server cron: ", e);
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error while running event loop task: ", e);
             }
         }
     }
@@ -66,6 +235,10 @@ public class EventLoop {
         selector.wakeup();
     }
 
+    public void close() throws IOException {
+        selector.close();
+    }
+
     public void processSelectedKeys() {
         Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
 
@@ -77,14 +250,19 @@ public class EventLoop {
                 if(!key.isValid()) {
                     continue;
                 }
-                if(key.isAcceptable()) {
+                if(key.attachment() instanceof ChannelHandler handler) {
+                    handler.handle(key);
+                } else if(key.isAcceptable()) {
                     logger.info("Accepting new connection");
                     acceptConnection(key);
-                } else if(key.isReadable()) {
-                    logger.info("Reading from client: {}", getClientInfo(key));
-                    read(key);
-                } else if(key.isWritable()) {
-                    write(key);
+                } else {
+                    if(key.isReadable()) {
+                        logger.debug("Reading from client: {}", key.channel());
+                        read(key);
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        write(key);
+                    }
                 }
             } catch (IOException e) {
                 logger.error("Failed to configure new client connection: ", e);
@@ -96,48 +274,58 @@ public class EventLoop {
     public void acceptConnection(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         SocketChannel client = serverChannel.accept();
-
-        logger.info("Accepted connection from {}", getClientInfo(key));
-
-        try {
-            client.configureBlocking(false);
-            ClientState clientState = new ClientState(
-                    ByteBuffer.allocateDirect(RedisServer.currentConfig().bufferSize()),
-                    ByteBuffer.allocateDirect(RedisServer.currentConfig().bufferSize()),
-                    new ArrayDeque<>(),
-                    new LinkedList<>()
-            );
-            client.register(selector, SelectionKey.OP_READ, clientState);
-            logger.debug("Client {} registered for reading", getClientInfo(key));
-        } catch (IOException e) {
-            logger.error("Error while accepting client connection: ", e);
-            client.close();
+        if(client == null) {
+            return;
         }
+
+        logger.info("Accepted connection from {}", getClientInfo(client));
+        connectionDispatcher.accept(client);
     }
 
     public void read(SelectionKey key) throws IOException {
         SocketChannel client = (SocketChannel) key.channel();
         ClientState state = (ClientState) key.attachment();
         ByteBuffer readBuffer = state.readBuffer();
-        Deque<String> responseQueue = state.responseQueue();
 
         try {
-            int bytesRead = client.read(readBuffer);
-            readBuffer.flip();
-            if (bytesRead == -1) {
-                logger.info("Client {} disconnected", getClientInfo(key));
-                closeConnection(key);
-                return;
-            }
-            if (bytesRead > 0) {
-                List<Optional<ParsedCommand>> parsedCommands = RespParser.parseCommand(readBuffer);
-                for (Optional<ParsedCommand> command : parsedCommands) {
-                    CommandHandler.handleCommand(command.orElse(null), state);
+            while (true) {
+                int bytesRead = client.read(readBuffer);
+                if (bytesRead == -1) {
+                    logger.info("Client {} disconnected", getClientInfo(key));
+                    closeConnection(key);
+                    return;
+                }
+                if (bytesRead == 0) {
+                    break;
                 }
+                readBuffer.flip();
+                CommandHandler.handleCommands(state.parser().parse(readBuffer), state);
                 readBuffer.compact();
-                if (!responseQueue.isEmpty()) {
-                    key.interestOps(SelectionKey.OP_WRITE);
+                if (replyToProtocolError(state)) {
+                    return;
                 }
+                if (state.exceedsQueryBufferLimit(RedisServer.queryBufferLimit())) {
+                    logger.warn("Closing client {} that reached the query buffer limit", getClientInfo(key));
+                    closeConnection(key);
+                    return;
+                }
+                // A blocked client is not read from until it is released.
+                if (state.isBlocked() || readBuffer.hasRemaining()) {
+                    break;
+                }
+                // The buffer is full of an incomplete frame, so grow it and keep draining the socket.
+                if (!state.growReadBuffer(RedisServer.queryBufferLimit())) {
+                    logger.warn("Closing client {} that reached the query buffer limit", getClientInfo(key));
+                    closeConnection(key);
+                    return;
+                }
+                readBuffer = state.readBuffer();
+            }
+            state.releaseReadBufferIfIdle();
+            if (!state.outputBuffer().isEmpty()) {
+                scheduleWrite(state);
+            } else if (state.isBlocked()) {
+                key.interestOps(0);
             }
         } catch (IOException e) {
             logger.error("Error reading from client {}: ", getClientInfo(key), e);
@@ -145,48 +333,111 @@ public class EventLoop {
         }
     }
 
-    public void write(SelectionKey key) throws IOException {
+    private void processBufferedInput(SelectionKey key, ClientState state) {
+        ByteBuffer readBuffer = state.readBuffer();
+        readBuffer.flip();
+        CommandHandler.handleCommands(state.parser().parse(readBuffer), state);
+        readBuffer.compact();
+        if (replyToProtocolError(state)) {
+            return;
+        }
+        if (!state.outputBuffer().isEmpty()) {
+            scheduleWrite(state);
+        } else {
+            key.interestOps(state.isBlocked() ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Releases a client parked by a blocking command once its reply has been written, running the
+     * commands that arrived behind it. Must be called on this loop's thread.
+     */
+    public void unblock(ClientState state) {
+        state.unblock();
+        resume(state);
+    }
+
+    private void resume(ClientState state) {
+        SelectionKey key = state.getSelectionKey();
+        CommandHandler.handleCommands(state.takeDeferred(), state);
+        if(replyToProtocolError(state)) {
+            return;
+        }
+        if(!state.isBlocked() && state.hasBufferedInput()) {
+            processBufferedInput(key, state);
+            return;
+        }
+        if(!state.outputBuffer().isEmpty()) {
+            scheduleWrite(state);
+        } else {
+            key.interestOps(state.isBlocked() ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Answers malformed input once the commands before it have run, and stops reading from the client;
+     * the connection is closed when the reply has been written. A blocked client answers on release.
+     */
+    private boolean replyToProtocolError(ClientState state) {
+        String error = state.parser().protocolError();
+        if(error == null || state.isBlocked()) {
+            return false;
+        }
+        if(!state.isCloseAfterReply()) {
+            logger.info("Closing client {} after a protocol error: {}", getClientInfo(state.getSelectionKey()), error);
+            RespEncoder.encodeError(state.outputBuffer(), "ERR", error);
+            state.closeAfterReply();
+        }
+        state.getSelectionKey().interestOps(0);
+        scheduleWrite(state);
+        return true;
+    }
+
+    /**
+     * Sends the client's output at the end of this loop iteration, so the replies to a whole pipeline,
+     * and whatever replication queued meanwhile, go out in one write without waiting for the selector.
+     * Must be called on this loop's thread.
+     */
+    public void scheduleWrite(ClientState state) {
+        if(!state.isWriteScheduled()) {
+            state.setWriteScheduled(true);
+            pendingWrites.add(state);
+        }
+    }
+
+    private void handlePendingWrites() {
+        ClientState state;
+        while((state = pendingWrites.poll()) != null) {
+            state.setWriteScheduled(false);
+            SelectionKey key = state.getSelectionKey();
+            // A client already waiting for OP_WRITE is written when the socket drains.
+            if(key == null || !key.isValid() || (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                continue;
+            }
+            write(key);
+        }
+    }
+
+    public void write(SelectionKey key) {
         SocketChannel client = (SocketChannel) key.channel();
         ClientState state = (ClientState) key.attachment();
-        Deque<String> responseQueue = state.responseQueue();
-        ByteBuffer writeBuffer = state.writeBuffer();
 
         try {
-            while (!responseQueue.isEmpty()) {
-                String response = responseQueue.peekFirst();
-                byte[] responseBytes = response.getBytes(StandardCharsets.ISO_8859_1);
-                int remainingBytes = responseBytes.length;
-                int offset = 0;
-
-                while (remainingBytes > 0) {
-                    writeBuffer.clear();
-                    int bytesToWrite = Math.min(writeBuffer.capacity(), remainingBytes);
-
-                    writeBuffer.put(responseBytes, offset, bytesToWrite);
-                    writeBuffer.flip();
-                    int bytesWritten = client.write(writeBuffer);
-
-                    if (bytesWritten == 0) {
-                        if (offset > 0) {
-                            String remaining = new String(
-                                    responseBytes,
-                                    offset,
-                                    remainingBytes,
-                                    StandardCharsets.UTF_8
-                            );
-                            responseQueue.removeFirst();
-                            responseQueue.addFirst(remaining);
-                        }
-                        return;
-                    }
-                    offset += bytesToWrite;
-                    remainingBytes -= bytesToWrite;
+            if (!state.outputBuffer().writeTo(client)) {
+                // The socket is full: wait for it to drain. Replicas keep being read for their ACKs.
+                if(state.getClientType() == ClientType.REPLICA) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
                 }
-
-                responseQueue.removeFirst();
+                return;
+            }
+            if(state.isCloseAfterReply()) {
+                closeConnection(key);
+                return;
             }
-            if(state.getClientType() == ClientType.REPLICA) {
-                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            if(state.isBlocked()) {
+                key.interestOps(0);
             } else {
                 key.interestOps(SelectionKey.OP_READ);
             }
@@ -196,8 +447,29 @@ public class EventLoop {
         }
     }
 
+    /**
+     * Closes a client of this loop from any thread, such as a replica over its output buffer limits.
+     */
+    public void disconnect(ClientState state) {
+        execute(() -> {
+            SelectionKey key = state.getSelectionKey();
+            if(key != null && key.isValid()) {
+                closeConnection(key);
+            }
+        });
+    }
+
     private  void closeConnection(SelectionKey key) {
         try {
+            if (key.attachment() instanceof ClientState state) {
+                if (state.getClientType() == ClientType.REPLICA) {
+                    CommandHandler.runExclusively(() -> ReplicationManager.removeReplicaClient(state));
+                }
+                if (state.isBlocked()) {
+                    CommandHandler.runExclusively(() -> ReplicationManager.removeWaiter(state));
+                }
+                state.releaseBuffers();
+            }
             key.cancel();
             key.channel().close();
             logger.info("Closing connection");
@@ -207,10 +479,15 @@ public class EventLoop {
     }
 
     private String getClientInfo(SelectionKey key) {
+        if (key.channel() instanceof SocketChannel channel) {
+            return getClientInfo(channel);
+        }
+        return "unknown";
+    }
+
+    private String getClientInfo(SocketChannel channel) {
         try {
-            if (key.channel() instanceof SocketChannel channel) {
-                return channel.getRemoteAddress().toString();
-            }
+            return channel.getRemoteAddress().toString();
         } catch (IOException ex) {
             logger.debug("Could not get client info", ex);
         }
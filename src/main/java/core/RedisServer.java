@@ -1,29 +1,56 @@
 package core;
 
+import db.AppendOnlyFile;
 import db.InMemoryDatabase;
 import db.RdbLoader;
+import db.RdbSaver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import replication.ReplicaHandler;
 import replication.ReplicationInfo;
-import resp.RespEncoder;
+import replication.ReplicationManager;
+import utils.BufferPool;
+import utils.ClientState;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RedisServer {
     private static final Logger logger = LoggerFactory.getLogger(RedisServer.class);
+    private static final long CRON_REHASH_BUDGET_NANOS = 1_000_000L;
+    private static final int ACTIVE_EXPIRE_CYCLE_TIME_PERCENT = 25;
 
     private static ServerConfig globalConfig;
+    private static BufferPool bufferPool;
     private final ServerSocketChannel serverChannel;
     private final Selector selector;
     private final EventLoop eventLoop;
+    private final List<EventLoop> ioWorkers;
+    private final List<Thread> ioThreads;
+    private int nextWorker = 0;
+    // Set with --io-mode virtual-threads: every client gets a virtual thread instead of an event loop.
+    private final Thread.Builder virtualThreads;
     private final ReplicaHandler replicaHandler;
     private final AtomicBoolean isRunning;
-    private static String initialState = "";
+    // A dataset that failed to load must not be saved over the files it came from.
+    private volatile boolean datasetLoaded = false;
+    // Set while the startup load runs in the background and clients are answered with -LOADING.
+    private static volatile boolean loadingDataset = false;
+    // Typed copies of the settings read on every socket read, the cron and the replication paths, so those
+    // never parse strings.
+    private static volatile long queryBufferLimit = 1024L * 1024 * 1024;
+    private static volatile int hz = 10;
+    private static volatile int activeExpireEffort = 1;
+    private static volatile int keyspaceShards = 1;
+    private static volatile long replDisklessSyncDelayMillis = 5000;
+    private static volatile int replBacklogSize = 1024 * 1024;
+    private static volatile long[] savePoints = new long[0];
 
     public record ServerConfig(int port, int bufferSize, long timeout, Map<String, String> properties) {
     }
@@ -34,6 +61,9 @@ public class RedisServer {
 
     public RedisServer(ServerConfig config) throws IOException {
         globalConfig = config;
+        config.properties().replaceAll(ConfigValues::normalize);
+        config.properties().forEach(RedisServer::applyConfig);
+        bufferPool = new BufferPool(config.bufferSize());
         this.isRunning = new AtomicBoolean(false);
         this.selector = Selector.open();
         this.serverChannel = ServerSocketChannel.open();
@@ -42,21 +72,177 @@ public class RedisServer {
         } else {
             this.replicaHandler = null;
         }
+        this.ioWorkers = new ArrayList<>();
+        this.ioThreads = new ArrayList<>();
+        if("virtual-threads".equals(globalConfig.properties().get("io-mode"))) {
+            this.virtualThreads = Thread.ofVirtual().name("client-", 0);
+        } else {
+            this.virtualThreads = null;
+        }
+        int ioThreadCount = Integer.parseInt(globalConfig.properties().getOrDefault("io-threads", "1"));
+        if(ioThreadCount > 1 && virtualThreads == null) {
+            for(int i = 0; i < ioThreadCount; i++) {
+                ioWorkers.add(new EventLoop.Builder().
+                        selector(Selector.open()).
+                        isRunning(isRunning).
+                        beforeSleep(RedisServer::beforeSleep).build());
+            }
+        }
         this.eventLoop = new EventLoop.Builder().
                 selector(this.selector).
-                isRunning(isRunning).build();
+                isRunning(isRunning).
+                connectionDispatcher(this::dispatchConnection).
+                cronTask(this::serverCron, () -> 1000L / hz()).
+                beforeSleep(RedisServer::beforeSleep).build();
+    }
+
+    /**
+     * Commands executed in this iteration reach the AOF before their replies reach the clients, and are
+     * queued to the replicas once per iteration rather than once per command. Both have their own locks,
+     * so I/O threads flushing here never hold up writers on the keyspace shards.
+     */
+    private static void beforeSleep() {
+        if(AppendOnlyFile.hasPendingWrites()) {
+            AppendOnlyFile.flush();
+        }
+        if(ReplicationManager.hasPendingStream()) {
+            ReplicationManager.flushToReplicas();
+        }
+    }
+
+    private void serverCron() {
+        if(replicaHandler != null) {
+            replicaHandler.cron();
+        }
+        if(isLoading()) {
+            return;
+        }
+        CommandHandler.runExclusively(() -> {
+            InMemoryDatabase database = InMemoryDatabase.getInstance();
+            database.activeExpireCycle(activeExpireTimeLimitNanos(), activeExpireEffort());
+            database.incrementalRehash(CRON_REHASH_BUDGET_NANOS);
+            RdbSaver.cron();
+            ReplicationManager.cron();
+        });
+        AppendOnlyFile.cron();
+    }
+
+    /**
+     * The expire cycle may use 25% of each cron period, plus 2% per effort level above 1.
+     */
+    private static long activeExpireTimeLimitNanos() {
+        int percent = ACTIVE_EXPIRE_CYCLE_TIME_PERCENT + 2 * (activeExpireEffort() - 1);
+        return 1_000_000_000L * percent / hz() / 100;
+    }
+
+    public static int hz() {
+        return hz;
+    }
+
+    public static int activeExpireEffort() {
+        return activeExpireEffort;
+    }
+
+    public static int keyspaceShards() {
+        return keyspaceShards;
+    }
+
+    public static long replDisklessSyncDelayMillis() {
+        return replDisklessSyncDelayMillis;
+    }
+
+    public static int replBacklogSize() {
+        return replBacklogSize;
+    }
+
+    /**
+     * Pairs of seconds and changes from the {@code save} setting. Callers must not modify the array.
+     */
+    public static long[] savePoints() {
+        return savePoints;
+    }
+
+    /**
+     * Validates and stores a setting changed with CONFIG SET, refreshing its typed copy.
+     */
+    public static synchronized void setConfig(String name, String value) {
+        if(ConfigValues.isImmutable(name)) {
+            throw new IllegalArgumentException("can't set immutable config");
+        }
+        String normalized = ConfigValues.normalize(name, value);
+        globalConfig.properties().put(name, normalized);
+        applyConfig(name, normalized);
+    }
+
+    private static void applyConfig(String name, String value) {
+        switch(name) {
+            case "client-query-buffer-limit" -> queryBufferLimit = Long.parseLong(value);
+            case "hz" -> hz = Integer.parseInt(value);
+            case "active-expire-effort" -> activeExpireEffort = Integer.parseInt(value);
+            case "keyspace-shards" -> keyspaceShards = Integer.parseInt(value);
+            case "repl-diskless-sync-delay" -> replDisklessSyncDelayMillis = Long.parseLong(value) * 1000;
+            case "repl-backlog-size" -> replBacklogSize = Integer.parseInt(value);
+            case "save" -> savePoints = ConfigValues.savePoints(value);
+            default -> {
+            }
+        }
+    }
+
+    private void dispatchConnection(SocketChannel client) {
+        if(virtualThreads != null) {
+            serveOnVirtualThread(client);
+            return;
+        }
+        if(ioWorkers.isEmpty()) {
+            eventLoop.register(client);
+            return;
+        }
+        EventLoop worker = ioWorkers.get(nextWorker);
+        nextWorker = (nextWorker + 1) % ioWorkers.size();
+        worker.register(client);
+    }
+
+    private void serveOnVirtualThread(SocketChannel client) {
+        try {
+            client.configureBlocking(true);
+        } catch(IOException e) {
+            logger.error("Error while configuring client connection: ", e);
+            try {
+                client.close();
+            } catch(IOException ex) {
+                logger.debug("Error while closing client connection", ex);
+            }
+            return;
+        }
+        ClientState state = new ClientState(bufferPool, new LinkedList<>());
+        virtualThreads.start(new VirtualThreadConnection(client, state, eventLoop, RedisServer::beforeSleep));
+    }
+
+    private void startIoWorkers() {
+        for(int i = 0; i < ioWorkers.size(); i++) {
+            Thread ioThread = new Thread(ioWorkers.get(i)::start, "io-thread-" + i);
+            ioThreads.add(ioThread);
+            ioThread.start();
+        }
+        if(!ioWorkers.isEmpty()) {
+            logger.info("Started {} I/O threads", ioWorkers.size());
+        }
     }
 
     public static ServerConfig currentConfig() {
         return globalConfig;
     }
 
-    public static ReplicationInfo getReplicationInfo() {
-        return ReplicationInfoHolder.replicationInfo;
+    public static BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public static long queryBufferLimit() {
+        return queryBufferLimit;
     }
 
-    public static String getInitialState() {
-        return initialState;
+    public static ReplicationInfo getReplicationInfo() {
+        return ReplicationInfoHolder.replicationInfo;
     }
 
     public void start() {
@@ -65,12 +251,6 @@ public class RedisServer {
             return;
         }
         try {
-            if(replicaHandler != null) {
-                logger.info("Redis server starting in replica mode");
-                replicaHandler.start(selector);
-            } else {
-                initialState = RespEncoder.encodeSafeRdb(globalConfig.properties().get("emptyRDB"));
-            }
             serverChannel.configureBlocking(false);
             serverChannel.socket().setReuseAddress(true);
             serverChannel.socket().bind(new InetSocketAddress(globalConfig.port));
@@ -79,7 +259,13 @@ public class RedisServer {
             logger.info("Redis server starting on port {}", globalConfig.port);
             logger.info("Configuration: bufferSize = {}, commandTimeout = {}ms", globalConfig.bufferSize, globalConfig.timeout);
 
-            RdbLoader.load();
+            if("yes".equals(globalConfig.properties().get("async-loading"))) {
+                loadingDataset = true;
+                new Thread(this::loadDatasetInBackground, "async-loading").start();
+            } else {
+                loadDataset();
+            }
+            startIoWorkers();
             eventLoop.start();
         } catch(IOException e) {
             logger.error("Failed to start server", e);
@@ -88,6 +274,40 @@ public class RedisServer {
         }
     }
 
+    private void loadDataset() throws IOException {
+        if(AppendOnlyFile.isConfigured() && AppendOnlyFile.exists()) {
+            AppendOnlyFile.load();
+        } else {
+            RdbLoader.load();
+        }
+        datasetLoaded = true;
+        AppendOnlyFile.open();
+        // The local dump goes first: it tells the replica where to resume from its master.
+        if(replicaHandler != null) {
+            logger.info("Redis server starting in replica mode");
+            replicaHandler.start(eventLoop);
+        }
+    }
+
+    /**
+     * Loads while the event loop already serves connections. Nothing but the loader touches the
+     * keyspace meanwhile: commands get -LOADING and the cron skips its keyspace work.
+     */
+    private void loadDatasetInBackground() {
+        try {
+            loadDataset();
+        } catch(IOException | RuntimeException e) {
+            logger.error("Failed to load the dataset", e);
+            System.exit(1);
+        }
+        loadingDataset = false;
+        logger.info("Dataset loaded, accepting commands");
+    }
+
+    public static boolean isLoading() {
+        return loadingDataset || RdbLoader.isLoading();
+    }
+
     public void shutdown() {
         if(!isRunning.compareAndSet(true, false)) {
             logger.info("Redis server is already shut down.");
@@ -98,12 +318,30 @@ public class RedisServer {
                 replicaHandler.stop();
             }
             eventLoop.stop();
+            for(EventLoop worker : ioWorkers) {
+                worker.stop();
+            }
+            for(Thread ioThread : ioThreads) {
+                ioThread.join(globalConfig.timeout());
+            }
+            for(EventLoop worker : ioWorkers) {
+                worker.close();
+            }
+            if(datasetLoaded) {
+                CommandHandler.runExclusively(() -> {
+                    AppendOnlyFile.closeOnShutdown();
+                    RdbSaver.saveOnShutdown();
+                });
+            }
             selector.close();
             serverChannel.close();
             InMemoryDatabase.getInstance().clear();
             logger.info("Redis server shut down.");
         } catch (IOException e) {
             logger.error("Failed to shutdown server", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for I/O threads to stop", e);
         }
     }
 
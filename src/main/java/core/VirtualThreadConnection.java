@@ -0,0 +1,120 @@
+package core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import resp.RespEncoder;
+import utils.ClientState;
+import utils.Clock;
+import utils.ParsedCommand;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Serves one client on its own virtual thread with blocking reads and writes, for
+ * {@code --io-mode virtual-threads}. Input goes through the client's parser and {@link CommandHandler}
+ * as on an event loop, and the replies to whatever one read delivered are written before the next read.
+ * WAIT parks a client and PSYNC turns it into a replica, and both rely on an event loop to resume or
+ * stream to it: a connection that sends one of them is handed over to {@code loop} and stays there.
+ */
+final class VirtualThreadConnection implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreadConnection.class);
+
+    private final SocketChannel client;
+    private final ClientState state;
+    private final EventLoop loop;
+    private final Runnable beforeReply;
+
+    /**
+     * {@code beforeReply} runs after each batch of commands and before its replies are written, as
+     * {@link EventLoop.Builder#beforeSleep} does for a loop iteration.
+     */
+    VirtualThreadConnection(SocketChannel client, ClientState state, EventLoop loop, Runnable beforeReply) {
+        this.client = client;
+        this.state = state;
+        this.loop = loop;
+        this.beforeReply = beforeReply;
+    }
+
+    @Override
+    public void run() {
+        try {
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer readBuffer = state.readBuffer();
+            while (true) {
+                if (client.read(readBuffer) == -1) {
+                    logger.info("Client {} disconnected", clientInfo());
+                    break;
+                }
+                Clock.update();
+                readBuffer.flip();
+                List<ParsedCommand> commands = state.parser().parse(readBuffer);
+                readBuffer.compact();
+                if (state.exceedsQueryBufferLimit(RedisServer.queryBufferLimit())) {
+                    logger.warn("Closing client {} that reached the query buffer limit", clientInfo());
+                    break;
+                }
+                if (needsEventLoop(commands)) {
+                    // The replies so far are all written; the loop takes over from these commands on.
+                    state.defer(commands);
+                    loop.register(client, state);
+                    return;
+                }
+                CommandHandler.handleCommands(commands, state);
+                String protocolError = state.parser().protocolError();
+                if (protocolError != null) {
+                    logger.info("Closing client {} after a protocol error: {}", clientInfo(), protocolError);
+                    RespEncoder.encodeError(state.outputBuffer(), "ERR", protocolError);
+                }
+                beforeReply.run();
+                // A blocking channel takes everything before returning.
+                state.outputBuffer().writeTo(client);
+                if (protocolError != null) {
+                    break;
+                }
+                if (!readBuffer.hasRemaining()) {
+                    if (!state.growReadBuffer(RedisServer.queryBufferLimit())) {
+                        logger.warn("Closing client {} that reached the query buffer limit", clientInfo());
+                        break;
+                    }
+                    readBuffer = state.readBuffer();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error serving client {}: ", clientInfo(), e);
+        }
+        close();
+    }
+
+    private static boolean needsEventLoop(List<ParsedCommand> commands) {
+        for (ParsedCommand command : commands) {
+            String name = command.name();
+            if (name.equalsIgnoreCase("wait") || name.equalsIgnoreCase("psync") || name.equalsIgnoreCase("sync")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void close() {
+        state.releaseBuffers();
+        try {
+            client.close();
+            logger.info("Closing connection");
+        } catch (IOException e) {
+            logger.error("Error while closing connection: ", e);
+        }
+    }
+
+    private String clientInfo() {
+        try {
+            return client.getRemoteAddress().toString();
+        } catch (IOException ex) {
+            logger.debug("Could not get client info", ex);
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,556 @@
+package db;
+
+import commands.CommandFactory;
+import commands.RedisCommand;
+import commands.SetCommand;
+import core.RedisServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import resp.OutputBuffer;
+import resp.RespEncoder;
+import resp.RespParser;
+import utils.ByteString;
+import utils.Clock;
+import utils.ParsedCommand;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of write commands. Commands are encoded into an in-memory buffer as they run and
+ * written out once per event-loop iteration, before the replies go back to the clients. fsync follows
+ * {@code appendfsync}; with {@code everysec} it runs on a dedicated thread so no event loop waits on
+ * the disk.
+ * <p>
+ * BGREWRITEAOF writes an RDB preamble from a copy-on-write keyspace snapshot on a background thread.
+ * Commands that run in the meantime are also kept in a rewrite buffer, which the cron appends to the
+ * new file before it replaces the old one.
+ * <p>
+ * Writers on different shards feed the log at the same time, so the buffers are guarded by their own
+ * lock rather than the keyspace locks. A flush swaps the filled buffer out under that lock and writes
+ * and fsyncs it under a second one, which serializes flushes from different I/O threads without
+ * holding up the writers.
+ */
+public final class AppendOnlyFile {
+    private static final Logger logger = LoggerFactory.getLogger(AppendOnlyFile.class);
+    private static final long FSYNC_INTERVAL_MILLIS = 1000;
+    private static final int REPLAY_CHUNK_SIZE = 1024 * 1024;
+    private static final int REPLAY_SINK_LIMIT = 64 * 1024;
+    private static final byte[] SET = "SET".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PXAT = "PXAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RDB_PREAMBLE_MAGIC = "REDIS".getBytes(StandardCharsets.US_ASCII);
+
+    // Guards buffer, rewriteBuffer and fedCommands.
+    private static final ReentrantLock bufferLock = new ReentrantLock();
+    // Guards the file and everything below it; taken before bufferLock when both are needed.
+    private static final ReentrantLock fileLock = new ReentrantLock();
+
+    private static volatile boolean enabled = false;
+    private static FileChannel channel;
+    private static OutputBuffer buffer;
+    // What a flush is writing out, swapped with buffer once it has been drained.
+    private static OutputBuffer writing;
+    private static volatile long fedCommands = 0;
+    private static volatile long flushedCommands = 0;
+    private static boolean unsyncedWrites = false;
+    private static boolean lastWriteOk = true;
+    private static long lastFsyncMillis = 0;
+    private static final AtomicBoolean fsyncInProgress = new AtomicBoolean();
+    private static ExecutorService fsyncExecutor;
+
+    private static Thread backgroundRewrite;
+    private static OutputBuffer rewriteBuffer;
+    private static Path rewriteTempFile;
+    // Written by the background thread, read once it has terminated.
+    private static IOException backgroundRewriteError;
+    private static boolean lastRewriteOk = true;
+
+    private AppendOnlyFile() {
+    }
+
+    public static boolean isConfigured() {
+        return "yes".equalsIgnoreCase(RedisServer.currentConfig().properties().getOrDefault("appendonly", "no"));
+    }
+
+    public static boolean exists() {
+        return Files.exists(path());
+    }
+
+    /**
+     * Opens the log for appending once the dataset is loaded. If there was no log yet, existing data
+     * (for example from an RDB file) is written into a fresh one with a background rewrite.
+     */
+    public static void open() throws IOException {
+        if (!isConfigured()) {
+            return;
+        }
+        boolean existed = exists();
+        channel = FileChannel.open(path(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        buffer = new OutputBuffer(RedisServer.getBufferPool());
+        writing = new OutputBuffer(RedisServer.getBufferPool());
+        fsyncExecutor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "aof-fsync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lastFsyncMillis = Clock.millis();
+        enabled = true;
+        if (!existed && InMemoryDatabase.getInstance().size() > 0) {
+            backgroundRewrite();
+        }
+    }
+
+    public static void feed(ParsedCommand command) {
+        if (!enabled) {
+            return;
+        }
+        bufferLock.lock();
+        try {
+            append(buffer, command);
+            if (rewriteBuffer != null) {
+                append(rewriteBuffer, command);
+            }
+            fedCommands++;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Wraps the write commands of an EXEC in MULTI/EXEC, so a transaction cut short by a crash is
+     * dropped as a whole on replay.
+     */
+    public static void feedTransactionBoundary(String name) {
+        if (!enabled) {
+            return;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        bufferLock.lock();
+        try {
+            RespEncoder.encodeArrayHeader(buffer, 1);
+            RespEncoder.encodeBulkString(buffer, bytes);
+            if (rewriteBuffer != null) {
+                RespEncoder.encodeArrayHeader(rewriteBuffer, 1);
+                RespEncoder.encodeBulkString(rewriteBuffer, bytes);
+            }
+            fedCommands++;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Whether something fed so far has not been written yet, possibly because another thread's flush is
+     * still writing it; flushing then waits for that one.
+     */
+    public static boolean hasPendingWrites() {
+        return fedCommands != flushedCommands;
+    }
+
+    /**
+     * Writes the buffered commands to the file and fsyncs according to the policy. Called at the end
+     * of every event-loop iteration and from the cron, without holding the keyspace locks.
+     */
+    public static void flush() {
+        fileLock.lock();
+        try {
+            if (!enabled) {
+                return;
+            }
+            while (true) {
+                long fed;
+                boolean swapped;
+                bufferLock.lock();
+                try {
+                    fed = fedCommands;
+                    // The unwritten tail of a failed write goes out before anything newer.
+                    swapped = writing.isEmpty();
+                    if (swapped) {
+                        OutputBuffer filled = buffer;
+                        buffer = writing;
+                        writing = filled;
+                    }
+                } finally {
+                    bufferLock.unlock();
+                }
+                if (!writing.isEmpty()) {
+                    try {
+                        while (!writing.writeTo(channel)) {
+                            Thread.onSpinWait();
+                        }
+                        lastWriteOk = true;
+                        unsyncedWrites = true;
+                    } catch (IOException e) {
+                        // The unwritten tail stays in writing and is retried on the next flush.
+                        lastWriteOk = false;
+                        logger.error("Error writing to the AOF file", e);
+                        return;
+                    }
+                }
+                if (swapped) {
+                    if (unsyncedWrites) {
+                        fsyncIfDue();
+                    }
+                    flushedCommands = fed;
+                    return;
+                }
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    private static void fsyncIfDue() {
+        String policy = RedisServer.currentConfig().properties().getOrDefault("appendfsync", "everysec");
+        long now = Clock.millis();
+        switch (policy) {
+            case "always" -> {
+                try {
+                    channel.force(false);
+                    unsyncedWrites = false;
+                    lastFsyncMillis = now;
+                } catch (IOException e) {
+                    lastWriteOk = false;
+                    logger.error("Error fsyncing the AOF file", e);
+                }
+            }
+            case "everysec" -> {
+                if (now - lastFsyncMillis < FSYNC_INTERVAL_MILLIS || !fsyncInProgress.compareAndSet(false, true)) {
+                    return;
+                }
+                unsyncedWrites = false;
+                lastFsyncMillis = now;
+                FileChannel target = channel;
+                fsyncExecutor.execute(() -> {
+                    try {
+                        target.force(false);
+                    } catch (IOException e) {
+                        // A rewrite may have closed and replaced the channel in the meantime.
+                        if (target.isOpen()) {
+                            logger.error("Error fsyncing the AOF file", e);
+                        }
+                    } finally {
+                        fsyncInProgress.set(false);
+                    }
+                });
+            }
+            default -> unsyncedWrites = false;
+        }
+    }
+
+    /**
+     * Called from the server cron: catches up on a pending everysec fsync and installs a finished
+     * rewrite.
+     */
+    public static void cron() {
+        fileLock.lock();
+        try {
+            flush();
+            isRewriteInProgress();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a background rewrite and returns false if one is already running.
+     */
+    public static boolean backgroundRewrite() {
+        fileLock.lock();
+        try {
+            return startBackgroundRewrite();
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    // Called under every keyspace lock, which the snapshot needs, and fileLock.
+    private static boolean startBackgroundRewrite() {
+        if (isRewriteInProgress()) {
+            return false;
+        }
+        InMemoryDatabase.Snapshot snapshot = InMemoryDatabase.getInstance().snapshot();
+        Path tempFile = directory().resolve("temp-rewriteaof-bg-" + ProcessHandle.current().pid() + ".aof");
+        rewriteTempFile = tempFile;
+        bufferLock.lock();
+        try {
+            rewriteBuffer = enabled ? new OutputBuffer(RedisServer.getBufferPool()) : null;
+        } finally {
+            bufferLock.unlock();
+        }
+        backgroundRewriteError = null;
+        backgroundRewrite = new Thread(() -> {
+            try {
+                writeSnapshot(snapshot, tempFile);
+            } catch (IOException e) {
+                backgroundRewriteError = e;
+            } finally {
+                snapshot.release();
+            }
+        }, "bgrewriteaof");
+        backgroundRewrite.start();
+        logger.info("Background append only file rewriting started");
+        return true;
+    }
+
+    public static boolean isRewriteInProgress() {
+        fileLock.lock();
+        try {
+            if (backgroundRewrite != null && !backgroundRewrite.isAlive()) {
+                finishRewrite();
+            }
+            return backgroundRewrite != null;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a running rewrite and flushes what is still buffered before the server exits.
+     */
+    public static void closeOnShutdown() {
+        fileLock.lock();
+        try {
+            Thread running = backgroundRewrite;
+            if (running != null) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finishRewrite();
+            }
+            if (!enabled) {
+                return;
+            }
+            flush();
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing the AOF file", e);
+            }
+            buffer.clear();
+            writing.clear();
+            fsyncExecutor.shutdown();
+            enabled = false;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    public static String info() {
+        return "aof_enabled:" + (enabled ? 1 : 0) + "\r\n" +
+                "aof_rewrite_in_progress:" + (isRewriteInProgress() ? 1 : 0) + "\r\n" +
+                "aof_last_bgrewrite_status:" + (lastRewriteOk ? "ok" : "err") + "\r\n" +
+                "aof_last_write_status:" + (lastWriteOk ? "ok" : "err");
+    }
+
+    // Called under fileLock; holds bufferLock so nothing is fed while the files are switched.
+    private static void finishRewrite() {
+        bufferLock.lock();
+        try {
+            installRewrite();
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private static void installRewrite() {
+        backgroundRewrite = null;
+        OutputBuffer diff = rewriteBuffer;
+        rewriteBuffer = null;
+        Path tempFile = rewriteTempFile;
+        try {
+            if (backgroundRewriteError != null) {
+                throw backgroundRewriteError;
+            }
+            if (diff != null) {
+                try (FileChannel tempChannel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    while (!diff.writeTo(tempChannel)) {
+                        Thread.onSpinWait();
+                    }
+                    tempChannel.force(false);
+                }
+            }
+            Files.move(tempFile, path(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (enabled) {
+                // Everything still buffered for the old file was fed to the rewrite buffer as well.
+                FileChannel previous = channel;
+                channel = FileChannel.open(path(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                buffer.clear();
+                writing.clear();
+                flushedCommands = fedCommands;
+                unsyncedWrites = false;
+                previous.close();
+            }
+            lastRewriteOk = true;
+            logger.info("Background AOF rewrite finished successfully");
+        } catch (IOException e) {
+            lastRewriteOk = false;
+            logger.warn("Background AOF rewrite failed", e);
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException ex) {
+                logger.debug("Could not remove the temporary AOF file", ex);
+            }
+        } finally {
+            if (diff != null) {
+                diff.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot as an RDB preamble, which covers every value type; the commands that ran
+     * during the rewrite are appended after it as plain log entries.
+     */
+    private static void writeSnapshot(InMemoryDatabase.Snapshot snapshot, Path tempFile) throws IOException {
+        try (FileChannel tempChannel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            RdbWriter.write(snapshot, tempChannel, true);
+            tempChannel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    /**
+     * SET with a TTL is logged with the absolute expiry the key was given, so replaying it later does
+     * not extend the key's life. Called right after the write, under its shard lock.
+     */
+    private static void append(OutputBuffer out, ParsedCommand command) {
+        List<ByteString> args = command.args();
+        if (command.name().equalsIgnoreCase("set") && SetCommand.hasExpiry(args)) {
+            ByteString key = args.get(0);
+            long expireAtMillis = InMemoryDatabase.getInstance().getStoredExpireTime(key);
+            encodeSet(out, key.bytes(), args.get(1).bytes(), expireAtMillis);
+            return;
+        }
+        RespEncoder.encodeCommand(out, command);
+    }
+
+    private static void encodeSet(OutputBuffer out, byte[] key, byte[] value, long expireAtMillis) {
+        boolean expires = expireAtMillis != InMemoryDatabase.NO_EXPIRY;
+        RespEncoder.encodeArrayHeader(out, expires ? 5 : 3);
+        RespEncoder.encodeBulkString(out, SET);
+        RespEncoder.encodeBulkString(out, key);
+        RespEncoder.encodeBulkString(out, value);
+        if (expires) {
+            RespEncoder.encodeBulkString(out, PXAT);
+            RespEncoder.encodeBulkString(out, String.valueOf(expireAtMillis).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Replays the log into the keyspace before the server starts serving. A command cut off at the end
+     * of the file, or a MULTI without its EXEC, is treated as a crash during the last write: the file is
+     * truncated back to the last complete command and loading continues.
+     */
+    public static void load() throws IOException {
+        Path path = path();
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        long start = System.nanoTime();
+        long replayed = 0;
+        database.setLoading(true);
+        OutputBuffer sink = new OutputBuffer(RedisServer.getBufferPool());
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long offset = loadPreamble(file);
+            file.position(offset);
+            ByteBuffer chunk = ByteBuffer.allocate(REPLAY_CHUNK_SIZE);
+            RespParser parser = new RespParser();
+            List<ParsedCommand> transaction = null;
+            long transactionOffset = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = file.read(chunk) < 0;
+                chunk.flip();
+                for (ParsedCommand command : parser.parse(chunk)) {
+                    long commandOffset = offset;
+                    offset += command.encodedLength();
+                    if (command.name().equalsIgnoreCase("multi")) {
+                        transaction = new ArrayList<>();
+                        transactionOffset = commandOffset;
+                    } else if (command.name().equalsIgnoreCase("exec") && transaction != null) {
+                        for (ParsedCommand queued : transaction) {
+                            replay(queued, sink);
+                        }
+                        replayed += transaction.size();
+                        transaction = null;
+                    } else if (transaction != null) {
+                        transaction.add(command);
+                    } else {
+                        replay(command, sink);
+                        replayed++;
+                    }
+                }
+                if (parser.protocolError() != null) {
+                    throw new IOException("Bad file format reading the append only file near offset " + offset);
+                }
+                if (chunk.position() == 0 && chunk.limit() == chunk.capacity()) {
+                    chunk = ByteBuffer.allocate(chunk.capacity() * 2).put(chunk);
+                } else {
+                    chunk.compact();
+                }
+            }
+            long validLength = transaction != null ? transactionOffset : offset;
+            if (validLength < file.size()) {
+                logger.warn("AOF file ends with an incomplete command; truncating it from {} to {} bytes",
+                        file.size(), validLength);
+                file.truncate(validLength);
+            }
+        } finally {
+            sink.clear();
+            database.setLoading(false);
+        }
+        database.setDirty(0);
+        logger.info("DB loaded from append only file: {} commands in {} ms", replayed, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * A rewritten log starts with an RDB snapshot; returns the offset where the commands begin.
+     */
+    private static long loadPreamble(FileChannel file) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(RDB_PREAMBLE_MAGIC.length);
+        file.read(magic, 0);
+        if (magic.hasRemaining() || !Arrays.equals(magic.array(), RDB_PREAMBLE_MAGIC)) {
+            return 0;
+        }
+        return RdbLoader.load(file, file.size(), false);
+    }
+
+    private static void replay(ParsedCommand command, OutputBuffer sink) {
+        RedisCommand handler = CommandFactory.getCommand(command);
+        try {
+            handler.validate(command.args());
+            handler.execute(command.args(), sink);
+        } catch (RuntimeException e) {
+            logger.warn("Skipping AOF command {} that failed on replay: {}", command.name(), e.getMessage());
+        }
+        if (sink.size() > REPLAY_SINK_LIMIT) {
+            sink.clear();
+        }
+    }
+
+    private static Path directory() {
+        return Path.of(RedisServer.currentConfig().properties().get("dir"));
+    }
+
+    private static Path path() {
+        return directory().resolve(RedisServer.currentConfig().properties().getOrDefault("appendfilename", "appendonly.aof"));
+    }
+}
@@ -0,0 +1,515 @@
+package db;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Open-addressing hash table with linear probing over flat key/value/hash arrays. Growing or shrinking
+ * never rehashes everything at once: a second table is allocated and entries migrate a few slots at a
+ * time on every operation and from the server cron, the way the Redis dict does it.
+ * <p>
+ * While a rehash is in progress, new keys go to the target table and the source table only loses
+ * entries. Slots vacated in the source table become tombstones so the remaining probe chains stay
+ * intact; outside of a rehash, deletions use backward shifting and leave no tombstones behind.
+ * <p>
+ * {@link #snapshot()} pins the current tables for a reader on another thread. The slot arrays are split
+ * into segments of {@value #SEGMENT_SIZE} slots, and while a snapshot is held the owning thread copies a
+ * segment before its first write to it. The snapshot stays a consistent point-in-time view, and a write
+ * costs at most one segment copy instead of a copy of the whole table.
+ */
+public final class Dict<K, V> {
+    private static final int MIN_CAPACITY = 16;
+    private static final int REHASH_ENTRIES_PER_OPERATION = 4;
+    private static final int REHASH_EMPTY_VISITS_PER_ENTRY = 10;
+    private static final Object TOMBSTONE = new Object();
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final class Table {
+        final Object[][] keys;
+        final Object[][] values;
+        final int[][] hashes;
+        final int mask;
+        final AtomicInteger pins = new AtomicInteger();
+        int used;
+        // Segments still shared with a snapshot, or null when none has been taken since the last release.
+        boolean[] frozen;
+
+        Table(int capacity) {
+            int segmentSize = Math.min(capacity, SEGMENT_SIZE);
+            int segments = capacity / segmentSize;
+            keys = new Object[segments][segmentSize];
+            values = new Object[segments][segmentSize];
+            hashes = new int[segments][segmentSize];
+            mask = capacity - 1;
+        }
+
+        // The view a snapshot reads: the segments as they are now, which the owner no longer writes.
+        Table(Table source) {
+            keys = source.keys.clone();
+            values = source.values.clone();
+            hashes = source.hashes.clone();
+            mask = source.mask;
+            used = source.used;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        Object key(int index) {
+            return keys[index >>> SEGMENT_BITS][index & SEGMENT_MASK];
+        }
+
+        Object value(int index) {
+            return values[index >>> SEGMENT_BITS][index & SEGMENT_MASK];
+        }
+
+        int hash(int index) {
+            return hashes[index >>> SEGMENT_BITS][index & SEGMENT_MASK];
+        }
+
+        void set(int index, Object key, Object value, int hash) {
+            int segment = beforeWrite(index);
+            keys[segment][index & SEGMENT_MASK] = key;
+            values[segment][index & SEGMENT_MASK] = value;
+            hashes[segment][index & SEGMENT_MASK] = hash;
+        }
+
+        void setValue(int index, Object value) {
+            values[beforeWrite(index)][index & SEGMENT_MASK] = value;
+        }
+
+        void setKeyAndValue(int index, Object key, Object value) {
+            int segment = beforeWrite(index);
+            keys[segment][index & SEGMENT_MASK] = key;
+            values[segment][index & SEGMENT_MASK] = value;
+        }
+
+        void freeze() {
+            pins.incrementAndGet();
+            frozen = new boolean[keys.length];
+            Arrays.fill(frozen, true);
+        }
+
+        // Copies the segment holding index if a snapshot still reads it, and returns the segment.
+        private int beforeWrite(int index) {
+            int segment = index >>> SEGMENT_BITS;
+            if (frozen != null) {
+                if (pins.get() == 0) {
+                    frozen = null;
+                } else if (frozen[segment]) {
+                    keys[segment] = keys[segment].clone();
+                    values[segment] = values[segment].clone();
+                    hashes[segment] = hashes[segment].clone();
+                    frozen[segment] = false;
+                }
+            }
+            return segment;
+        }
+    }
+
+    private Table main;
+    private Table rehashTarget;
+    private int rehashIndex;
+    // Per-dict seed, so iterating one dict and inserting into another does not feed it keys in probe order.
+    private final int seed = ThreadLocalRandom.current().nextInt();
+
+    public Dict() {
+        this(0);
+    }
+
+    public Dict(int expectedSize) {
+        main = new Table(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return main.used + (rehashTarget == null ? 0 : rehashTarget.used);
+    }
+
+    public boolean isRehashing() {
+        return rehashTarget != null;
+    }
+
+    public V get(K key) {
+        int hash = hash(key);
+        rehashOnOperation();
+        int index = indexOf(main, key, hash);
+        if (index >= 0) {
+            return valueAt(main, index);
+        }
+        if (rehashTarget != null) {
+            index = indexOf(rehashTarget, key, hash);
+            if (index >= 0) {
+                return valueAt(rehashTarget, index);
+            }
+        }
+        return null;
+    }
+
+    public V put(K key, V value) {
+        int hash = hash(key);
+        rehashOnOperation();
+        Table table = main;
+        int index = indexOf(table, key, hash);
+        if (index < 0 && rehashTarget != null) {
+            table = rehashTarget;
+            index = indexOf(table, key, hash);
+        }
+        if (index >= 0) {
+            V previous = valueAt(table, index);
+            table.setValue(index, value);
+            return previous;
+        }
+        expandIfNeeded();
+        insert(rehashTarget != null ? rehashTarget : main, key, value, hash);
+        return null;
+    }
+
+    public V remove(K key) {
+        int hash = hash(key);
+        rehashOnOperation();
+        int index = indexOf(main, key, hash);
+        V previous;
+        if (index >= 0) {
+            previous = valueAt(main, index);
+            if (rehashTarget != null) {
+                main.setKeyAndValue(index, TOMBSTONE, null);
+                main.used--;
+                completeRehashIfDrained();
+            } else {
+                deleteAndShift(main, index);
+            }
+        } else if (rehashTarget != null && (index = indexOf(rehashTarget, key, hash)) >= 0) {
+            previous = valueAt(rehashTarget, index);
+            deleteAndShift(rehashTarget, index);
+        } else {
+            return null;
+        }
+        shrinkIfNeeded();
+        return previous;
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(main, action);
+        if (rehashTarget != null) {
+            forEach(rehashTarget, action);
+        }
+    }
+
+    /**
+     * Visits every entry whose home bucket is the one {@code cursor} points at and returns the cursor of the
+     * next bucket, or 0 once the whole table has been covered. The cursor is advanced by incrementing its
+     * reversed bits, so an entry present for the entire scan is visited at least once even if the table
+     * is resized or rehashed between calls. The action must not modify the dict.
+     */
+    public long scan(long cursor, BiConsumer<? super K, ? super V> action) {
+        if (size() == 0) {
+            return 0;
+        }
+        if (rehashTarget == null) {
+            visitBucket(main, (int) (cursor & main.mask), 0, action);
+            return nextCursor(cursor, main.mask);
+        }
+        Table small = main;
+        Table large = rehashTarget;
+        int smallFirstLive = rehashIndex;
+        int largeFirstLive = 0;
+        if (small.capacity() > large.capacity()) {
+            small = rehashTarget;
+            large = main;
+            smallFirstLive = 0;
+            largeFirstLive = rehashIndex;
+        }
+        visitBucket(small, (int) (cursor & small.mask), smallFirstLive, action);
+        // Then every bucket of the larger table that the small bucket expands into.
+        do {
+            visitBucket(large, (int) (cursor & large.mask), largeFirstLive, action);
+            cursor = nextCursor(cursor, large.mask);
+        } while ((cursor & (small.mask ^ large.mask)) != 0);
+        return cursor;
+    }
+
+    /**
+     * Sizes an empty dict for {@code expectedSize} entries up front, e.g. from an RDB resize hint.
+     */
+    public void expand(int expectedSize) {
+        if (size() == 0 && capacityFor(expectedSize) > main.capacity()) {
+            main = new Table(capacityFor(expectedSize));
+            rehashTarget = null;
+            rehashIndex = 0;
+        }
+    }
+
+    /**
+     * Returns a frozen view of the current contents that may be read from any thread until it is
+     * released. Must be called from the thread that owns the dict.
+     */
+    public Snapshot<K, V> snapshot() {
+        return new Snapshot<>(main, rehashTarget);
+    }
+
+    public static final class Snapshot<K, V> {
+        private final Table main;
+        private final Table rehashTarget;
+        private final Table mainView;
+        private final Table rehashTargetView;
+        private boolean released;
+
+        private Snapshot(Table main, Table rehashTarget) {
+            this.main = main;
+            this.rehashTarget = rehashTarget;
+            main.freeze();
+            mainView = new Table(main);
+            if (rehashTarget != null) {
+                rehashTarget.freeze();
+                rehashTargetView = new Table(rehashTarget);
+            } else {
+                rehashTargetView = null;
+            }
+        }
+
+        public int size() {
+            return mainView.used + (rehashTargetView == null ? 0 : rehashTargetView.used);
+        }
+
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            Dict.forEach(mainView, action);
+            if (rehashTargetView != null) {
+                Dict.forEach(rehashTargetView, action);
+            }
+        }
+
+        /**
+         * Unpins the tables so the dict can go back to writing them in place.
+         */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            main.pins.decrementAndGet();
+            if (rehashTarget != null) {
+                rehashTarget.pins.decrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        main = new Table(MIN_CAPACITY);
+        rehashTarget = null;
+        rehashIndex = 0;
+    }
+
+    /**
+     * Migrates up to {@code entries} entries to the target table, visiting at most ten empty slots per
+     * entry so a sparse source table cannot stall the caller.
+     */
+    public void rehashStep(int entries) {
+        if (rehashTarget == null) {
+            return;
+        }
+        int emptyVisits = (int) Math.min(Integer.MAX_VALUE, (long) entries * REHASH_EMPTY_VISITS_PER_ENTRY);
+        Table source = main;
+        while (entries > 0 && source.used > 0 && rehashIndex <= source.mask) {
+            Object key = source.key(rehashIndex);
+            if (key == null || key == TOMBSTONE) {
+                rehashIndex++;
+                if (--emptyVisits == 0) {
+                    break;
+                }
+                continue;
+            }
+            insert(rehashTarget, key, source.value(rehashIndex), source.hash(rehashIndex));
+            source.setKeyAndValue(rehashIndex, TOMBSTONE, null);
+            source.used--;
+            rehashIndex++;
+            entries--;
+        }
+        completeRehashIfDrained();
+    }
+
+    /**
+     * Keeps rehashing in batches until the rehash completes or {@code budgetNanos} has elapsed.
+     */
+    public void rehashFor(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        while (rehashTarget != null) {
+            rehashStep(100);
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+    }
+
+    private void rehashOnOperation() {
+        if (rehashTarget != null) {
+            rehashStep(REHASH_ENTRIES_PER_OPERATION);
+        }
+    }
+
+    private void completeRehashIfDrained() {
+        if (rehashTarget != null && main.used == 0) {
+            main = rehashTarget;
+            rehashTarget = null;
+            rehashIndex = 0;
+        }
+    }
+
+    private void expandIfNeeded() {
+        if (rehashTarget != null) {
+            if (!overloaded(rehashTarget, rehashTarget.used + 1)) {
+                return;
+            }
+            // The target filled up before the source drained; finish now and grow again below.
+            while (rehashTarget != null) {
+                rehashStep(Integer.MAX_VALUE);
+            }
+        }
+        if (overloaded(main, main.used + 1)) {
+            startRehash(main.capacity() * 2);
+        }
+    }
+
+    private void shrinkIfNeeded() {
+        if (rehashTarget == null && main.capacity() > MIN_CAPACITY && (long) main.used * 8 < main.capacity()) {
+            startRehash(capacityFor(main.used));
+        }
+    }
+
+    private void startRehash(int capacity) {
+        rehashTarget = new Table(capacity);
+        rehashIndex = 0;
+        completeRehashIfDrained();
+    }
+
+    @SuppressWarnings("unchecked")
+    private V valueAt(Table table, int index) {
+        return (V) table.value(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> void forEach(Table table, BiConsumer<? super K, ? super V> action) {
+        for (int segment = 0; segment < table.keys.length; segment++) {
+            Object[] keys = table.keys[segment];
+            Object[] values = table.values[segment];
+            for (int i = 0; i < keys.length; i++) {
+                Object key = keys[i];
+                if (key != null && key != TOMBSTONE) {
+                    action.accept((K) key, (V) values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * An entry homed at {@code bucket} sits somewhere in the probe run that starts there, so walking the
+     * run until the first empty slot finds all of them.
+     */
+    @SuppressWarnings("unchecked")
+    private void visitBucket(Table table, int bucket, int firstLive, BiConsumer<? super K, ? super V> action) {
+        int mask = table.mask;
+        int start = Math.max(bucket, firstLive);
+        int index = start;
+        do {
+            Object key = table.key(index);
+            if (key == null) {
+                return;
+            }
+            if (key != TOMBSTONE && (table.hash(index) & mask) == bucket) {
+                action.accept((K) key, (V) table.value(index));
+            }
+            index = (index + 1) & mask;
+            if (index == 0) {
+                index = firstLive;
+            }
+        } while (index != start);
+    }
+
+    private static long nextCursor(long cursor, int mask) {
+        cursor |= ~((long) mask);
+        cursor = Long.reverse(cursor);
+        cursor++;
+        return Long.reverse(cursor);
+    }
+
+    private int indexOf(Table table, Object key, int hash) {
+        // Source slots below rehashIndex have all been migrated, so probing can skip straight past them.
+        int firstLive = table == main && rehashTarget != null ? rehashIndex : 0;
+        int mask = table.mask;
+        int start = Math.max(hash & mask, firstLive);
+        int index = start;
+        do {
+            Object candidate = table.key(index);
+            if (candidate == null) {
+                return -1;
+            }
+            if (candidate != TOMBSTONE && table.hash(index) == hash && candidate.equals(key)) {
+                return index;
+            }
+            index = (index + 1) & mask;
+            if (index == 0) {
+                index = firstLive;
+            }
+        } while (index != start);
+        return -1;
+    }
+
+    private static void insert(Table table, Object key, Object value, int hash) {
+        int mask = table.mask;
+        int index = hash & mask;
+        while (table.key(index) != null) {
+            index = (index + 1) & mask;
+        }
+        table.set(index, key, value, hash);
+        table.used++;
+    }
+
+    /**
+     * Removes the entry at {@code hole} and pulls later members of the probe run back into it, so lookups
+     * never need tombstones.
+     */
+    private static void deleteAndShift(Table table, int hole) {
+        int mask = table.mask;
+        int index = hole;
+        while (true) {
+            index = (index + 1) & mask;
+            Object key = table.key(index);
+            if (key == null) {
+                break;
+            }
+            int home = table.hash(index) & mask;
+            boolean homeBetween = hole <= index
+                    ? home > hole && home <= index
+                    : home > hole || home <= index;
+            if (!homeBetween) {
+                table.set(hole, key, table.value(index), table.hash(index));
+                hole = index;
+            }
+        }
+        table.setKeyAndValue(hole, null, null);
+        table.used--;
+    }
+
+    private static boolean overloaded(Table table, int entries) {
+        return (long) entries * 4 > (long) table.capacity() * 3;
+    }
+
+    private static int capacityFor(int entries) {
+        long needed = Math.max(MIN_CAPACITY, (long) entries * 2);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    private int hash(Object key) {
+        int h = key.hashCode() ^ seed;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
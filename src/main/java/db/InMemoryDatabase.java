@@ -1,77 +1,581 @@
 package db;
 
-import java.time.LocalDateTime;
+import core.RedisServer;
+import replication.ReplicationInfo;
+import utils.ByteString;
+import utils.Clock;
+import utils.GlobPattern;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.function.BiConsumer;
 
+/**
+ * The keyspace, split into shards by key hash. Each shard has its own tables and counters so that
+ * commands on keys of different shards can run at the same time, each under its shard's lock; see
+ * {@link #shardOf}. Operations over the whole keyspace walk every shard and need all of the locks.
+ */
 public class InMemoryDatabase {
-    private final Map<String, Entry> mainTable;
+    private static final int ACTIVE_EXPIRE_KEYS_PER_LOOP = 20;
+    private static final int ACTIVE_EXPIRE_ACCEPTABLE_STALE = 10;
+    private static final int ACTIVE_EXPIRE_BUCKETS_PER_KEY = 20;
+    public static final long NO_EXPIRY = -1;
+    public static final long NO_KEY = -2;
+    // Integer-encoded values from 0 to 9999 share one Long each.
+    private static final int SHARED_INTEGERS = 10000;
+    private static final Long[] sharedIntegers = new Long[SHARED_INTEGERS];
+    // Longer strings are reported as "raw" by OBJECT ENCODING, as Redis does.
+    private static final int EMBSTR_SIZE_LIMIT = 44;
+
+    static {
+        for (int i = 0; i < SHARED_INTEGERS; i++) {
+            sharedIntegers[i] = (long) i;
+        }
+    }
+
+    private Shard[] shards;
+
+    private final List<ByteString> expireCandidateKeys = new ArrayList<>();
+    private final List<Entry> expireCandidateEntries = new ArrayList<>();
+    private final BiConsumer<ByteString, Entry> collectExpireCandidate = (key, entry) -> {
+        expireCandidateKeys.add(key);
+        expireCandidateEntries.add(entry);
+    };
+    // The shard the next expire cycle starts from.
+    private int expireShard = 0;
+    // The shard the next cron rehash starts from.
+    private int rehashShard = 0;
+    // While replaying the AOF, keys are never treated as expired so commands replay as they first ran.
+    private boolean loading = false;
+    private long expiredTimeCapReachedCount = 0;
+    private double expiredStalePercent = 0;
+
+    private InMemoryDatabase(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+    }
 
-    private InMemoryDatabase() {
-        mainTable = new HashMap<>();
+    private static final class Shard {
+        Dict<ByteString, Entry> mainTable = new Dict<>();
+        // Only keys with a TTL, mapped to the same Entry as in mainTable.
+        Dict<ByteString, Entry> expires = new Dict<>();
+        long expireCursor = 0;
+        long expiredKeys = 0;
+        // Writes since the last successful save; drives the save points.
+        long dirty = 0;
     }
 
     private static final class InstanceHolder {
-        static final InMemoryDatabase INSTANCE = new InMemoryDatabase();
+        // Used without a running server, as the benchmarks do, the keyspace has a single shard.
+        static final InMemoryDatabase INSTANCE = new InMemoryDatabase(
+                RedisServer.currentConfig() == null ? 1 : RedisServer.keyspaceShards());
     }
 
     public static InMemoryDatabase getInstance() {
         return InstanceHolder.INSTANCE;
     }
 
-    public void addTemporaryStringData(String key, String value, LocalDateTime dateTime) {
-        mainTable.put(key, new Entry(RedisDataType.STRING, value, dateTime));
+    /**
+     * An empty keyspace to load into while the live one keeps serving; see {@link #replaceKeyspace}.
+     */
+    static InMemoryDatabase newKeyspace() {
+        return new InMemoryDatabase(getInstance().shards.length);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * The shard holding {@code key}. Its bits are mixed differently from the ones the tables index
+     * with, so the keys of one shard still spread over all of its buckets.
+     */
+    public int shardOf(ByteString key) {
+        if (shards.length == 1) {
+            return 0;
+        }
+        return (int) ((Integer.toUnsignedLong(key.hashCode() * 0x9E3779B9) * shards.length) >>> 32);
+    }
+
+    private Shard shard(ByteString key) {
+        return shards[shardOf(key)];
+    }
+
+    /**
+     * Stores a string that expires at {@code expireAtMillis}, an absolute Unix time in milliseconds.
+     */
+    public void addTemporaryStringData(ByteString key, byte[] value, long expireAtMillis) {
+        put(key, new Entry(RedisDataType.STRING, stringValue(value), expireAtMillis));
+    }
+
+    public void addStringData(ByteString key, byte[] value) {
+        put(key, new Entry(RedisDataType.STRING, stringValue(value), NO_EXPIRY));
+    }
+
+    /**
+     * Stores a value of any type as loaded from a dump; {@code expireAtMillis} may be {@link #NO_EXPIRY}.
+     */
+    void addData(ByteString key, RedisDataType dataType, Object value, long expireAtMillis) {
+        if (dataType == RedisDataType.STRING && value instanceof byte[] bytes) {
+            value = stringValue(bytes);
+        }
+        put(key, new Entry(dataType, value, expireAtMillis));
+    }
+
+    private void put(ByteString key, Entry entry) {
+        Shard shard = shard(key);
+        Entry previous = shard.mainTable.put(key, entry);
+        if (entry.expireAtMillis() != NO_EXPIRY) {
+            shard.expires.put(key, entry);
+        } else if (previous != null && previous.expireAtMillis() != NO_EXPIRY) {
+            shard.expires.remove(key);
+        }
+        shard.dirty++;
+    }
+
+    /**
+     * Strings that spell a long are kept as one, integer-encoded; everything else as its bytes.
+     */
+    private static Object stringValue(byte[] value) {
+        if (value.length <= 20 && ByteString.isCanonicalInteger(value)) {
+            try {
+                return integer(ByteString.parseLong(value));
+            } catch (NumberFormatException e) {
+                // Beyond the range of a long.
+            }
+        }
+        return value;
+    }
+
+    private static Long integer(long value) {
+        return value >= 0 && value < SHARED_INTEGERS ? sharedIntegers[(int) value] : Long.valueOf(value);
+    }
+
+    public byte[] getStringData(ByteString key) {
+        Object value = getStringValue(key);
+        if (value instanceof Long number) {
+            return Long.toString(number).getBytes(StandardCharsets.US_ASCII);
+        }
+        return (byte[]) value;
+    }
+
+    /**
+     * The string in {@code key} as stored: a {@code Long} if it is integer-encoded, its bytes otherwise,
+     * or null if the key does not exist. Throws {@link WrongTypeException} if it holds another type.
+     */
+    public Object getStringValue(ByteString key) {
+        Entry entry = getLiveEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        return stringEntry(entry).value();
+    }
+
+    private static Entry stringEntry(Entry entry) {
+        if (entry.dataType() != RedisDataType.STRING) {
+            throw new WrongTypeException();
+        }
+        return entry;
+    }
+
+    /**
+     * Adds {@code delta} to the integer in {@code key}, a missing key counting as 0, and returns the
+     * result. The key keeps its TTL; an integer-encoded value is added to without being parsed. A key of
+     * another type is left as it is and throws {@link WrongTypeException}.
+     */
+    public long incrementBy(ByteString key, long delta) {
+        Entry entry = getLiveEntry(key);
+        long current = 0;
+        long expireAtMillis = NO_EXPIRY;
+        if (entry != null) {
+            current = stringEntry(entry).value() instanceof Long number ? number : parseInteger((byte[]) entry.value());
+            expireAtMillis = entry.expireAtMillis();
+        }
+        if (delta > 0 ? current > Long.MAX_VALUE - delta : current < Long.MIN_VALUE - delta) {
+            throw new IllegalArgumentException("increment or decrement would overflow");
+        }
+        long result = current + delta;
+        put(key, new Entry(RedisDataType.STRING, integer(result), expireAtMillis));
+        return result;
+    }
+
+    /**
+     * Adds {@code delta} to the number in {@code key} and returns the result as it is stored, in plain
+     * decimal notation without trailing zeros. The key keeps its TTL.
+     */
+    public byte[] incrementByFloat(ByteString key, double delta) {
+        Entry entry = getLiveEntry(key);
+        double current = 0;
+        long expireAtMillis = NO_EXPIRY;
+        if (entry != null) {
+            current = stringEntry(entry).value() instanceof Long number ? number : parseFloat((byte[]) entry.value());
+            expireAtMillis = entry.expireAtMillis();
+        }
+        double result = current + delta;
+        if (Double.isNaN(result) || Double.isInfinite(result)) {
+            throw new IllegalArgumentException("increment would produce NaN or Infinity");
+        }
+        byte[] formatted = BigDecimal.valueOf(result).stripTrailingZeros().toPlainString()
+                .getBytes(StandardCharsets.US_ASCII);
+        put(key, new Entry(RedisDataType.STRING, stringValue(formatted), expireAtMillis));
+        return formatted;
+    }
+
+    private static long parseInteger(byte[] value) {
+        try {
+            return ByteString.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not an integer or out of range");
+        }
     }
 
-    public void addStringData(String key, String value) {
-        mainTable.put(key, new Entry(RedisDataType.STRING, value, null));
+    private static double parseFloat(byte[] value) {
+        try {
+            return ByteString.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("value is not a valid float");
+        }
     }
 
-    public String getStringData(String key) {
-        Entry entry = mainTable.get(key);
-        if (entry == null || entry.dataType() != RedisDataType.STRING) {
+    /**
+     * How {@code key}'s value is stored, as OBJECT ENCODING names it, or null if there is no such key.
+     */
+    public String getEncoding(ByteString key) {
+        Entry entry = getLiveEntry(key);
+        if (entry == null) {
             return null;
         }
-        if (entry.expirationDateTime() == null ||
-                entry.expirationDateTime().isAfter(LocalDateTime.now())) {
-            return (String) entry.value();
+        return switch (entry.dataType()) {
+            case STRING -> {
+                if (entry.value() instanceof Long) {
+                    yield "int";
+                }
+                yield ((byte[]) entry.value()).length <= EMBSTR_SIZE_LIMIT ? "embstr" : "raw";
+            }
+            case LIST -> "quicklist";
+            case HASH, SET -> "hashtable";
+            case ZSET -> "skiplist";
+            case STREAM -> "stream";
+            case JSON -> "raw";
+        };
+    }
+
+    /**
+     * Returns the absolute expiry of {@code key} in Unix milliseconds, {@link #NO_EXPIRY} if the key
+     * is persistent or {@link #NO_KEY} if it does not exist.
+     */
+    public long getExpireTime(ByteString key) {
+        Entry entry = getLiveEntry(key);
+        if (entry == null) {
+            return NO_KEY;
         }
-        mainTable.remove(key);
+        return entry.expireAtMillis();
+    }
+
+    /**
+     * The expiry stored for {@code key}, even one that has already passed, or {@link #NO_KEY}; for
+     * logging a write exactly as it was applied. The caller holds the key's shard lock.
+     */
+    public long getStoredExpireTime(ByteString key) {
+        Entry entry = shard(key).mainTable.get(key);
+        return entry == null ? NO_KEY : entry.expireAtMillis();
+    }
+
+    private Entry getLiveEntry(ByteString key) {
+        Shard shard = shard(key);
+        Entry entry = shard.mainTable.get(key);
+        if (entry == null || loading || !isExpired(entry, Clock.millis())) {
+            return entry;
+        }
+        deleteExpired(shard, key);
         return null;
     }
 
-    public List<String> getKeysMatchingPattern(String regexPattern) {
-        try {
-            List<String> matchingKeys = new ArrayList<>();
-            Pattern pattern = Pattern.compile(regexPattern);
+    /**
+     * Every live key matching the glob {@code pattern}; see {@link GlobPattern}.
+     */
+    public List<ByteString> getKeysMatchingPattern(byte[] pattern) {
+        List<ByteString> matchingKeys = new ArrayList<>();
+        boolean matchAll = GlobPattern.matchesAll(pattern);
+        long now = Clock.millis();
 
-            for(Map.Entry<String, Entry> entry : mainTable.entrySet()) {
-                String key = entry.getKey();
-                if (pattern.matcher(key).matches()) {
+        for (Shard shard : shards) {
+            shard.mainTable.forEach((key, entry) -> {
+                if (!isExpired(entry, now) && (matchAll || GlobPattern.matches(pattern, key.bytes()))) {
                     matchingKeys.add(key);
                 }
+            });
+        }
+        return matchingKeys;
+    }
+
+    /**
+     * One step of SCAN: walks buckets from {@code cursor} until about {@code count} keys have been seen,
+     * adding the live ones that match {@code pattern} (null for all) and are of type {@code type} (null
+     * for any) to {@code keys}. Returns the cursor to continue from, or 0 once every shard is done.
+     * <p>
+     * The cursor holds the shard in its remainder by the shard count and the table cursor in its quotient.
+     * Table cursors advance in reverse-binary order, so a key present for the whole iteration is returned
+     * at least once even when tables grow, shrink or rehash in between.
+     */
+    public long scan(long cursor, int count, byte[] pattern, String type, List<ByteString> keys) {
+        int shard = (int) Long.remainderUnsigned(cursor, shards.length);
+        long tableCursor = Long.divideUnsigned(cursor, shards.length);
+        long now = Clock.millis();
+        int[] seen = {0};
+        BiConsumer<ByteString, Entry> collect = (key, entry) -> {
+            seen[0]++;
+            if (!isExpired(entry, now)
+                    && (type == null || entry.dataType().name().equalsIgnoreCase(type))
+                    && (pattern == null || GlobPattern.matches(pattern, key.bytes()))) {
+                keys.add(key);
+            }
+        };
+        // Bounds the work on a sparse table, where many buckets are empty.
+        long maxBuckets = count * 10L;
+        for (long buckets = 0; buckets < maxBuckets && seen[0] < count; buckets++) {
+            tableCursor = shards[shard].mainTable.scan(tableCursor, collect);
+            if (tableCursor == 0 && ++shard == shards.length) {
+                return 0;
+            }
+        }
+        return tableCursor * shards.length + shard;
+    }
+
+    /**
+     * Walks the expires index from where the previous cycle stopped and deletes what has expired. A pass
+     * samples up to 20 keys (more with higher effort); another pass follows while more than 10% of the
+     * sample was stale, until {@code timeLimitNanos} runs out. Shards take turns, and the next cycle
+     * starts after the shard this one stopped in.
+     */
+    public void activeExpireCycle(long timeLimitNanos, int effort) {
+        int keysPerLoop = ACTIVE_EXPIRE_KEYS_PER_LOOP + ACTIVE_EXPIRE_KEYS_PER_LOOP / 4 * (effort - 1);
+        int acceptableStale = ACTIVE_EXPIRE_ACCEPTABLE_STALE - (effort - 1);
+        long deadline = System.nanoTime() + timeLimitNanos;
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[expireShard];
+            expireShard = (expireShard + 1) % shards.length;
+            if (!activeExpireShard(shard, keysPerLoop, acceptableStale, deadline)) {
+                expiredTimeCapReachedCount++;
+                return;
+            }
+        }
+    }
+
+    // Returns false when the time limit ran out.
+    private boolean activeExpireShard(Shard shard, int keysPerLoop, int acceptableStale, long deadline) {
+        int sampled;
+        int expired;
+        do {
+            if (shard.expires.size() == 0) {
+                shard.expireCursor = 0;
+                return true;
+            }
+            int maxBuckets = keysPerLoop * ACTIVE_EXPIRE_BUCKETS_PER_KEY;
+            for (int buckets = 0; buckets < maxBuckets && expireCandidateKeys.size() < keysPerLoop; buckets++) {
+                shard.expireCursor = shard.expires.scan(shard.expireCursor, collectExpireCandidate);
+                if (shard.expireCursor == 0) {
+                    break;
+                }
+            }
+            long now = Clock.update();
+            sampled = expireCandidateKeys.size();
+            expired = 0;
+            for (int i = 0; i < sampled; i++) {
+                if (isExpired(expireCandidateEntries.get(i), now)) {
+                    deleteExpired(shard, expireCandidateKeys.get(i));
+                    expired++;
+                }
+            }
+            expireCandidateKeys.clear();
+            expireCandidateEntries.clear();
+            if (sampled > 0) {
+                expiredStalePercent = expiredStalePercent * 0.95 + (expired * 100.0 / sampled) * 0.05;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+        } while (sampled > 0 && expired * 100 > acceptableStale * sampled);
+        return true;
+    }
+
+    /**
+     * Pins the keyspace as it is now for a writer running on another thread. Must be called while
+     * holding every command lock; the caller releases the snapshot when done.
+     */
+    Snapshot snapshot() {
+        ReplicationInfo replication = RedisServer.getReplicationInfo();
+        List<Dict.Snapshot<ByteString, Entry>> entries = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            entries.add(shard.mainTable.snapshot());
+        }
+        return new Snapshot(entries, expiresSize(), Clock.millis(),
+                replication.getMasterReplId(), replication.getMasterReplOffset());
+    }
+
+    /**
+     * Also records the replication ID and offset the data corresponds to, so a replica restarting
+     * from the dump can ask its master for a partial resync.
+     */
+    record Snapshot(List<Dict.Snapshot<ByteString, Entry>> shards, int expiresSize, long createdAt,
+                    String replId, long replOffset) {
+        int size() {
+            int size = 0;
+            for (Dict.Snapshot<ByteString, Entry> shard : shards) {
+                size += shard.size();
             }
-            return matchingKeys;
-        } catch (PatternSyntaxException e) {
-            return Collections.emptyList();
+            return size;
+        }
+
+        void forEach(BiConsumer<ByteString, Entry> action) {
+            for (Dict.Snapshot<ByteString, Entry> shard : shards) {
+                shard.forEach(action);
+            }
+        }
+
+        void release() {
+            for (Dict.Snapshot<ByteString, Entry> shard : shards) {
+                shard.release();
+            }
+        }
+    }
+
+    void setLoading(boolean loading) {
+        this.loading = loading;
+    }
+
+    public long getDirty() {
+        long dirty = 0;
+        for (Shard shard : shards) {
+            dirty += shard.dirty;
+        }
+        return dirty;
+    }
+
+    void setDirty(long dirty) {
+        for (Shard shard : shards) {
+            shard.dirty = 0;
+        }
+        shards[0].dirty = dirty;
+    }
+
+    public long getExpiredKeys() {
+        long expiredKeys = 0;
+        for (Shard shard : shards) {
+            expiredKeys += shard.expiredKeys;
         }
+        return expiredKeys;
+    }
+
+    public long getExpiredTimeCapReachedCount() {
+        return expiredTimeCapReachedCount;
+    }
+
+    public double getExpiredStalePercent() {
+        return expiredStalePercent;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.mainTable.size();
+        }
+        return size;
+    }
+
+    public int expiresSize() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.expires.size();
+        }
+        return size;
+    }
+
+    private static void deleteExpired(Shard shard, ByteString key) {
+        shard.mainTable.remove(key);
+        shard.expires.remove(key);
+        shard.expiredKeys++;
     }
 
-    private record Entry(RedisDataType dataType, Object value, LocalDateTime expirationDateTime) {
+    static boolean isExpired(Entry entry, long now) {
+        return entry.expireAtMillis() != NO_EXPIRY && entry.expireAtMillis() <= now;
     }
 
-    private enum RedisDataType {
+    record Entry(RedisDataType dataType, Object value, long expireAtMillis) {
+    }
+
+    enum RedisDataType {
         STRING,
         LIST,
         HASH,
         SET,
+        ZSET,
         JSON,
         STREAM
     }
 
+    /**
+     * Gives the dictionaries up to {@code budgetNanos} of rehashing work in total, whatever the number of
+     * shards; called from the server cron. The next call picks up at the shard where this one ran out.
+     */
+    public void incrementalRehash(long budgetNanos) {
+        long deadline = System.nanoTime() + budgetNanos;
+        for (int visited = 0; visited < shards.length; visited++) {
+            Shard shard = shards[rehashShard];
+            if (!rehashUntil(shard.mainTable, deadline) || !rehashUntil(shard.expires, deadline)) {
+                return;
+            }
+            rehashShard = (rehashShard + 1) % shards.length;
+        }
+    }
+
+    // Returns false once the deadline has passed.
+    private static boolean rehashUntil(Dict<?, ?> dict, long deadline) {
+        if (!dict.isRehashing()) {
+            return true;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        dict.rehashFor(remaining);
+        return System.nanoTime() - deadline < 0;
+    }
+
+    /**
+     * Pre-sizes an empty keyspace before a bulk load.
+     */
+    void expand(int size, int expiresSize) {
+        for (Shard shard : shards) {
+            shard.mainTable.expand(size / shards.length);
+            shard.expires.expand(expiresSize / shards.length);
+        }
+    }
+
+    /**
+     * Takes over the keys of {@code loaded}, dropping the current ones. Must be called while holding the
+     * command locks; a snapshot of the old keyspace stays valid until it is released.
+     */
+    void replaceKeyspace(InMemoryDatabase loaded) {
+        long expiredKeys = getExpiredKeys();
+        long dirty = getDirty();
+        shards = loaded.shards;
+        for (Shard shard : shards) {
+            shard.expiredKeys = 0;
+        }
+        shards[0].expiredKeys = expiredKeys;
+        setDirty(dirty);
+    }
+
     public void clear() {
-        mainTable.clear();
+        for (Shard shard : shards) {
+            shard.mainTable.clear();
+            shard.expires.clear();
+            shard.expireCursor = 0;
+        }
     }
 
 }
@@ -0,0 +1,184 @@
+package db;
+
+import utils.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoders for the compact collection encodings Redis stores as a single RDB string: ziplist,
+ * listpack, intset and the legacy zipmap. Integer entries come back as their decimal form.
+ */
+final class RdbEncodings {
+
+    private RdbEncodings() {
+    }
+
+    static List<ByteString> ziplist(byte[] blob) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            in.position(8);
+            int count = in.getShort() & 0xFFFF;
+            List<ByteString> entries = new ArrayList<>(count == 0xFFFF ? 16 : count);
+            while ((in.get(in.position()) & 0xFF) != 0xFF) {
+                int previousLength = in.get() & 0xFF;
+                if (previousLength == 0xFE) {
+                    in.getInt();
+                }
+                entries.add(ziplistEntry(in));
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt ziplist", e);
+        }
+    }
+
+    private static ByteString ziplistEntry(ByteBuffer in) {
+        int encoding = in.get() & 0xFF;
+        return switch (encoding >> 6) {
+            case 0b00 -> bytes(in, encoding & 0x3F);
+            case 0b01 -> bytes(in, ((encoding & 0x3F) << 8) | (in.get() & 0xFF));
+            case 0b10 -> bytes(in, bigEndianInt(in));
+            default -> switch (encoding) {
+                case 0xC0 -> number(in.getShort());
+                case 0xD0 -> number(in.getInt());
+                case 0xE0 -> number(in.getLong());
+                case 0xF0 -> number(int24(in));
+                case 0xFE -> number(in.get());
+                default -> {
+                    int immediate = (encoding & 0x0F) - 1;
+                    if ((encoding & 0xF0) != 0xF0 || immediate < 0 || immediate > 12) {
+                        throw new IllegalArgumentException("Unknown ziplist encoding 0x" + Integer.toHexString(encoding));
+                    }
+                    yield number(immediate);
+                }
+            };
+        };
+    }
+
+    static List<ByteString> listpack(byte[] blob) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            in.position(4);
+            int count = in.getShort() & 0xFFFF;
+            List<ByteString> entries = new ArrayList<>(count == 0xFFFF ? 16 : count);
+            while ((in.get(in.position()) & 0xFF) != 0xFF) {
+                int start = in.position();
+                entries.add(listpackEntry(in));
+                skipBackLength(in, in.position() - start);
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt listpack", e);
+        }
+    }
+
+    private static ByteString listpackEntry(ByteBuffer in) {
+        int encoding = in.get() & 0xFF;
+        if ((encoding & 0x80) == 0) {
+            return number(encoding);
+        }
+        if ((encoding & 0xC0) == 0x80) {
+            return bytes(in, encoding & 0x3F);
+        }
+        if ((encoding & 0xE0) == 0xC0) {
+            int value = ((encoding & 0x1F) << 8) | (in.get() & 0xFF);
+            return number(value >= 1 << 12 ? value - (1 << 13) : value);
+        }
+        if ((encoding & 0xF0) == 0xE0) {
+            return bytes(in, ((encoding & 0x0F) << 8) | (in.get() & 0xFF));
+        }
+        return switch (encoding) {
+            case 0xF0 -> bytes(in, in.getInt());
+            case 0xF1 -> number(in.getShort());
+            case 0xF2 -> number(int24(in));
+            case 0xF3 -> number(in.getInt());
+            case 0xF4 -> number(in.getLong());
+            default -> throw new IllegalArgumentException("Unknown listpack encoding 0x" + Integer.toHexString(encoding));
+        };
+    }
+
+    /**
+     * Each listpack entry ends with its own length in 1 to 5 bytes of 7 bits each.
+     */
+    private static void skipBackLength(ByteBuffer in, int entryLength) {
+        int bytes = 1;
+        while (entryLength >= 1 << (7 * bytes) && bytes < 5) {
+            bytes++;
+        }
+        in.position(in.position() + bytes);
+    }
+
+    static List<ByteString> intset(byte[] blob) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int width = in.getInt();
+            int count = in.getInt();
+            List<ByteString> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(switch (width) {
+                    case 2 -> number(in.getShort());
+                    case 4 -> number(in.getInt());
+                    case 8 -> number(in.getLong());
+                    default -> throw new IllegalArgumentException("Unknown intset encoding " + width);
+                });
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt intset", e);
+        }
+    }
+
+    /**
+     * Legacy hash encoding: alternating keys and values, each value followed by unused padding.
+     */
+    static List<ByteString> zipmap(byte[] blob) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            in.get();
+            List<ByteString> entries = new ArrayList<>();
+            while ((in.get(in.position()) & 0xFF) != 0xFF) {
+                entries.add(bytes(in, zipmapLength(in)));
+                int valueLength = zipmapLength(in);
+                int free = in.get() & 0xFF;
+                entries.add(bytes(in, valueLength));
+                in.position(in.position() + free);
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt zipmap", e);
+        }
+    }
+
+    private static int zipmapLength(ByteBuffer in) {
+        int length = in.get() & 0xFF;
+        return length < 254 ? length : in.getInt();
+    }
+
+    private static int bigEndianInt(ByteBuffer in) {
+        int value = in.order(ByteOrder.BIG_ENDIAN).getInt();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        return value;
+    }
+
+    private static int int24(ByteBuffer in) {
+        return (in.get() & 0xFF) | ((in.get() & 0xFF) << 8) | (in.get() << 16);
+    }
+
+    private static ByteString bytes(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Entry length out of range: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new ByteString(bytes);
+    }
+
+    private static ByteString number(long value) {
+        return new ByteString(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+}
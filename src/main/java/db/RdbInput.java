@@ -0,0 +1,210 @@
+package db;
+
+import utils.Crc64;
+import utils.Lzf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered reader for the RDB encoding on top of any byte channel. It holds one fixed-size window of
+ * the input, so a dump of any size streams through constant memory, and it keeps the running CRC64
+ * of everything consumed for the checksum trailer.
+ */
+final class RdbInput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final int ENC_INT8 = 0;
+    static final int ENC_INT16 = 1;
+    static final int ENC_INT32 = 2;
+    static final int ENC_LZF = 3;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long bytesFromChannel = 0;
+    private long checksum = 0;
+    private int checksumFrom = 0;
+
+    RdbInput(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.flip();
+    }
+
+    /**
+     * Number of bytes consumed from the start of the channel.
+     */
+    long offset() {
+        return bytesFromChannel - buffer.remaining();
+    }
+
+    int readUnsignedByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    long readLongLE() throws IOException {
+        require(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    long readUnsignedIntLE() throws IOException {
+        require(Integer.BYTES);
+        return Integer.toUnsignedLong(buffer.getInt());
+    }
+
+    double readBinaryDouble() throws IOException {
+        return Double.longBitsToDouble(readLongLE());
+    }
+
+    /**
+     * Doubles of the old ZSET encoding: a length byte followed by ASCII, or 253/254/255 for NaN/+inf/-inf.
+     */
+    double readStringDouble() throws IOException {
+        int length = readUnsignedByte();
+        return switch (length) {
+            case 253 -> Double.NaN;
+            case 254 -> Double.POSITIVE_INFINITY;
+            case 255 -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(new String(readBytes(length), StandardCharsets.US_ASCII));
+        };
+    }
+
+    long readLength() throws IOException {
+        int first = readUnsignedByte();
+        return switch (first >> 6) {
+            case 0b00 -> first & 0x3F;
+            case 0b01 -> ((first & 0x3F) << 8) | readUnsignedByte();
+            case 0b10 -> readBigEndianLength(first);
+            default -> throw new IOException("Unexpected encoded value where a length was expected: 0x" + Integer.toHexString(first));
+        };
+    }
+
+    private long readBigEndianLength(int first) throws IOException {
+        int bytes = switch (first) {
+            case 0x80 -> Integer.BYTES;
+            case 0x81 -> Long.BYTES;
+            default -> throw new IOException("Unknown length encoding: 0x" + Integer.toHexString(first));
+        };
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | readUnsignedByte();
+        }
+        if (length < 0) {
+            throw new IOException("Length out of range");
+        }
+        return length;
+    }
+
+    int readLengthAsInt() throws IOException {
+        long length = readLength();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Length too large for a single value: " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Reads a string in any of its encodings: raw, integer or LZF-compressed.
+     */
+    byte[] readString() throws IOException {
+        return readRawString().get();
+    }
+
+    /**
+     * Reads a string without inflating it, so the LZF work can be done later on another thread.
+     */
+    RawString readRawString() throws IOException {
+        int first = readUnsignedByte();
+        if (first >> 6 != 0b11) {
+            buffer.position(buffer.position() - 1);
+            return new RawString(readBytes(readLengthAsInt()), RawString.UNCOMPRESSED);
+        }
+        return switch (first & 0x3F) {
+            case ENC_INT8 -> new RawString(ascii((byte) readUnsignedByte()), RawString.UNCOMPRESSED);
+            case ENC_INT16 -> {
+                require(Short.BYTES);
+                yield new RawString(ascii(buffer.getShort()), RawString.UNCOMPRESSED);
+            }
+            case ENC_INT32 -> {
+                require(Integer.BYTES);
+                yield new RawString(ascii(buffer.getInt()), RawString.UNCOMPRESSED);
+            }
+            case ENC_LZF -> {
+                int compressedLength = readLengthAsInt();
+                int length = readLengthAsInt();
+                yield new RawString(readBytes(compressedLength), length);
+            }
+            default -> throw new IOException("Unknown string encoding: 0x" + Integer.toHexString(first));
+        };
+    }
+
+    byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                require(1);
+            }
+            int n = Math.min(buffer.remaining(), length - offset);
+            buffer.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * CRC64 of everything consumed so far.
+     */
+    long checksum() {
+        checksum = Crc64.update(checksum, buffer.array(), checksumFrom, buffer.position() - checksumFrom);
+        checksumFrom = buffer.position();
+        return checksum;
+    }
+
+    /**
+     * A string as stored in the dump; {@code length} is the inflated size of an LZF-compressed one.
+     */
+    record RawString(byte[] bytes, int length) {
+        static final int UNCOMPRESSED = -1;
+
+        byte[] get() throws IOException {
+            if (length == UNCOMPRESSED) {
+                return bytes;
+            }
+            byte[] output = new byte[length];
+            try {
+                Lzf.decompress(bytes, output);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid LZF compressed string", e);
+            }
+            return output;
+        }
+    }
+
+    private static byte[] ascii(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void require(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        checksum();
+        buffer.compact();
+        checksumFrom = 0;
+        while (buffer.position() < bytes) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                buffer.flip();
+                throw new EOFException("Unexpected end of RDB data");
+            }
+            bytesFromChannel += read;
+        }
+        buffer.flip();
+    }
+}
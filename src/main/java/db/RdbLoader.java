@@ -1,130 +1,634 @@
 package db;
 
+import core.CommandHandler;
 import core.RedisServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.ByteString;
+import utils.Clock;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Streams an RDB dump into the keyspace. The input goes through {@link RdbInput}'s fixed window, so
+ * memory use beyond the loaded data itself does not depend on the dump size, and the CRC64 trailer
+ * is verified once the EOF opcode is reached. Progress is published for INFO while a load runs.
+ * <p>
+ * With {@code rdb-load-threads} above zero the load is a pipeline: the calling thread only splits the
+ * file into batches of entries in stored form, a pool of decoder threads inflates LZF strings and
+ * builds the collections, and a single inserter thread adds the decoded batches to the pre-sized
+ * keyspace in file order. A bounded queue between the stages keeps memory use flat.
+ */
 public class RdbLoader {
     private static final Logger logger = LoggerFactory.getLogger(RdbLoader.class);
+    private static final int MAX_RDB_VERSION = 12;
 
-    public static void load() {
-        logger.info("Starting RDB load");
-        if (RedisServer.currentConfig().properties().containsKey("dir") &&
-                RedisServer.currentConfig().properties().containsKey("dbfilename")) {
-            loadFromDump(
-                    RedisServer.currentConfig().properties().get("dir"),
-                    RedisServer.currentConfig().properties().get("dbfilename")
-            );
+    private static final int OPCODE_SLOT_INFO = 0xF4;
+    private static final int OPCODE_MODULE_AUX = 0xF5;
+    private static final int OPCODE_FUNCTION_PRE_GA = 0xF6;
+    private static final int OPCODE_FUNCTION2 = 0xF7;
+    private static final int OPCODE_IDLE = 0xF8;
+    private static final int OPCODE_FREQ = 0xF9;
+    private static final int OPCODE_AUX = 0xFA;
+    private static final int OPCODE_RESIZEDB = 0xFB;
+    private static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    private static final int OPCODE_EXPIRETIME = 0xFD;
+    private static final int OPCODE_SELECTDB = 0xFE;
+    private static final int OPCODE_EOF = 0xFF;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LIST = 1;
+    private static final int TYPE_SET = 2;
+    private static final int TYPE_ZSET = 3;
+    private static final int TYPE_HASH = 4;
+    private static final int TYPE_ZSET_2 = 5;
+    private static final int TYPE_HASH_ZIPMAP = 9;
+    private static final int TYPE_LIST_ZIPLIST = 10;
+    private static final int TYPE_SET_INTSET = 11;
+    private static final int TYPE_ZSET_ZIPLIST = 12;
+    private static final int TYPE_HASH_ZIPLIST = 13;
+    private static final int TYPE_LIST_QUICKLIST = 14;
+    private static final int TYPE_HASH_LISTPACK = 16;
+    private static final int TYPE_ZSET_LISTPACK = 17;
+    private static final int TYPE_LIST_QUICKLIST_2 = 18;
+    private static final int TYPE_SET_LISTPACK = 20;
+
+    private static final int QUICKLIST_NODE_ZIPLIST = 0;
+    private static final int QUICKLIST_NODE_PLAIN = 1;
+
+    private static final int BATCH_ENTRIES = 1024;
+    private static final long BATCH_BYTES = 1024 * 1024;
+    private static final int BATCHES_IN_FLIGHT_PER_THREAD = 4;
+    private static final Future<List<DecodedEntry>> END_OF_BATCHES = CompletableFuture.completedFuture(null);
+
+    private static volatile boolean loading = false;
+    // Loading into a fresh keyspace while the live one keeps serving commands.
+    private static volatile boolean asyncLoading = false;
+    private static volatile long loadStartMillis = 0;
+    private static volatile long loadingTotalBytes = 0;
+    private static volatile long loadingLoadedBytes = 0;
+    private static long lastLoadKeysLoaded = 0;
+    private static long lastLoadKeysExpired = 0;
+    private static long lastLoadBytesPerSecond = 0;
+    // Replication state recorded in the last dump loaded, used by a replica to resume from its master.
+    private static String loadedReplId;
+    private static long loadedReplOffset = -1;
+
+    private final RdbInput in;
+    private final boolean skipExpired;
+    private final InMemoryDatabase database;
+    // Written by the inserter thread when there is one, read after it has been joined.
+    private long keysLoaded = 0;
+    private long keysExpired = 0;
+    private long keysSkipped = 0;
+    private long entriesRead = 0;
+
+    // Null when decoding and inserting happen on the reading thread.
+    private final ExecutorService decoders;
+    private final BlockingQueue<Future<List<DecodedEntry>>> decodedBatches;
+    private Thread inserter;
+    private volatile Throwable insertFailure;
+    private List<RawEntry> batch = new ArrayList<>(BATCH_ENTRIES);
+    private long batchStartOffset = 0;
+
+    private RdbLoader(ReadableByteChannel channel, InMemoryDatabase database, boolean skipExpired, int decoderThreads) {
+        this.in = new RdbInput(channel);
+        this.database = database;
+        this.skipExpired = skipExpired;
+        if (decoderThreads > 0) {
+            AtomicInteger threadId = new AtomicInteger();
+            this.decoders = Executors.newFixedThreadPool(decoderThreads, task -> {
+                Thread thread = new Thread(task, "rdb-decoder-" + threadId.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.decodedBatches = new ArrayBlockingQueue<>(decoderThreads * BATCHES_IN_FLIGHT_PER_THREAD);
+        } else {
+            this.decoders = null;
+            this.decodedBatches = null;
         }
     }
 
-    private static void loadFromDump(String directoryName, String fileName) {
-        Path filePath = Path.of(directoryName).resolve(fileName);
+    public static boolean isLoading() {
+        return loading;
+    }
+
+    public static String loadedReplId() {
+        return loadedReplId;
+    }
+
+    public static long loadedReplOffset() {
+        return loadedReplOffset;
+    }
+
+    /**
+     * Loads the RDB payload a master sent for a full resync into a fresh keyspace while the current one
+     * keeps serving reads, then swaps it in under the command lock and runs {@code installed} right after,
+     * still holding it. {@code length} is 0 when the payload is streamed without announcing it.
+     */
+    public static void loadFromMaster(ReadableByteChannel channel, long length, Runnable installed) throws IOException {
+        InMemoryDatabase staging = InMemoryDatabase.newKeyspace();
+        asyncLoading = true;
+        try {
+            load(channel, length, false, staging);
+        } finally {
+            asyncLoading = false;
+        }
+        CommandHandler.runExclusively(() -> {
+            InMemoryDatabase database = InMemoryDatabase.getInstance();
+            database.replaceKeyspace(staging);
+            database.setDirty(0);
+            installed.run();
+        });
+    }
 
+    /**
+     * Loads the configured dump file at startup. A missing file is an empty dataset; a corrupt one is
+     * an error, so the server never starts on a silently truncated keyspace.
+     */
+    public static void load() throws IOException {
+        if (!RedisServer.currentConfig().properties().containsKey("dir") ||
+                !RedisServer.currentConfig().properties().containsKey("dbfilename")) {
+            return;
+        }
+        Path filePath = Path.of(RedisServer.currentConfig().properties().get("dir"))
+                .resolve(RedisServer.currentConfig().properties().get("dbfilename"));
         if (!Files.exists(filePath)) {
             logger.info("RDB file does not exist: {}", filePath);
             return;
         }
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            // Keys that expired while the server was down are dropped, except on a replica,
+            // which waits for its master to delete them.
+            boolean skipExpired = !RedisServer.currentConfig().properties().containsKey("replicaof");
+            load(channel, channel.size(), skipExpired);
+        }
+        InMemoryDatabase.getInstance().setDirty(0);
+    }
+
+    /**
+     * Reads one RDB payload from {@code channel} and returns the number of bytes it took, so a caller
+     * can continue with whatever follows it. {@code totalBytes} is only used for progress reporting.
+     */
+    static long load(ReadableByteChannel channel, long totalBytes, boolean skipExpired) throws IOException {
+        loading = true;
+        try {
+            return load(channel, totalBytes, skipExpired, InMemoryDatabase.getInstance());
+        } finally {
+            loading = false;
+        }
+    }
 
-        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
-            ByteBuffer buffer = ByteBuffer.allocate((int) fileChannel.size());
-            fileChannel.read(buffer);
-            buffer.flip();
-            if (!new String(buffer.array(), 0, 5, StandardCharsets.UTF_8).startsWith("REDIS")) {
-                logger.warn("Invalid RDB header");
-                return;
-            }
-            while (buffer.hasRemaining() && (buffer.get() & 0xFF) != 0xFB);
-            skipInteger(buffer);
-            skipInteger(buffer);
-
-            while (buffer.hasRemaining() && (buffer.get(buffer.position()) & 0xFF) != 0xFF) {
-                int marker = buffer.get() & 0xFF;
-                long expiry = 0;
-                if (marker == 0xFC || marker == 0xFD) {
-                    expiry = readExpiry(buffer, marker == 0xFC);
-                    marker = buffer.get() & 0xFF;
+    private static long load(ReadableByteChannel channel, long totalBytes, boolean skipExpired, InMemoryDatabase database) throws IOException {
+        int decoderThreads = Integer.parseInt(RedisServer.currentConfig().properties().getOrDefault("rdb-load-threads", "0"));
+        RdbLoader loader = new RdbLoader(channel, database, skipExpired, decoderThreads);
+        loadStartMillis = Clock.millis();
+        loadingTotalBytes = totalBytes;
+        loadingLoadedBytes = 0;
+        loader.run();
+        long elapsedMillis = Math.max(1, Clock.millis() - loadStartMillis);
+        lastLoadKeysLoaded = loader.keysLoaded;
+        lastLoadKeysExpired = loader.keysExpired;
+        lastLoadBytesPerSecond = loader.in.offset() * 1000 / elapsedMillis;
+        logger.info("Done loading RDB, keys loaded: {}, keys expired: {}, {} bytes in {} ms",
+                loader.keysLoaded, loader.keysExpired, loader.in.offset(), elapsedMillis);
+        return loader.in.offset();
+    }
+
+    public static String info() {
+        boolean inProgress = loading || asyncLoading;
+        StringBuilder info = new StringBuilder()
+                .append("loading:").append(loading ? 1 : 0).append("\r\n")
+                .append("async_loading:").append(asyncLoading ? 1 : 0).append("\r\n");
+        if (inProgress) {
+            long total = loadingTotalBytes;
+            long loaded = loadingLoadedBytes;
+            long elapsedSeconds = Math.max(0, (Clock.millis() - loadStartMillis) / 1000);
+            double percent = total > 0 ? loaded * 100.0 / total : 0;
+            long eta = loaded > 0 && total > loaded ? (long) ((double) (total - loaded) / loaded * elapsedSeconds) : 1;
+            info.append("loading_start_time:").append(loadStartMillis / 1000).append("\r\n")
+                    .append("loading_total_bytes:").append(total).append("\r\n")
+                    .append("loading_loaded_bytes:").append(loaded).append("\r\n")
+                    .append("loading_loaded_perc:").append(String.format("%.2f", percent)).append("\r\n")
+                    .append("loading_eta_seconds:").append(eta).append("\r\n");
+        }
+        return info.append("rdb_last_load_keys_loaded:").append(lastLoadKeysLoaded).append("\r\n")
+                .append("rdb_last_load_keys_expired:").append(lastLoadKeysExpired).append("\r\n")
+                .append("rdb_last_load_bytes_per_sec:").append(lastLoadBytesPerSecond)
+                .toString();
+    }
+
+    private void run() throws IOException {
+        if (decoders != null) {
+            inserter = new Thread(this::insertDecodedBatches, "rdb-inserter");
+            inserter.start();
+        }
+        boolean completed = false;
+        try {
+            loadAll();
+            finishPipeline();
+            completed = true;
+        } finally {
+            if (decoders != null) {
+                if (!completed) {
+                    inserter.interrupt();
+                    joinInserter();
                 }
+                decoders.shutdownNow();
+            }
+        }
+    }
+
+    private void loadAll() throws IOException {
+        byte[] header = in.readBytes(9);
+        String magic = new String(header, StandardCharsets.US_ASCII);
+        if (!magic.startsWith("REDIS")) {
+            throw new IOException("Wrong signature trying to load DB from file");
+        }
+        int version;
+        try {
+            version = Integer.parseInt(magic.substring(5));
+        } catch (NumberFormatException e) {
+            throw new IOException("Wrong signature trying to load DB from file");
+        }
+        if (version < 1 || version > MAX_RDB_VERSION) {
+            throw new IOException("Can't handle RDB format version " + version);
+        }
+
+        long db = 0;
+        long expireAtMillis = InMemoryDatabase.NO_EXPIRY;
+        while (true) {
+            loadingLoadedBytes = in.offset();
+            int opcode = in.readUnsignedByte();
+            switch (opcode) {
+                case OPCODE_EOF -> {
+                    verifyChecksum(version);
+                    if (keysSkipped > 0) {
+                        logger.warn("Skipped {} keys stored in databases other than 0", keysSkipped);
+                    }
+                    return;
+                }
+                case OPCODE_SELECTDB -> db = in.readLength();
+                case OPCODE_RESIZEDB -> {
+                    long size = in.readLength();
+                    long expiresSize = in.readLength();
+                    if (db == 0 && entriesRead == 0) {
+                        database.expand((int) Math.min(Integer.MAX_VALUE, size), (int) Math.min(Integer.MAX_VALUE, expiresSize));
+                    }
+                }
+                case OPCODE_AUX -> {
+                    String key = new String(in.readString(), StandardCharsets.UTF_8);
+                    String value = new String(in.readString(), StandardCharsets.UTF_8);
+                    logger.debug("RDB aux field {}: {}", key, value);
+                    if (key.equals("repl-id")) {
+                        loadedReplId = value;
+                    } else if (key.equals("repl-offset")) {
+                        loadedReplOffset = Long.parseLong(value);
+                    }
+                }
+                case OPCODE_EXPIRETIME_MS -> expireAtMillis = in.readLongLE();
+                case OPCODE_EXPIRETIME -> expireAtMillis = in.readUnsignedIntLE() * 1000L;
+                case OPCODE_IDLE -> in.readLength();
+                case OPCODE_FREQ -> in.readUnsignedByte();
+                case OPCODE_SLOT_INFO -> {
+                    in.readLength();
+                    in.readLength();
+                    in.readLength();
+                }
+                case OPCODE_FUNCTION2 -> in.readString();
+                case OPCODE_MODULE_AUX, OPCODE_FUNCTION_PRE_GA ->
+                        throw new IOException("Unsupported RDB opcode 0x" + Integer.toHexString(opcode));
+                default -> {
+                    readEntry(opcode, db, expireAtMillis);
+                    expireAtMillis = InMemoryDatabase.NO_EXPIRY;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one key with its value still in stored form; decoding happens in {@link #decode}.
+     */
+    private void readEntry(int type, long db, long expireAtMillis) throws IOException {
+        byte[] key = in.readString();
+        Object payload = switch (type) {
+            case TYPE_STRING, TYPE_HASH_ZIPMAP, TYPE_LIST_ZIPLIST, TYPE_SET_INTSET, TYPE_ZSET_ZIPLIST,
+                 TYPE_HASH_ZIPLIST, TYPE_HASH_LISTPACK, TYPE_ZSET_LISTPACK, TYPE_SET_LISTPACK -> in.readRawString();
+            case TYPE_LIST, TYPE_SET -> readRawStrings(in.readLengthAsInt());
+            case TYPE_HASH -> readRawStrings(in.readLengthAsInt() * 2);
+            case TYPE_ZSET, TYPE_ZSET_2 -> {
+                int size = in.readLengthAsInt();
+                RdbInput.RawString[] members = new RdbInput.RawString[size];
+                double[] scores = new double[size];
+                for (int i = 0; i < size; i++) {
+                    members[i] = in.readRawString();
+                    scores[i] = type == TYPE_ZSET_2 ? in.readBinaryDouble() : in.readStringDouble();
+                }
+                yield new RawZset(members, scores);
+            }
+            case TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2 -> {
+                int size = in.readLengthAsInt();
+                RdbInput.RawString[] nodes = new RdbInput.RawString[size];
+                long[] containers = new long[size];
+                for (int i = 0; i < size; i++) {
+                    containers[i] = type == TYPE_LIST_QUICKLIST_2 ? in.readLength() : QUICKLIST_NODE_ZIPLIST;
+                    nodes[i] = in.readRawString();
+                }
+                yield new RawQuicklist(nodes, containers);
+            }
+            default -> throw new IOException("Unsupported RDB value type " + type + " for key "
+                    + new String(key, StandardCharsets.UTF_8));
+        };
+
+        if (db != 0) {
+            keysSkipped++;
+            return;
+        }
+        if (skipExpired && expireAtMillis != InMemoryDatabase.NO_EXPIRY && expireAtMillis <= Clock.millis()) {
+            keysExpired++;
+            return;
+        }
+        RawEntry entry = new RawEntry(type, key, payload, expireAtMillis);
+        entriesRead++;
+        if (decoders == null) {
+            insert(decode(entry));
+            return;
+        }
+        batch.add(entry);
+        if (batch.size() >= BATCH_ENTRIES || in.offset() - batchStartOffset >= BATCH_BYTES) {
+            submitBatch();
+        }
+    }
+
+    private RdbInput.RawString[] readRawStrings(int count) throws IOException {
+        RdbInput.RawString[] values = new RdbInput.RawString[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readRawString();
+        }
+        return values;
+    }
+
+    private void submitBatch() throws IOException {
+        List<RawEntry> entries = batch;
+        batch = new ArrayList<>(BATCH_ENTRIES);
+        batchStartOffset = in.offset();
+        enqueue(decoders.submit(() -> decodeAll(entries)));
+    }
+
+    /**
+     * Blocks while the inserter is behind, but notices if it has stopped on an error.
+     */
+    private void enqueue(Future<List<DecodedEntry>> decodedBatch) throws IOException {
+        try {
+            while (!decodedBatches.offer(decodedBatch, 100, TimeUnit.MILLISECONDS)) {
+                checkInsertFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the RDB");
+        }
+    }
+
+    private void finishPipeline() throws IOException {
+        if (decoders == null) {
+            return;
+        }
+        if (!batch.isEmpty()) {
+            submitBatch();
+        }
+        enqueue(END_OF_BATCHES);
+        joinInserter();
+        checkInsertFailure();
+    }
+
+    private void joinInserter() throws InterruptedIOException {
+        try {
+            inserter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the RDB");
+        }
+    }
 
-                if (marker != 0) {
-                    logger.warn("Unsupported value type: 0x{}", String.format("%02X", marker));
-                    break;
+    private void checkInsertFailure() throws IOException {
+        Throwable failure = insertFailure;
+        if (failure instanceof IOException e) {
+            throw e;
+        }
+        if (failure != null) {
+            throw new IOException("Failed to decode RDB entries", failure);
+        }
+    }
+
+    /**
+     * Inserter thread: applies decoded batches in the order they were read.
+     */
+    private void insertDecodedBatches() {
+        try {
+            while (true) {
+                List<DecodedEntry> entries = decodedBatches.take().get();
+                if (entries == null) {
+                    return;
                 }
+                for (DecodedEntry entry : entries) {
+                    insert(entry);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            insertFailure = e.getCause();
+        } catch (RuntimeException e) {
+            insertFailure = e;
+        }
+    }
 
-                String key = readString(buffer);
-                String value = readString(buffer);
+    private static List<DecodedEntry> decodeAll(List<RawEntry> entries) throws IOException {
+        List<DecodedEntry> decoded = new ArrayList<>(entries.size());
+        for (RawEntry entry : entries) {
+            decoded.add(decode(entry));
+        }
+        return decoded;
+    }
+
+    private void insert(DecodedEntry entry) {
+        database.addData(entry.key(), entry.dataType(), entry.value(), entry.expireAtMillis());
+        keysLoaded++;
+    }
 
-                if (expiry > 0) {
-                    LocalDateTime expiryDateTime = expiry <= 2L * Integer.MAX_VALUE ?
-                            LocalDateTime.ofInstant(Instant.ofEpochSecond(expiry), ZoneId.systemDefault()) :
-                            LocalDateTime.ofInstant(Instant.ofEpochMilli(expiry), ZoneId.systemDefault());
-                    InMemoryDatabase.getInstance().addTemporaryStringData(key, value, expiryDateTime);
-                } else {
-                    InMemoryDatabase.getInstance().addStringData(key, value);
+    /**
+     * Inflates and decodes a stored value. Runs on the decoder threads, so it only touches its argument.
+     */
+    private static DecodedEntry decode(RawEntry entry) throws IOException {
+        InMemoryDatabase.RedisDataType dataType;
+        Object value;
+        switch (entry.type()) {
+            case TYPE_STRING -> {
+                dataType = InMemoryDatabase.RedisDataType.STRING;
+                value = blob(entry);
+            }
+            case TYPE_LIST -> {
+                dataType = InMemoryDatabase.RedisDataType.LIST;
+                value = strings(entry);
+            }
+            case TYPE_LIST_ZIPLIST -> {
+                dataType = InMemoryDatabase.RedisDataType.LIST;
+                value = new ArrayList<>(RdbEncodings.ziplist(blob(entry)));
+            }
+            case TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2 -> {
+                dataType = InMemoryDatabase.RedisDataType.LIST;
+                value = quicklist((RawQuicklist) entry.payload());
+            }
+            case TYPE_SET -> {
+                dataType = InMemoryDatabase.RedisDataType.SET;
+                value = new LinkedHashSet<>(strings(entry));
+            }
+            case TYPE_SET_INTSET -> {
+                dataType = InMemoryDatabase.RedisDataType.SET;
+                value = new LinkedHashSet<>(RdbEncodings.intset(blob(entry)));
+            }
+            case TYPE_SET_LISTPACK -> {
+                dataType = InMemoryDatabase.RedisDataType.SET;
+                value = new LinkedHashSet<>(RdbEncodings.listpack(blob(entry)));
+            }
+            case TYPE_HASH -> {
+                dataType = InMemoryDatabase.RedisDataType.HASH;
+                value = toHash(strings(entry));
+            }
+            case TYPE_HASH_ZIPMAP -> {
+                dataType = InMemoryDatabase.RedisDataType.HASH;
+                value = toHash(RdbEncodings.zipmap(blob(entry)));
+            }
+            case TYPE_HASH_ZIPLIST -> {
+                dataType = InMemoryDatabase.RedisDataType.HASH;
+                value = toHash(RdbEncodings.ziplist(blob(entry)));
+            }
+            case TYPE_HASH_LISTPACK -> {
+                dataType = InMemoryDatabase.RedisDataType.HASH;
+                value = toHash(RdbEncodings.listpack(blob(entry)));
+            }
+            case TYPE_ZSET, TYPE_ZSET_2 -> {
+                dataType = InMemoryDatabase.RedisDataType.ZSET;
+                RawZset raw = (RawZset) entry.payload();
+                Map<ByteString, Double> zset = new LinkedHashMap<>();
+                for (int i = 0; i < raw.members().length; i++) {
+                    zset.put(new ByteString(raw.members()[i].get()), raw.scores()[i]);
                 }
+                value = zset;
             }
-            logger.info("Completed loading RDB file");
-        } catch (Exception e) {
-            logger.warn("Failed to load RDB file", e);
+            case TYPE_ZSET_ZIPLIST -> {
+                dataType = InMemoryDatabase.RedisDataType.ZSET;
+                value = toZset(RdbEncodings.ziplist(blob(entry)));
+            }
+            case TYPE_ZSET_LISTPACK -> {
+                dataType = InMemoryDatabase.RedisDataType.ZSET;
+                value = toZset(RdbEncodings.listpack(blob(entry)));
+            }
+            default -> throw new IOException("Unsupported RDB value type " + entry.type());
         }
+        return new DecodedEntry(new ByteString(entry.key()), dataType, value, entry.expireAtMillis());
     }
 
-    private static long readExpiry(ByteBuffer buffer, boolean isMillis) {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        long expiry = isMillis ? buffer.getLong() : buffer.getInt();
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        return expiry;
+    private static byte[] blob(RawEntry entry) throws IOException {
+        return ((RdbInput.RawString) entry.payload()).get();
     }
 
-    private static String readString(ByteBuffer buffer) {
-        int lengthEncoding = (buffer.get(buffer.position()) & 0xC0) >> 6;
+    private static List<ByteString> strings(RawEntry entry) throws IOException {
+        RdbInput.RawString[] raw = (RdbInput.RawString[]) entry.payload();
+        List<ByteString> values = new ArrayList<>(raw.length);
+        for (RdbInput.RawString value : raw) {
+            values.add(new ByteString(value.get()));
+        }
+        return values;
+    }
 
-        if (lengthEncoding == 0b11) {
-            return String.valueOf(readInteger(buffer));
+    private static List<ByteString> quicklist(RawQuicklist raw) throws IOException {
+        List<ByteString> list = new ArrayList<>();
+        for (int i = 0; i < raw.nodes().length; i++) {
+            byte[] node = raw.nodes()[i].get();
+            if (raw.containers()[i] == QUICKLIST_NODE_ZIPLIST) {
+                list.addAll(RdbEncodings.ziplist(node));
+            } else if (raw.containers()[i] == QUICKLIST_NODE_PLAIN) {
+                list.add(new ByteString(node));
+            } else {
+                list.addAll(RdbEncodings.listpack(node));
+            }
         }
+        return list;
+    }
 
-        int length;
-        if (lengthEncoding == 0b00) {
-            length = (buffer.get() & 0x3F);
-        } else if (lengthEncoding == 0b01) {
-            length = ((buffer.getShort() & 0x3FFF));
-        } else {
-            buffer.get();
-            length = buffer.getInt();
+    private static Map<ByteString, ByteString> toHash(List<ByteString> flat) throws IOException {
+        if (flat.size() % 2 != 0) {
+            throw new IOException("Hash encoding with an odd number of elements");
         }
+        Map<ByteString, ByteString> hash = new LinkedHashMap<>();
+        for (int i = 0; i < flat.size(); i += 2) {
+            hash.put(flat.get(i), flat.get(i + 1));
+        }
+        return hash;
+    }
 
-        byte[] bytes = new byte[length];
-        buffer.get(bytes);
-        return new String(bytes, StandardCharsets.UTF_8);
+    private static Map<ByteString, Double> toZset(List<ByteString> flat) throws IOException {
+        if (flat.size() % 2 != 0) {
+            throw new IOException("Sorted set encoding with an odd number of elements");
+        }
+        Map<ByteString, Double> zset = new LinkedHashMap<>();
+        for (int i = 0; i < flat.size(); i += 2) {
+            try {
+                zset.put(flat.get(i), Double.parseDouble(flat.get(i + 1).toString()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid sorted set score", e);
+            }
+        }
+        return zset;
     }
 
-    private static long readInteger(ByteBuffer buffer) {
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        long result = switch (buffer.get() & 0xFF) {
-            case 0xC0 -> buffer.get();
-            case 0xC1 -> buffer.getShort();
-            case 0xC2 -> buffer.getInt();
-            default -> 0;
-        };
-        buffer.order(ByteOrder.BIG_ENDIAN);
-        return result;
+    /**
+     * From version 5 on, the EOF opcode is followed by the CRC64 of everything before it; a stored
+     * checksum of zero means the writer had checksums disabled.
+     */
+    private void verifyChecksum(int version) throws IOException {
+        if (version < 5) {
+            return;
+        }
+        long expected = in.checksum();
+        long stored = in.readLongLE();
+        if (stored != 0 && stored != expected) {
+            throw new IOException("Wrong RDB checksum expected: " + Long.toHexString(stored)
+                    + " got: " + Long.toHexString(expected));
+        }
+    }
+
+    private record RawEntry(int type, byte[] key, Object payload, long expireAtMillis) {
+    }
+
+    private record RawZset(RdbInput.RawString[] members, double[] scores) {
+    }
+
+    private record RawQuicklist(RdbInput.RawString[] nodes, long[] containers) {
     }
 
-    private static void skipInteger(ByteBuffer buffer) {
-        int identifier = buffer.get() & 0xFF;
-        if (identifier == 0xC0) buffer.get();
-        else if (identifier == 0xC1) buffer.getShort();
-        else if (identifier == 0xC2) buffer.getInt();
+    private record DecodedEntry(ByteString key, InMemoryDatabase.RedisDataType dataType, Object value, long expireAtMillis) {
     }
 }
@@ -0,0 +1,199 @@
+package db;
+
+import core.RedisServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.Clock;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * Coordinates SAVE, BGSAVE and the {@code save <seconds> <changes>} rules. Every method runs under
+ * the command lock; a background save works from a copy-on-write snapshot of the keyspace on its own
+ * thread, and the server cron collects its result once the thread has finished.
+ */
+public final class RdbSaver {
+    private static final Logger logger = LoggerFactory.getLogger(RdbSaver.class);
+    private static final long BGSAVE_RETRY_DELAY_MILLIS = 5000;
+
+    private static long lastSaveMillis = Clock.millis();
+    private static long lastBgsaveAttemptMillis = 0;
+    private static boolean lastBgsaveOk = true;
+    private static long lastBgsaveDurationMillis = -1;
+
+    private static Thread backgroundSave;
+    private static long backgroundSaveStartMillis;
+    private static long dirtyAtBackgroundSaveStart;
+    // Written by the background thread, read once it has terminated.
+    private static IOException backgroundSaveError;
+
+    private RdbSaver() {
+    }
+
+    /**
+     * Writes the dump synchronously; the caller holds the command lock for the whole write.
+     */
+    public static void save() throws IOException {
+        if (isBackgroundSaveInProgress()) {
+            throw new IllegalStateException("Background save already in progress");
+        }
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        InMemoryDatabase.Snapshot snapshot = database.snapshot();
+        try {
+            RdbWriter.save(snapshot, dumpPath(), tempPath("temp-"));
+        } finally {
+            snapshot.release();
+        }
+        database.setDirty(0);
+        lastSaveMillis = Clock.millis();
+        logger.info("DB saved on disk");
+    }
+
+    /**
+     * Serializes the current dataset to {@code channel} on a thread of its own, for a replica's diskless
+     * full resynchronization. The snapshot is taken now, at the current replication offset;
+     * {@code onComplete} receives the failure, or null, once the thread is done.
+     */
+    public static void streamSnapshot(WritableByteChannel channel, Consumer<IOException> onComplete) {
+        InMemoryDatabase.Snapshot snapshot = InMemoryDatabase.getInstance().snapshot();
+        Thread stream = new Thread(() -> {
+            IOException failure = null;
+            try {
+                RdbWriter.write(snapshot, channel, false);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                snapshot.release();
+            }
+            onComplete.accept(failure);
+        }, "repl-diskless-sync");
+        stream.setDaemon(true);
+        stream.start();
+    }
+
+    /**
+     * Starts a background save and returns false if one is already running.
+     */
+    public static boolean backgroundSave() {
+        if (isBackgroundSaveInProgress()) {
+            return false;
+        }
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        InMemoryDatabase.Snapshot snapshot = database.snapshot();
+        Path target = dumpPath();
+        Path tempFile = tempPath("temp-bgsave-");
+        dirtyAtBackgroundSaveStart = database.getDirty();
+        backgroundSaveStartMillis = Clock.millis();
+        lastBgsaveAttemptMillis = backgroundSaveStartMillis;
+        backgroundSaveError = null;
+        backgroundSave = new Thread(() -> {
+            try {
+                RdbWriter.save(snapshot, target, tempFile);
+            } catch (IOException e) {
+                backgroundSaveError = e;
+            } finally {
+                snapshot.release();
+            }
+        }, "bgsave");
+        backgroundSave.start();
+        logger.info("Background saving started");
+        return true;
+    }
+
+    public static boolean isBackgroundSaveInProgress() {
+        if (backgroundSave != null && !backgroundSave.isAlive()) {
+            finishBackgroundSave();
+        }
+        return backgroundSave != null;
+    }
+
+    /**
+     * Called from the server cron: reaps a finished background save and starts a new one when a save
+     * point is due.
+     */
+    public static void cron() {
+        if (isBackgroundSaveInProgress()) {
+            return;
+        }
+        long dirty = InMemoryDatabase.getInstance().getDirty();
+        long now = Clock.millis();
+        long[] savePoints = RedisServer.savePoints();
+        for (int i = 0; i + 1 < savePoints.length; i += 2) {
+            long seconds = savePoints[i];
+            long changes = savePoints[i + 1];
+            if (dirty >= changes && now - lastSaveMillis > seconds * 1000
+                    && (lastBgsaveOk || now - lastBgsaveAttemptMillis > BGSAVE_RETRY_DELAY_MILLIS)) {
+                logger.info("{} changes in {} seconds. Saving...", changes, seconds);
+                backgroundSave();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for a running background save, then writes a final dump if any save point is configured.
+     */
+    public static void saveOnShutdown() {
+        Thread running = backgroundSave;
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            finishBackgroundSave();
+        }
+        // A partially loaded keyspace must not overwrite the dump it came from.
+        if (RedisServer.savePoints().length == 0 || RdbLoader.isLoading()) {
+            return;
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            logger.error("Error trying to save the DB on shutdown", e);
+        }
+    }
+
+    public static long lastSaveSeconds() {
+        return lastSaveMillis / 1000;
+    }
+
+    public static String info() {
+        boolean inProgress = isBackgroundSaveInProgress();
+        return "rdb_changes_since_last_save:" + InMemoryDatabase.getInstance().getDirty() + "\r\n" +
+                "rdb_bgsave_in_progress:" + (inProgress ? 1 : 0) + "\r\n" +
+                "rdb_last_save_time:" + lastSaveSeconds() + "\r\n" +
+                "rdb_last_bgsave_status:" + (lastBgsaveOk ? "ok" : "err") + "\r\n" +
+                "rdb_last_bgsave_time_sec:" + (lastBgsaveDurationMillis < 0 ? -1 : lastBgsaveDurationMillis / 1000) + "\r\n" +
+                "rdb_current_bgsave_time_sec:" + (inProgress ? (Clock.millis() - backgroundSaveStartMillis) / 1000 : -1);
+    }
+
+    private static void finishBackgroundSave() {
+        backgroundSave = null;
+        lastBgsaveDurationMillis = Clock.millis() - backgroundSaveStartMillis;
+        if (backgroundSaveError != null) {
+            lastBgsaveOk = false;
+            logger.warn("Background saving error", backgroundSaveError);
+            return;
+        }
+        lastBgsaveOk = true;
+        InMemoryDatabase database = InMemoryDatabase.getInstance();
+        database.setDirty(database.getDirty() - dirtyAtBackgroundSaveStart);
+        lastSaveMillis = backgroundSaveStartMillis;
+        logger.info("Background saving terminated with success");
+    }
+
+    private static Path dumpPath() {
+        return Path.of(RedisServer.currentConfig().properties().get("dir"))
+                .resolve(RedisServer.currentConfig().properties().get("dbfilename"));
+    }
+
+    private static Path tempPath(String prefix) {
+        return Path.of(RedisServer.currentConfig().properties().get("dir"))
+                .resolve(prefix + ProcessHandle.current().pid() + ".rdb");
+    }
+}
@@ -0,0 +1,274 @@
+package db;
+
+import utils.ByteString;
+import utils.Crc64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes a keyspace snapshot in RDB version 11 format. Output is staged in a heap buffer that
+ * feeds the CRC64 trailer, and the file is written under a temporary name, fsynced and then
+ * renamed over the target so readers never see a partial dump.
+ */
+public final class RdbWriter {
+    private static final byte[] MAGIC = "REDIS0011".getBytes(StandardCharsets.US_ASCII);
+    private static final String REDIS_VERSION = "7.2.0";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int OPCODE_AUX = 0xFA;
+    private static final int OPCODE_RESIZEDB = 0xFB;
+    private static final int OPCODE_EXPIRETIME_MS = 0xFC;
+    private static final int OPCODE_SELECTDB = 0xFE;
+    private static final int OPCODE_EOF = 0xFF;
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_LIST = 1;
+    private static final int TYPE_SET = 2;
+    private static final int TYPE_HASH = 4;
+    private static final int TYPE_ZSET_2 = 5;
+
+    private static final int ENC_INT8 = 0xC0;
+    private static final int ENC_INT16 = 0xC1;
+    private static final int ENC_INT32 = 0xC2;
+
+    private final WritableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer);
+    private int position = 0;
+    private long checksum = 0;
+
+    private RdbWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes {@code snapshot} to {@code target}, going through {@code tempFile} in the same directory.
+     */
+    static void save(InMemoryDatabase.Snapshot snapshot, Path target, Path tempFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(snapshot, channel, false);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes {@code snapshot} as a complete RDB payload; {@code aofBase} marks it as the preamble of an
+     * append-only file.
+     */
+    static void write(InMemoryDatabase.Snapshot snapshot, WritableByteChannel channel, boolean aofBase) throws IOException {
+        new RdbWriter(channel).writeSnapshot(snapshot, aofBase);
+    }
+
+    private void writeSnapshot(InMemoryDatabase.Snapshot snapshot, boolean aofBase) throws IOException {
+        writeBytes(MAGIC);
+        writeAux("redis-ver", REDIS_VERSION);
+        writeAux("redis-bits", "64");
+        writeAux("ctime", String.valueOf(snapshot.createdAt() / 1000));
+        writeAux("aof-base", aofBase ? "1" : "0");
+        writeAux("repl-id", snapshot.replId());
+        writeAux("repl-offset", String.valueOf(snapshot.replOffset()));
+
+        writeByte(OPCODE_SELECTDB);
+        writeLength(0);
+        writeByte(OPCODE_RESIZEDB);
+        writeLength(snapshot.size());
+        writeLength(snapshot.expiresSize());
+
+        long now = snapshot.createdAt();
+        IOException[] failure = new IOException[1];
+        snapshot.forEach((key, entry) -> {
+            if (failure[0] != null || InMemoryDatabase.isExpired(entry, now)) {
+                return;
+            }
+            try {
+                writeEntry(key, entry);
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        writeByte(OPCODE_EOF);
+        flush();
+        // The trailer is not part of the checksummed data.
+        ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(checksum).flip();
+        while (trailer.hasRemaining()) {
+            channel.write(trailer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeEntry(ByteString key, InMemoryDatabase.Entry entry) throws IOException {
+        int type = switch (entry.dataType()) {
+            case STRING -> TYPE_STRING;
+            case LIST -> TYPE_LIST;
+            case SET -> TYPE_SET;
+            case HASH -> TYPE_HASH;
+            case ZSET -> TYPE_ZSET_2;
+            default -> -1;
+        };
+        if (type < 0) {
+            return;
+        }
+        if (entry.expireAtMillis() != InMemoryDatabase.NO_EXPIRY) {
+            writeByte(OPCODE_EXPIRETIME_MS);
+            writeLongLE(entry.expireAtMillis());
+        }
+        writeByte(type);
+        writeString(key.bytes());
+        switch (entry.dataType()) {
+            case LIST, SET -> {
+                Collection<ByteString> elements = (Collection<ByteString>) entry.value();
+                writeLength(elements.size());
+                for (ByteString element : elements) {
+                    writeString(element.bytes());
+                }
+            }
+            case HASH -> {
+                Map<ByteString, ByteString> hash = (Map<ByteString, ByteString>) entry.value();
+                writeLength(hash.size());
+                for (Map.Entry<ByteString, ByteString> field : hash.entrySet()) {
+                    writeString(field.getKey().bytes());
+                    writeString(field.getValue().bytes());
+                }
+            }
+            case ZSET -> {
+                Map<ByteString, Double> zset = (Map<ByteString, Double>) entry.value();
+                writeLength(zset.size());
+                for (Map.Entry<ByteString, Double> member : zset.entrySet()) {
+                    writeString(member.getKey().bytes());
+                    writeLongLE(Double.doubleToLongBits(member.getValue()));
+                }
+            }
+            default -> {
+                if (entry.value() instanceof Long number) {
+                    writeInteger(number);
+                } else {
+                    writeString((byte[]) entry.value());
+                }
+            }
+        }
+    }
+
+    private void writeLongLE(long value) throws IOException {
+        for (int i = 0; i < Long.BYTES; i++) {
+            writeByte((int) (value >>> (8 * i)));
+        }
+    }
+
+    private void writeAux(String key, String value) throws IOException {
+        writeByte(OPCODE_AUX);
+        writeString(key.getBytes(StandardCharsets.US_ASCII));
+        writeString(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Strings holding a canonical integer that fits in 32 bits are stored in integer encoding.
+     */
+    private void writeString(byte[] value) throws IOException {
+        if (value.length > 0 && value.length <= 11 && ByteString.isCanonicalInteger(value)
+                && writeIntegerEncoded(ByteString.parseLong(value))) {
+            return;
+        }
+        writeLength(value.length);
+        writeBytes(value);
+    }
+
+    /**
+     * An integer-encoded value; those beyond 32 bits are written as their digits.
+     */
+    private void writeInteger(long number) throws IOException {
+        if (!writeIntegerEncoded(number)) {
+            byte[] digits = Long.toString(number).getBytes(StandardCharsets.US_ASCII);
+            writeLength(digits.length);
+            writeBytes(digits);
+        }
+    }
+
+    private boolean writeIntegerEncoded(long number) throws IOException {
+        if (number >= Byte.MIN_VALUE && number <= Byte.MAX_VALUE) {
+            writeByte(ENC_INT8);
+            writeByte((int) number);
+            return true;
+        }
+        if (number >= Short.MIN_VALUE && number <= Short.MAX_VALUE) {
+            writeByte(ENC_INT16);
+            writeByte((int) number);
+            writeByte((int) (number >> 8));
+            return true;
+        }
+        if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+            writeByte(ENC_INT32);
+            for (int i = 0; i < Integer.BYTES; i++) {
+                writeByte((int) (number >> (8 * i)));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void writeLength(long length) throws IOException {
+        if (length < 1 << 6) {
+            writeByte((int) length);
+        } else if (length < 1 << 14) {
+            writeByte(0x40 | (int) (length >> 8));
+            writeByte((int) length);
+        } else if (length <= 0xFFFFFFFFL) {
+            writeByte(0x80);
+            for (int i = 3; i >= 0; i--) {
+                writeByte((int) (length >> (8 * i)));
+            }
+        } else {
+            writeByte(0x81);
+            for (int i = 7; i >= 0; i--) {
+                writeByte((int) (length >> (8 * i)));
+            }
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flush();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (position == buffer.length) {
+                flush();
+            }
+            int n = Math.min(buffer.length - position, bytes.length - offset);
+            System.arraycopy(bytes, offset, buffer, position, n);
+            position += n;
+            offset += n;
+        }
+    }
+
+    private void flush() throws IOException {
+        checksum = Crc64.update(checksum, buffer, 0, position);
+        bufferView.clear().limit(position);
+        while (bufferView.hasRemaining()) {
+            channel.write(bufferView);
+        }
+        position = 0;
+    }
+}
@@ -0,0 +1,12 @@
+package db;
+
+/**
+ * A command used a key whose value is of another type; replied as {@code -WRONGTYPE}.
+ */
+public final class WrongTypeException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public WrongTypeException() {
+        super("Operation against a key holding the wrong kind of value");
+    }
+}
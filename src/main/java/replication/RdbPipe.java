@@ -0,0 +1,108 @@
+package replication;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the RDB payload of a full resync from the event loop, which reads it off the master's
+ * socket without blocking, to the thread that loads it. The queue is bounded: when it is full the
+ * loop stops reading from the master until the loader has caught up and calls {@code onSpace}.
+ */
+final class RdbPipe implements ReadableByteChannel {
+    private static final int CAPACITY = 16;
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<>(CAPACITY + 1);
+    private final Runnable onSpace;
+    private ByteBuffer current;
+    private volatile boolean waitingForSpace = false;
+    private volatile boolean aborted = false;
+
+    RdbPipe(Runnable onSpace) {
+        this.onSpace = onSpace;
+    }
+
+    /**
+     * Copies the readable bytes of {@code src}. Returns false and consumes nothing when the pipe is full;
+     * {@code onSpace} then runs once the loader has taken a chunk.
+     */
+    boolean offer(ByteBuffer src) {
+        if (chunks.size() >= CAPACITY) {
+            waitingForSpace = true;
+            // The loader may have drained the queue before it saw the flag.
+            if (chunks.size() >= CAPACITY) {
+                return false;
+            }
+            waitingForSpace = false;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src).flip();
+        chunks.add(copy);
+        return true;
+    }
+
+    /**
+     * Marks the end of the payload; one slot is reserved for it.
+     */
+    void end() {
+        chunks.add(END);
+    }
+
+    /**
+     * Fails the loader's next read, when the link to the master breaks during the transfer.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (current == END) {
+                return -1;
+            }
+            current = take();
+        }
+        int n = Math.min(dst.remaining(), current.remaining());
+        dst.put(dst.position(), current, current.position(), n);
+        dst.position(dst.position() + n);
+        current.position(current.position() + n);
+        return n;
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            while (true) {
+                if (aborted) {
+                    throw new EOFException("Connection with master lost during the RDB transfer");
+                }
+                ByteBuffer chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    if (waitingForSpace) {
+                        waitingForSpace = false;
+                        onSpace.run();
+                    }
+                    return chunk;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading the RDB from master");
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !aborted;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,117 +1,500 @@
 package replication;
 
+import core.ChannelHandler;
+import core.EventLoop;
 import core.RedisServer;
+import db.AppendOnlyFile;
+import db.RdbLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import resp.OutputBuffer;
 import resp.RespEncoder;
 import utils.ClientState;
 import utils.ClientType;
+import utils.Clock;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayDeque;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 
-public class ReplicaHandler {
+/**
+ * Replica side of replication, driven by the main event loop without ever blocking it: connect, the
+ * PING / REPLCONF / PSYNC handshake, the RDB transfer of a full resync and finally the command stream,
+ * which runs as a MASTER client on the same connection. The payload is handed to a loader thread that
+ * fills a fresh keyspace while the old one keeps serving reads. A broken link is retried with
+ * exponential backoff from the server cron. Everything runs on the loop thread.
+ */
+public class ReplicaHandler implements ChannelHandler {
     private static final Logger logger = LoggerFactory.getLogger(ReplicaHandler.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int EOF_MARK_LENGTH = 40;
+    private static final long RECONNECT_MIN_MILLIS = 250;
+    private static final long RECONNECT_MAX_MILLIS = 30_000;
+    private static final long REPL_TIMEOUT_MILLIS = 60_000;
+
+    private enum State {
+        NONE,
+        CONNECT,
+        CONNECTING,
+        RECEIVE_PONG,
+        RECEIVE_PORT,
+        RECEIVE_CAPA,
+        RECEIVE_PSYNC,
+        RECEIVE_RDB_HEADER,
+        TRANSFER,
+        LOADING,
+        CONNECTED
+    }
+
     private final String masterHost;
     private final int masterPort;
-    private SocketChannel masterSocketChannel;
-    private final ByteBuffer buffer;
+    // Master input in read mode: handshake replies, then the payload, then the start of the stream.
+    private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE).flip();
+    private EventLoop eventLoop;
+    private State state = State.NONE;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private OutputBuffer out;
+    private ClientState masterClient;
+    private long lastIoMillis;
+    private long nextConnectMillis;
+    private long reconnectDelayMillis = RECONNECT_MIN_MILLIS;
+    // Whether the replication ID and offset in ReplicationInfo are the master's, so PSYNC can use them.
+    private boolean synced = false;
+    private long psyncOffset;
+
+    // Replication ID and offset announced by FULLRESYNC, installed together with the loaded keyspace.
+    private String syncReplId;
+    private long syncOffset;
+    private RdbPipe pipe;
+    private Thread loader;
+    private long payloadRemaining;
+    private byte[] eofMark;
+    private boolean transferPaused = false;
 
     public ReplicaHandler() {
         String[] masterDetails = RedisServer.currentConfig().properties().get("replicaof").split(" ");
         this.masterHost = masterDetails[0];
         this.masterPort = Integer.parseInt(masterDetails[1]);
-        this.buffer = ByteBuffer.allocate(RedisServer.currentConfig().bufferSize());
     }
 
-    public void start(Selector selector) {
+    /**
+     * Starts the first connection attempt on {@code eventLoop}, which may not be running yet.
+     */
+    public void start(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+        eventLoop.execute(this::connect);
+    }
+
+    /**
+     * Called from the server cron: reconnects once the backoff has passed, notices a lost master link
+     * and gives up on a master that stopped answering during the handshake or transfer.
+     */
+    public void cron() {
+        long now = Clock.millis();
+        switch (state) {
+            case NONE, LOADING -> {
+            }
+            case CONNECT -> {
+                if (now >= nextConnectMillis && (loader == null || !loader.isAlive())) {
+                    connect();
+                }
+            }
+            case CONNECTED -> {
+                if (masterClient.isClosed()) {
+                    logger.warn("Connection with master lost");
+                    masterClient = null;
+                    channel = null;
+                    key = null;
+                    RedisServer.getReplicationInfo().setMasterLinkUp(false);
+                    scheduleReconnect();
+                }
+            }
+            default -> {
+                if (now - lastIoMillis > REPL_TIMEOUT_MILLIS) {
+                    fail("Timeout talking to master", new IOException("no data for " + REPL_TIMEOUT_MILLIS / 1000 + " seconds"));
+                }
+            }
+        }
+    }
+
+    private void connect() {
+        logger.info("Connecting to master at {}:{}", masterHost, masterPort);
+        state = State.CONNECTING;
+        lastIoMillis = Clock.millis();
         try {
-            connectToMaster();
-            performHandshake();
-            registerWithSelector(selector);
-        } catch (Exception e) {
-            logger.error("Error starting replica handler", e);
-            stop();
+            channel = SocketChannel.open();
+            key = eventLoop.register(channel, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(masterHost, masterPort))) {
+                connected();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail("Error connecting to master", e);
         }
     }
 
-    private void registerWithSelector(Selector selector) throws IOException {
-        masterSocketChannel.configureBlocking(false);
-        ClientState clientState = new ClientState(
-                ByteBuffer.allocateDirect(RedisServer.currentConfig().bufferSize()),
-                ByteBuffer.allocateDirect(RedisServer.currentConfig().bufferSize()),
-                new ArrayDeque<>(),
-                new LinkedList<>()
-        );
-        clientState.setClientType(ClientType.MASTER);
-        masterSocketChannel.register(selector, SelectionKey.OP_READ, clientState);
+    @Override
+    public void handle(SelectionKey key) {
+        lastIoMillis = Clock.millis();
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable()) {
+                read();
+            }
+        } catch (IOException | RuntimeException e) {
+            fail("Error talking to master", e);
+        }
     }
 
-    private void performHandshake() throws IOException {
-        logger.info("Performing initial sync with master");
-        sendCommand("PING", "+PONG\r\n");
-        sendCommand("REPLCONF listening-port " + RedisServer.currentConfig().port(), "+OK\r\n");
-        sendCommand("REPLCONF capa psync2", "+OK\r\n");
-        sendPSync();
-        logger.info("Initial sync completed");
+    private void connected() throws IOException {
+        logger.info("Connected to master, performing the handshake");
+        in.clear().flip();
+        out = new OutputBuffer(RedisServer.getBufferPool());
+        state = State.RECEIVE_PONG;
+        send("PING");
+    }
+
+    private void read() throws IOException {
+        in.compact();
+        int bytesRead = channel.read(in);
+        in.flip();
+        if (bytesRead < 0) {
+            throw new EOFException("Connection closed by master");
+        }
+        processInput();
     }
 
+    private void processInput() throws IOException {
+        while (true) {
+            if (state == State.TRANSFER) {
+                feedTransfer();
+                return;
+            }
+            if (state.compareTo(State.RECEIVE_PONG) < 0 || state.compareTo(State.RECEIVE_RDB_HEADER) > 0) {
+                return;
+            }
+            String line = readLine();
+            if (line == null) {
+                return;
+            }
+            switch (state) {
+                case RECEIVE_PONG -> {
+                    expect(line, "+PONG", "PING");
+                    state = State.RECEIVE_PORT;
+                    send("REPLCONF", "listening-port", String.valueOf(RedisServer.currentConfig().port()));
+                }
+                case RECEIVE_PORT -> {
+                    expect(line, "+OK", "REPLCONF listening-port");
+                    state = State.RECEIVE_CAPA;
+                    send("REPLCONF", "capa", "eof", "capa", "psync2");
+                }
+                case RECEIVE_CAPA -> {
+                    expect(line, "+OK", "REPLCONF capa");
+                    state = State.RECEIVE_PSYNC;
+                    sendPSync();
+                }
+                case RECEIVE_PSYNC -> handlePSyncReply(line);
+                case RECEIVE_RDB_HEADER -> startTransfer(line);
+                default -> throw new IllegalStateException("Unexpected replica state " + state);
+            }
+        }
+    }
+
+    /**
+     * Asks to continue from the master we were last in sync with, or from the replication ID and offset
+     * recorded in the local dump.
+     */
     private void sendPSync() throws IOException {
-        String pSync = String.format("PSYNC %s %d", "?", -1);
-        buffer.clear();
-        buffer.put(RespEncoder.encode(List.of(pSync.split(" "))).getBytes());
-        buffer.flip();
-        masterSocketChannel.write(buffer);
+        ReplicationInfo replicationInfo = RedisServer.getReplicationInfo();
+        String replId = synced ? replicationInfo.getMasterReplId() : RdbLoader.loadedReplId();
+        long offset = synced ? replicationInfo.getMasterReplOffset() : RdbLoader.loadedReplOffset();
+        if (replId != null && offset >= 0) {
+            psyncOffset = offset;
+            send("PSYNC", replId, String.valueOf(offset + 1));
+        } else {
+            send("PSYNC", "?", "-1");
+        }
+    }
 
-        buffer.clear();
-        int bytesRead = masterSocketChannel.read(buffer);
-        if (bytesRead > 0) {
-            String response = new String(buffer.array(), 0, bytesRead);
-            if (!response.contains("FULLRESYNC")) {
-                throw new IOException("Invalid PSYNC response: " + response);
+    private void handlePSyncReply(String response) throws IOException {
+        String[] parts = response.split(" ");
+        ReplicationInfo replicationInfo = RedisServer.getReplicationInfo();
+        if (parts[0].equals("+CONTINUE")) {
+            if (parts.length > 1) {
+                replicationInfo.setMasterReplId(parts[1]);
             }
+            replicationInfo.setMasterReplOffset(psyncOffset);
+            logger.info("Partial resynchronization from offset {}", psyncOffset);
+            becomeConnected();
+            return;
         }
+        if (!parts[0].equals("+FULLRESYNC") || parts.length < 3) {
+            throw new IOException("Invalid PSYNC response: " + response);
+        }
+        // They only become ours once the payload has been loaded.
+        syncReplId = parts[1];
+        syncOffset = Long.parseLong(parts[2]);
+        state = State.RECEIVE_RDB_HEADER;
     }
 
-    private void sendCommand(String command, String expectedResponse) throws IOException {
-        buffer.clear();
-        buffer.put(RespEncoder.encode(List.of(command.split(" "))).getBytes());
-        buffer.flip();
-        masterSocketChannel.write(buffer);
+    private void startTransfer(String header) throws IOException {
+        long length = 0;
+        eofMark = null;
+        payloadRemaining = -1;
+        if (header.startsWith("$EOF:")) {
+            String mark = header.substring(5);
+            if (mark.length() != EOF_MARK_LENGTH) {
+                throw new IOException("Invalid EOF marker: " + mark);
+            }
+            eofMark = mark.getBytes(StandardCharsets.US_ASCII);
+            logger.info("Full resynchronization, receiving a diskless RDB stream");
+        } else if (header.startsWith("$")) {
+            length = Long.parseLong(header.substring(1));
+            payloadRemaining = length;
+            logger.info("Full resynchronization, receiving {} bytes of RDB", length);
+        } else {
+            throw new IOException("Invalid RDB payload header: " + header);
+        }
+        RedisServer.getReplicationInfo().setMasterSyncInProgress(true);
+        RdbPipe transfer = new RdbPipe(() -> eventLoop.execute(this::resumeTransfer));
+        String replId = syncReplId;
+        long offset = syncOffset;
+        long totalBytes = length;
+        pipe = transfer;
+        state = State.TRANSFER;
+        loader = new Thread(() -> {
+            try {
+                RdbLoader.loadFromMaster(transfer, totalBytes, () -> {
+                    ReplicationInfo replicationInfo = RedisServer.getReplicationInfo();
+                    replicationInfo.setMasterReplId(replId);
+                    replicationInfo.setMasterReplOffset(offset);
+                    if (AppendOnlyFile.isConfigured()) {
+                        AppendOnlyFile.backgroundRewrite();
+                    }
+                });
+                eventLoop.execute(() -> transferLoaded(transfer));
+            } catch (IOException | RuntimeException e) {
+                eventLoop.execute(() -> transferFailed(transfer, e));
+            }
+        }, "replica-rdb-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
 
-        buffer.clear();
-        int bytesRead = masterSocketChannel.read(buffer);
-        if (bytesRead > 0) {
-            String response = new String(buffer.array(), 0, bytesRead);
-            if (!response.equals(expectedResponse)) {
-                throw new IOException("Invalid response for " + command + ": " + response);
+    /**
+     * Hands the buffered payload bytes to the loader. With an EOF marker, the last bytes are held back
+     * until it is certain they are not the start of the marker.
+     */
+    private void feedTransfer() {
+        if (eofMark == null) {
+            while (payloadRemaining > 0 && in.hasRemaining()) {
+                int n = (int) Math.min(in.remaining(), payloadRemaining);
+                if (!pipe.offer(in.slice(in.position(), n))) {
+                    pauseTransfer();
+                    return;
+                }
+                in.position(in.position() + n);
+                payloadRemaining -= n;
+            }
+            if (payloadRemaining == 0) {
+                endTransfer();
+            }
+            return;
+        }
+        int markAt = findMark();
+        int safe = markAt >= 0 ? markAt - in.position() : in.remaining() - (EOF_MARK_LENGTH - 1);
+        if (safe > 0) {
+            if (!pipe.offer(in.slice(in.position(), safe))) {
+                pauseTransfer();
+                return;
             }
-        } else if (bytesRead == -1) {
-            throw new IOException("Connection closed while reading response for: " + command);
+            in.position(in.position() + safe);
+        }
+        if (markAt >= 0) {
+            in.position(markAt + EOF_MARK_LENGTH);
+            endTransfer();
         }
     }
 
-    public void connectToMaster() throws IOException {
-        logger.info("Connecting to master at {}:{}", masterHost, masterPort);
-        masterSocketChannel = SocketChannel.open(new InetSocketAddress(masterHost, masterPort));
-        masterSocketChannel.configureBlocking(true);
-        logger.info("Connected to master");
+    private int findMark() {
+        int last = in.limit() - EOF_MARK_LENGTH;
+        for (int i = in.position(); i <= last; i++) {
+            int j = 0;
+            while (j < EOF_MARK_LENGTH && in.get(i + j) == eofMark[j]) {
+                j++;
+            }
+            if (j == EOF_MARK_LENGTH) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void pauseTransfer() {
+        transferPaused = true;
+        key.interestOps(0);
+    }
+
+    private void resumeTransfer() {
+        if (state != State.TRANSFER || !transferPaused) {
+            return;
+        }
+        transferPaused = false;
+        key.interestOps(SelectionKey.OP_READ);
+        feedTransfer();
+    }
+
+    /**
+     * The whole payload is with the loader. The stream that follows stays unread until the new keyspace
+     * is in place.
+     */
+    private void endTransfer() {
+        pipe.end();
+        state = State.LOADING;
+        key.interestOps(0);
+        logger.info("RDB payload received, loading it in the background");
+    }
+
+    private void transferLoaded(RdbPipe transfer) {
+        // The keyspace now matches the master's offset even if the link broke meanwhile.
+        synced = true;
+        if (transfer != pipe || state != State.LOADING) {
+            return;
+        }
+        pipe = null;
+        becomeConnected();
+    }
+
+    private void transferFailed(RdbPipe transfer, Exception e) {
+        if (transfer != pipe) {
+            return;
+        }
+        fail("Loading the RDB from master failed", e);
+    }
+
+    /**
+     * From here on the connection is an ordinary MASTER client whose commands are applied as they arrive,
+     * starting with whatever followed the sync reply in our buffer.
+     */
+    private void becomeConnected() {
+        masterClient = new ClientState(RedisServer.getBufferPool(), new LinkedList<>());
+        masterClient.setClientType(ClientType.MASTER);
+        if (in.hasRemaining()) {
+            while (masterClient.readBuffer().remaining() < in.remaining()) {
+                masterClient.growReadBuffer(Long.MAX_VALUE);
+            }
+            masterClient.readBuffer().put(in);
+        }
+        out.clear();
+        out = null;
+        state = State.CONNECTED;
+        synced = true;
+        reconnectDelayMillis = RECONNECT_MIN_MILLIS;
+        ReplicationInfo replicationInfo = RedisServer.getReplicationInfo();
+        replicationInfo.setMasterSyncInProgress(false);
+        replicationInfo.setMasterLinkUp(true);
+        eventLoop.adopt(key, masterClient);
+        logger.info("MASTER <-> REPLICA sync: Finished with success");
+    }
+
+    private void fail(String reason, Exception e) {
+        logger.warn("{}: {}", reason, e.getMessage());
+        if (pipe != null) {
+            pipe.abort();
+            pipe = null;
+        }
+        closeChannel();
+        if (out != null) {
+            out.clear();
+            out = null;
+        }
+        RedisServer.getReplicationInfo().setMasterSyncInProgress(false);
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        state = State.CONNECT;
+        nextConnectMillis = Clock.millis() + reconnectDelayMillis;
+        logger.info("Reconnecting to master in {} ms", reconnectDelayMillis);
+        reconnectDelayMillis = Math.min(reconnectDelayMillis * 2, RECONNECT_MAX_MILLIS);
+    }
+
+    private void send(String... command) throws IOException {
+        RespEncoder.encode(out, List.of(command));
+        flush();
+    }
+
+    private void flush() throws IOException {
+        if (out.writeTo(channel)) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void expect(String response, String expected, String command) throws IOException {
+        if (!response.equals(expected)) {
+            throw new IOException("Invalid response for " + command + ": " + response);
+        }
+    }
+
+    /**
+     * One CRLF-terminated line of the master's reply, or null until it has arrived in full.
+     */
+    private String readLine() throws IOException {
+        for (int i = in.position(); i < in.limit() - 1; i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                byte[] line = new byte[i - in.position()];
+                in.get(line);
+                in.position(i + 2);
+                return new String(line, StandardCharsets.UTF_8);
+            }
+        }
+        if (in.remaining() == in.capacity()) {
+            throw new IOException("Reply from master too long");
+        }
+        return null;
+    }
+
+    private void closeChannel() {
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Error while closing master connection", e);
+        }
+        key = null;
+        channel = null;
     }
 
     public void stop() {
+        if (pipe != null) {
+            pipe.abort();
+        }
         try {
-            if (masterSocketChannel != null && masterSocketChannel.isOpen()) {
-                masterSocketChannel.close();
+            if (channel != null && channel.isOpen()) {
+                channel.close();
             }
         } catch (IOException e) {
             logger.error("Error while closing master connection", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,214 @@
+package replication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import resp.SharedSegment;
+import utils.ClientState;
+import utils.Clock;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Master-side view of one connected replica: where it is in its sync, how far the replication stream
+ * has been queued to it, and the output buffer limits that protect the master from a replica that
+ * stops reading.
+ */
+final class ReplicaLink {
+    private static final Logger log = LoggerFactory.getLogger(ReplicaLink.class);
+
+    enum SyncState {
+        // Asked for a full resync and waits for the next snapshot transfer to start.
+        WAIT_SNAPSHOT,
+        // Receiving a snapshot; the stream from the snapshot's offset is held back until it ends.
+        SENDING_SNAPSHOT,
+        ONLINE
+    }
+
+    private final ClientState state;
+    private final String address;
+    private final long hardLimit;
+    private final long softLimit;
+    private final long softLimitMillis;
+    // Guarded by the stream lock of ReplicationManager.
+    private long queuedOffset;
+    // Changed under the command lock, and to ONLINE on the replica's loop; read by flushes that hold neither.
+    private volatile SyncState syncState;
+    // Guarded by the command lock.
+    private long ackOffset = 0;
+    private long ackMillis;
+    // Read by the snapshot transfer thread.
+    private volatile boolean removed = false;
+    // Owned by the replica's event loop.
+    private long softLimitReachedAt = 0;
+
+    ReplicaLink(ClientState state, SyncState syncState, long queuedOffset, String outputBufferLimit) {
+        this.state = state;
+        this.syncState = syncState;
+        this.queuedOffset = queuedOffset;
+        this.address = remoteHost(state);
+        this.ackMillis = Clock.millis();
+        String[] limits = outputBufferLimit.split(" ");
+        this.hardLimit = Long.parseLong(limits[0]);
+        this.softLimit = Long.parseLong(limits[1]);
+        this.softLimitMillis = Long.parseLong(limits[2]) * 1000;
+    }
+
+    ClientState state() {
+        return state;
+    }
+
+    long queuedOffset() {
+        return queuedOffset;
+    }
+
+    SyncState syncState() {
+        return syncState;
+    }
+
+    /**
+     * Records a {@code REPLCONF ACK}: the replica has processed the stream up to {@code offset}.
+     */
+    void acknowledge(long offset) {
+        ackOffset = Math.max(ackOffset, offset);
+        ackMillis = Clock.millis();
+    }
+
+    long ackOffset() {
+        return ackOffset;
+    }
+
+    /**
+     * The {@code slaveN} line of INFO replication; the lag is the time since the last acknowledgement.
+     */
+    String info() {
+        String stateName = switch (syncState) {
+            case WAIT_SNAPSHOT -> "wait_bgsave";
+            case SENDING_SNAPSHOT -> "send_bulk";
+            case ONLINE -> "online";
+        };
+        return "ip=" + address + ",port=" + state.getReplicaListeningPort() + ",state=" + stateName
+                + ",offset=" + ackOffset + ",lag=" + (Clock.millis() - ackMillis) / 1000;
+    }
+
+    private static String remoteHost(ClientState state) {
+        if (state.getSelectionKey() != null && state.getSelectionKey().channel() instanceof SocketChannel channel) {
+            try {
+                if (channel.getRemoteAddress() instanceof InetSocketAddress address) {
+                    return address.getHostString();
+                }
+            } catch (IOException e) {
+                log.debug("Could not get the replica's address", e);
+            }
+        }
+        return "unknown";
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    void markRemoved() {
+        removed = true;
+    }
+
+    /**
+     * Sends the sync reply and the EOF-marked bulk header of a snapshot that corresponds to {@code offset};
+     * the stream from there on waits in the shared segments until {@link #online(Runnable)}.
+     */
+    void startSnapshot(String replId, long offset, String eofMark) {
+        syncState = SyncState.SENDING_SNAPSHOT;
+        queuedOffset = offset;
+        String header = "+FULLRESYNC " + replId + " " + offset + "\r\n$EOF:" + eofMark + "\r\n";
+        state.getOwner().execute(() -> {
+            if (!state.isClosed()) {
+                state.outputBuffer().writeAscii(header);
+                state.getOwner().scheduleWrite(state);
+            }
+        });
+    }
+
+    /**
+     * Marks the replica online from its own loop, behind the snapshot chunks already queued there, so a
+     * flush can never hand it stream bytes ahead of the snapshot's tail. {@code then} runs right after.
+     */
+    void online(Runnable then) {
+        state.getOwner().execute(() -> {
+            if (state.isClosed()) {
+                return;
+            }
+            syncState = SyncState.ONLINE;
+            softLimitReachedAt = 0;
+            then.run();
+        });
+    }
+
+    /**
+     * Queues a chunk of the snapshot from the transfer thread; the caller has taken the reference that
+     * travels with it.
+     */
+    void queueSnapshot(SharedSegment segment) {
+        state.getOwner().execute(() -> {
+            if (state.isClosed()) {
+                segment.release();
+                return;
+            }
+            state.outputBuffer().appendShared(segment, 0, segment.used());
+            state.getOwner().scheduleWrite(state);
+        });
+    }
+
+    /**
+     * Called while the stream is held back for a snapshot transfer, with the number of bytes this
+     * replica is behind. The check runs on the replica's loop, which owns the soft limit timer.
+     */
+    void checkHeldBackStream(long pending) {
+        state.getOwner().execute(() -> {
+            if (state.isClosed() || syncState != SyncState.SENDING_SNAPSHOT) {
+                return;
+            }
+            if (exceedsOutputLimits(pending, System.currentTimeMillis())) {
+                log.warn("Replica scheduled to be closed for overcoming of output buffer limits ({} bytes held during its sync)", pending);
+                state.getOwner().disconnect(state);
+            }
+        });
+    }
+
+    /**
+     * Counts {@code [from, to)} of the segment as queued and returns the task that hands it to the
+     * replica's loop; the caller has taken the reference that travels with it.
+     */
+    Runnable queue(SharedSegment segment, int from, int to, long endOffset) {
+        queuedOffset = endOffset;
+        return () -> state.getOwner().execute(() -> append(segment, from, to));
+    }
+
+    private void append(SharedSegment segment, int from, int to) {
+        if (state.isClosed()) {
+            segment.release();
+            return;
+        }
+        state.outputBuffer().appendShared(segment, from, to);
+        state.getOwner().scheduleWrite(state);
+        if (exceedsOutputLimits(state.outputBuffer().size(), System.currentTimeMillis())) {
+            log.warn("Replica scheduled to be closed for overcoming of output buffer limits ({} bytes pending)",
+                    state.outputBuffer().size());
+            state.getOwner().disconnect(state);
+        }
+    }
+
+    private boolean exceedsOutputLimits(long size, long now) {
+        if (hardLimit > 0 && size >= hardLimit) {
+            return true;
+        }
+        if (softLimit == 0 || size < softLimit) {
+            softLimitReachedAt = 0;
+            return false;
+        }
+        if (softLimitReachedAt == 0) {
+            softLimitReachedAt = now;
+        }
+        return now - softLimitReachedAt > softLimitMillis;
+    }
+}
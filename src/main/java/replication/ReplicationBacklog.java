@@ -0,0 +1,72 @@
+package replication;
+
+import resp.OutputBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Circular buffer holding the most recent bytes of the replication stream, so a replica that lost
+ * its connection can be sent just the part it missed. Offsets are positions in the master's stream:
+ * the backlog covers {@code [startOffset(), endOffset())}.
+ */
+public final class ReplicationBacklog {
+    private final byte[] buffer;
+    private int writeIndex = 0;
+    private int historyLength = 0;
+    private long endOffset;
+
+    ReplicationBacklog(int size, long endOffset) {
+        this.buffer = new byte[size];
+        this.endOffset = endOffset;
+    }
+
+    void append(byte[] bytes) {
+        int offset = 0;
+        int length = bytes.length;
+        // Only the tail of a write larger than the whole backlog can be kept.
+        if (length > buffer.length) {
+            offset = length - buffer.length;
+            length = buffer.length;
+        }
+        int first = Math.min(length, buffer.length - writeIndex);
+        System.arraycopy(bytes, offset, buffer, writeIndex, first);
+        System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+        writeIndex = (writeIndex + length) % buffer.length;
+        historyLength = Math.min(buffer.length, historyLength + length);
+        endOffset += bytes.length;
+    }
+
+    long startOffset() {
+        return endOffset - historyLength;
+    }
+
+    long endOffset() {
+        return endOffset;
+    }
+
+    int size() {
+        return buffer.length;
+    }
+
+    int historyLength() {
+        return historyLength;
+    }
+
+    boolean contains(long offset) {
+        return offset >= startOffset() && offset <= endOffset;
+    }
+
+    /**
+     * Appends the stream from {@code offset} to the end of the backlog. The bytes are copied, as the
+     * backlog keeps overwriting its buffer.
+     */
+    void copyTo(long offset, OutputBuffer out) {
+        int length = (int) (endOffset - offset);
+        int start = Math.floorMod(writeIndex - length, buffer.length);
+        int first = Math.min(length, buffer.length - start);
+        out.write(Arrays.copyOfRange(buffer, start, start + first));
+        if (first < length) {
+            out.write(Arrays.copyOfRange(buffer, 0, length - first));
+        }
+    }
+}
@@ -8,10 +8,15 @@ public class ReplicationInfo {
     private String role;
     private int connectedSlaves = 0;
     private String masterReplId;
-    private int masterReplOffset = 0;
-    private int secondReplOffset = -1;
+    // Advanced under the replication stream lock, read from any thread.
+    private volatile long masterReplOffset = 0;
+    private long secondReplOffset = -1;
+    // Replica side: the state of the link to the master, read by INFO from any loop.
+    private volatile boolean masterLinkUp = false;
+    private volatile boolean masterSyncInProgress = false;
+    private volatile long masterLinkDownSinceMillis = System.currentTimeMillis();
 
-    private final SecureRandom random = new SecureRandom();
+    private static final SecureRandom random = new SecureRandom();
 
     public ReplicationInfo() {
         setRole();
@@ -19,6 +24,13 @@ public class ReplicationInfo {
     }
 
     private void generateReplId() {
+        masterReplId = randomId();
+    }
+
+    /**
+     * 40 random characters, the shape of a replication ID and of the end marker of a diskless transfer.
+     */
+    static String randomId() {
         String ID_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789";
         int ID_LENGTH = 40;
         StringBuilder id = new StringBuilder(ID_LENGTH);
@@ -26,7 +38,7 @@ public class ReplicationInfo {
             int index = random.nextInt(ID_CHARACTERS.length());
             id.append(ID_CHARACTERS.charAt(index));
         }
-        masterReplId = id.toString();
+        return id.toString();
     }
 
     private void setRole() {
@@ -49,11 +61,11 @@ public class ReplicationInfo {
         return connectedSlaves;
     }
 
-    public int getMasterReplOffset() {
+    public long getMasterReplOffset() {
         return masterReplOffset;
     }
 
-    public int getSecondReplOffset() {
+    public long getSecondReplOffset() {
         return secondReplOffset;
     }
 
@@ -65,11 +77,36 @@ public class ReplicationInfo {
         }
     }
 
-    public void setMasterReplOffset(int masterReplOffset) {
+    public void setMasterReplOffset(long masterReplOffset) {
         this.masterReplOffset = masterReplOffset;
     }
 
-    public void setSecondReplOffset(int secondReplOffset) {
+    /**
+     * On a replica, bytes of the master's stream that have been processed.
+     */
+    public void advanceMasterReplOffset(long bytes) {
+        this.masterReplOffset += bytes;
+    }
+
+    /**
+     * On a replica, the replication ID of the master it is in sync with.
+     */
+    public void setMasterReplId(String masterReplId) {
+        this.masterReplId = masterReplId;
+    }
+
+    public void setMasterLinkUp(boolean up) {
+        if (masterLinkUp && !up) {
+            masterLinkDownSinceMillis = System.currentTimeMillis();
+        }
+        masterLinkUp = up;
+    }
+
+    public void setMasterSyncInProgress(boolean inProgress) {
+        masterSyncInProgress = inProgress;
+    }
+
+    public void setSecondReplOffset(long secondReplOffset) {
         this.secondReplOffset = secondReplOffset;
     }
 
@@ -77,9 +114,28 @@ public class ReplicationInfo {
     public String toString() {
         String CRLF = "\r\n";
         return "role:" + role + CRLF +
+                masterLinkInfo() +
                 "connected_slaves:" + connectedSlaves + CRLF +
+                ReplicationManager.replicaInfo() +
                 "master_replid:" + masterReplId + CRLF +
                 "master_repl_offset:" + masterReplOffset + CRLF +
-                "second_repl_offset:" + secondReplOffset;
+                "second_repl_offset:" + secondReplOffset + CRLF +
+                ReplicationManager.backlogInfo();
+    }
+
+    private String masterLinkInfo() {
+        if (!role.equals("slave")) {
+            return "";
+        }
+        String CRLF = "\r\n";
+        String[] master = RedisServer.currentConfig().properties().get("replicaof").split(" ");
+        String info = "master_host:" + master[0] + CRLF +
+                "master_port:" + master[1] + CRLF +
+                "master_link_status:" + (masterLinkUp ? "up" : "down") + CRLF +
+                "master_sync_in_progress:" + (masterSyncInProgress ? 1 : 0) + CRLF;
+        if (!masterLinkUp) {
+            info += "master_link_down_since_seconds:" + (System.currentTimeMillis() - masterLinkDownSinceMillis) / 1000 + CRLF;
+        }
+        return info;
     }
 }
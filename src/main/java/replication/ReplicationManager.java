@@ -1,37 +1,463 @@
 package replication;
 
-import commands.RedisCommand;
+import core.CommandHandler;
 import core.RedisServer;
+import db.RdbSaver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import resp.OutputBuffer;
 import resp.RespEncoder;
+import resp.SharedSegment;
 import utils.ClientState;
+import utils.Clock;
+import utils.ParsedCommand;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Master side of replication. Every propagated command is encoded once, appended to the backlog and
+ * to a chain of shared segments; once per event loop iteration each replica is handed read-only
+ * views of what it has not been sent yet, so all replicas send from the same bytes. A full resync
+ * streams a snapshot without touching the disk, shared by every replica that asked for one within
+ * {@code repl-diskless-sync-delay}. Replicas acknowledge their offset when probed with
+ * {@code REPLCONF GETACK}, which is what WAIT waits on.
+ * <p>
+ * Writers on different shards append to the stream at the same time and I/O threads flush it without
+ * the keyspace locks, so the backlog, the segments and the offsets queued to each replica are guarded
+ * by a stream lock of their own. Flushes are serialized by another lock, which keeps each replica's
+ * chunks in stream order, and hand the chunks over only after releasing the stream lock: closing a
+ * replica that overran its limits takes the keyspace locks. Everything else runs under the command lock.
+ */
 public class ReplicationManager {
-    private static final List<ClientState> replicaClients = new ArrayList<>();
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final long GETACK_PERIOD_MILLIS = 1000;
+    private static final byte[] GETACK = "*3\r\n$8\r\nREPLCONF\r\n$6\r\nGETACK\r\n$1\r\n*\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    // Changed under the command lock, iterated by flushes.
+    private static final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+    private static final ArrayDeque<StreamSegment> segments = new ArrayDeque<>();
+    private static final List<Waiter> waiters = new ArrayList<>();
     private static final Logger log = LoggerFactory.getLogger(ReplicationManager.class);
+    // Guards the backlog, the segments, getAckRequested and each replica's queued offset.
+    private static final ReentrantLock streamLock = new ReentrantLock();
+    private static final ReentrantLock flushLock = new ReentrantLock();
+    // Created when the first replica syncs; the offset only advances while there is one.
+    private static volatile ReplicationBacklog backlog;
+    private static volatile boolean pendingStream = false;
+    private static SnapshotTransfer transfer;
+    private static long firstWaitingMillis;
+    private static boolean getAckRequested = false;
+    private static volatile long lastGetAckMillis;
 
-    public static List<ClientState> getReplicaClients() {
-        return replicaClients;
+    /**
+     * A segment of the stream with the replication offset of its first byte.
+     */
+    private record StreamSegment(SharedSegment segment, long startOffset) {
+        long endOffset() {
+            return startOffset + segment.used();
+        }
+    }
+
+    /**
+     * A client parked by WAIT until {@code numReplicas} replicas have acknowledged {@code offset}, or
+     * until {@code deadlineMillis} unless that is 0.
+     */
+    private record Waiter(ClientState client, long offset, long numReplicas, long deadlineMillis) {
     }
 
-    public static void addReplicaClient(ClientState clientState) {
-        replicaClients.add(clientState);
+    /**
+     * Registers a replica once its PSYNC has been answered; one that needs a full resync joins the next
+     * snapshot transfer, which starts right away unless a delay is configured.
+     */
+    public static void addReplicaClient(ClientState clientState, boolean fullResync) {
+        for (ReplicaLink replica : replicas) {
+            if (replica.state() == clientState) {
+                return;
+            }
+        }
+        if (fullResync) {
+            if (replicas.stream().noneMatch(replica -> replica.syncState() == ReplicaLink.SyncState.WAIT_SNAPSHOT)) {
+                firstWaitingMillis = Clock.millis();
+            }
+            replicas.add(new ReplicaLink(clientState, ReplicaLink.SyncState.WAIT_SNAPSHOT, 0, outputBufferLimit()));
+        } else {
+            // The CONTINUE reply already carries everything up to the current offset.
+            streamLock.lock();
+            try {
+                replicas.add(new ReplicaLink(clientState, ReplicaLink.SyncState.ONLINE, backlog.endOffset(), outputBufferLimit()));
+            } finally {
+                streamLock.unlock();
+            }
+        }
         RedisServer.getReplicationInfo().addConnectedSlaves();
+        if (fullResync && disklessSyncDelayMillis() == 0) {
+            startSnapshotTransfer();
+        }
     }
 
     public static void removeReplicaClient(ClientState clientState) {
-        replicaClients.remove(clientState);
-        RedisServer.getReplicationInfo().addConnectedSlaves(-1);
+        for (ReplicaLink replica : replicas) {
+            if (replica.state() == clientState) {
+                replica.markRemoved();
+            }
+        }
+        if (replicas.removeIf(replica -> replica.state() == clientState)) {
+            RedisServer.getReplicationInfo().addConnectedSlaves(-1);
+        }
+        streamLock.lock();
+        try {
+            releaseSegments();
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    /**
+     * Called from the server cron: probes the replicas for their offsets once a second, times out WAIT
+     * and starts the snapshot transfer for the replicas waiting for one once the
+     * delay has passed and no other transfer is running.
+     */
+    public static void cron() {
+        long now = Clock.millis();
+        if (now - lastGetAckMillis >= GETACK_PERIOD_MILLIS
+                && replicas.stream().anyMatch(replica -> replica.syncState() == ReplicaLink.SyncState.ONLINE)) {
+            requestAcks();
+        }
+        if (!waiters.isEmpty()) {
+            releaseWaiters(now);
+        }
+        if (transfer == null && Clock.millis() - firstWaitingMillis >= disklessSyncDelayMillis()
+                && replicas.stream().anyMatch(replica -> replica.syncState() == ReplicaLink.SyncState.WAIT_SNAPSHOT)) {
+            startSnapshotTransfer();
+        }
+    }
+
+    private static void startSnapshotTransfer() {
+        if (transfer != null) {
+            return;
+        }
+        List<ReplicaLink> targets = replicas.stream()
+                .filter(replica -> replica.syncState() == ReplicaLink.SyncState.WAIT_SNAPSHOT)
+                .toList();
+        ReplicationInfo info = RedisServer.getReplicationInfo();
+        SnapshotTransfer started = new SnapshotTransfer(targets);
+        long offset;
+        // A flush may append a GETACK meanwhile; the snapshot's offset must match where the stream resumes.
+        streamLock.lock();
+        try {
+            offset = info.getMasterReplOffset();
+            for (ReplicaLink target : targets) {
+                target.startSnapshot(info.getMasterReplId(), offset, started.eofMark());
+            }
+        } finally {
+            streamLock.unlock();
+        }
+        transfer = started;
+        log.info("Starting diskless full resynchronization of {} replica(s) at offset {}", targets.size(), offset);
+        RdbSaver.streamSnapshot(started, failure -> finishSnapshotTransfer(started, failure));
+    }
+
+    /**
+     * Runs on the transfer thread once the snapshot has been written: replicas that received it go
+     * online on their loops, after the snapshot's tail, and get the stream from the snapshot's offset;
+     * the others are dropped to sync again.
+     */
+    private static void finishSnapshotTransfer(SnapshotTransfer finished, IOException writeFailure) {
+        IOException failure = writeFailure;
+        if (failure == null) {
+            try {
+                finished.finish();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        IOException result = failure;
+        CommandHandler.runExclusively(() -> {
+            transfer = null;
+            for (ReplicaLink target : finished.targets()) {
+                if (target.isRemoved()) {
+                    continue;
+                }
+                if (result != null) {
+                    target.state().getOwner().disconnect(target.state());
+                } else {
+                    // The held-back stream goes out with the next flush once the replica is online.
+                    target.online(() -> pendingStream = true);
+                }
+            }
+            if (result != null) {
+                log.warn("Diskless full resynchronization failed: {}", result.getMessage());
+                return;
+            }
+            log.info("Diskless full resynchronization done, {} bytes of RDB sent", finished.bytesWritten());
+        });
+    }
+
+    public static void propagateToReplicas(ParsedCommand command) {
+        if (backlog == null) {
+            return;
+        }
+        byte[] encoded = RespEncoder.encodeCommand(command);
+        streamLock.lock();
+        try {
+            appendToStream(encoded);
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    // Called under streamLock.
+    private static void appendToStream(byte[] encoded) {
+        long offset = backlog.endOffset();
+        backlog.append(encoded);
+        RedisServer.getReplicationInfo().setMasterReplOffset(backlog.endOffset());
+        if (replicas.isEmpty()) {
+            return;
+        }
+        int written = 0;
+        while (written < encoded.length) {
+            StreamSegment tail = segments.peekLast();
+            if (tail == null || tail.segment().isFull()) {
+                tail = new StreamSegment(new SharedSegment(RedisServer.getBufferPool(), SEGMENT_SIZE), offset + written);
+                segments.addLast(tail);
+            }
+            written += tail.segment().append(encoded, written, encoded.length - written);
+        }
+        pendingStream = true;
+    }
+
+    public static boolean hasPendingStream() {
+        return pendingStream;
+    }
+
+    /**
+     * Queues the stream written since the last flush to every online replica. A replica receiving a
+     * snapshot is only checked against its limits; its part of the stream stays in the segments.
+     */
+    public static void flushToReplicas() {
+        flushLock.lock();
+        try {
+            List<Runnable> deliveries = new ArrayList<>();
+            streamLock.lock();
+            try {
+                collectDeliveries(deliveries);
+            } finally {
+                streamLock.unlock();
+            }
+            // A replica on this loop is appended to inline and may be disconnected for its limits meanwhile.
+            for (Runnable delivery : deliveries) {
+                delivery.run();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private static void collectDeliveries(List<Runnable> deliveries) {
+        pendingStream = false;
+        // One probe per loop iteration answers every WAIT that parked during it.
+        if (getAckRequested) {
+            getAckRequested = false;
+            lastGetAckMillis = Clock.millis();
+            if (backlog != null && !replicas.isEmpty()) {
+                appendToStream(GETACK);
+            }
+        }
+        long streamEnd = backlog != null ? backlog.endOffset() : 0;
+        for (ReplicaLink replica : replicas) {
+            if (replica.syncState() == ReplicaLink.SyncState.SENDING_SNAPSHOT) {
+                long behind = streamEnd - replica.queuedOffset();
+                deliveries.add(() -> replica.checkHeldBackStream(behind));
+                continue;
+            }
+            if (replica.syncState() != ReplicaLink.SyncState.ONLINE) {
+                continue;
+            }
+            for (StreamSegment segment : segments) {
+                long end = segment.endOffset();
+                if (replica.queuedOffset() >= end) {
+                    continue;
+                }
+                int from = (int) Math.max(0, replica.queuedOffset() - segment.startOffset());
+                segment.segment().retain();
+                deliveries.add(replica.queue(segment.segment(), from, segment.segment().used(), end));
+            }
+        }
+        releaseSegments();
+    }
+
+    /**
+     * Drops the segments every replica has been handed, keeping the tail that is still being filled.
+     * Called under streamLock.
+     */
+    private static void releaseSegments() {
+        long needed = Long.MAX_VALUE;
+        for (ReplicaLink replica : replicas) {
+            if (replica.syncState() != ReplicaLink.SyncState.WAIT_SNAPSHOT) {
+                needed = Math.min(needed, replica.queuedOffset());
+            }
+        }
+        int keep = replicas.isEmpty() ? 0 : 1;
+        while (segments.size() > keep && segments.peekFirst().endOffset() <= needed) {
+            segments.pollFirst().segment().release();
+        }
+    }
+
+    private static void requestAcks() {
+        streamLock.lock();
+        try {
+            getAckRequested = true;
+            pendingStream = true;
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    /**
+     * Records the offset a replica reports with {@code REPLCONF ACK} and releases the WAITs it satisfies.
+     */
+    public static void acknowledge(ClientState clientState, long offset) {
+        for (ReplicaLink replica : replicas) {
+            if (replica.state() == clientState) {
+                replica.acknowledge(offset);
+            }
+        }
+        if (!waiters.isEmpty()) {
+            releaseWaiters(Clock.millis());
+        }
+    }
+
+    /**
+     * Number of online replicas that have acknowledged the stream up to {@code offset}.
+     */
+    public static int acknowledgedReplicas(long offset) {
+        int count = 0;
+        for (ReplicaLink replica : replicas) {
+            if (replica.syncState() == ReplicaLink.SyncState.ONLINE && replica.ackOffset() >= offset) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parks {@code client} until enough replicas acknowledge {@code offset} and asks them for their
+     * offsets right away; the reply is written when it is released.
+     */
+    public static void waitForReplicas(ClientState client, long offset, long numReplicas, long timeoutMillis) {
+        client.block();
+        long deadline = timeoutMillis == 0 ? 0 : Clock.millis() + timeoutMillis;
+        waiters.add(new Waiter(client, offset, numReplicas, deadline));
+        requestAcks();
+    }
+
+    /**
+     * Forgets a parked client whose connection has been closed.
+     */
+    public static void removeWaiter(ClientState client) {
+        waiters.removeIf(waiter -> waiter.client() == client);
     }
 
-    public static void propagateToReplicas(RedisCommand redisCommand) {
-        for (ClientState clientState : replicaClients) {
-            String response = RespEncoder.encodeCommand(redisCommand);
-            clientState.responseQueue().offer(response);
+    private static void releaseWaiters(long now) {
+        List<Waiter> released = new ArrayList<>();
+        waiters.removeIf(waiter -> {
+            int acknowledged = acknowledgedReplicas(waiter.offset());
+            if (acknowledged >= waiter.numReplicas()
+                    || (waiter.deadlineMillis() != 0 && now >= waiter.deadlineMillis())) {
+                released.add(waiter);
+                return true;
+            }
+            return false;
+        });
+        // Resuming runs the client's deferred commands, which may park it again.
+        for (Waiter waiter : released) {
+            ClientState client = waiter.client();
+            int acknowledged = acknowledgedReplicas(waiter.offset());
+            client.getOwner().execute(() -> {
+                if (client.isClosed()) {
+                    return;
+                }
+                RespEncoder.encode(client.outputBuffer(), acknowledged);
+                client.getOwner().unblock(client);
+            });
         }
     }
+
+    /**
+     * The {@code slaveN} lines of INFO replication.
+     */
+    public static String replicaInfo() {
+        StringBuilder info = new StringBuilder();
+        for (int i = 0; i < replicas.size(); i++) {
+            info.append("slave").append(i).append(':').append(replicas.get(i).info()).append("\r\n");
+        }
+        return info.toString();
+    }
+
+    /**
+     * Answers PSYNC. {@code offset} is the first byte the replica is missing, one past the last byte it
+     * processed; if the backlog still holds everything from there the replica continues where it left
+     * off and this returns true. Otherwise the replica needs a full resync, which is answered once its
+     * snapshot transfer starts.
+     */
+    public static boolean psync(String replId, long offset, OutputBuffer out) {
+        ReplicationInfo info = RedisServer.getReplicationInfo();
+        streamLock.lock();
+        try {
+            if (backlog != null && replId.equals(info.getMasterReplId()) && backlog.contains(offset - 1)) {
+                log.info("Partial resynchronization accepted, sending {} bytes of backlog", info.getMasterReplOffset() - (offset - 1));
+                RespEncoder.encode(out, "CONTINUE " + info.getMasterReplId(), true);
+                backlog.copyTo(offset - 1, out);
+                return true;
+            }
+            if (backlog == null) {
+                backlog = new ReplicationBacklog(backlogSize(), info.getMasterReplOffset());
+            }
+        } finally {
+            streamLock.unlock();
+        }
+        log.info("Full resynchronization requested at offset {}", info.getMasterReplOffset());
+        return false;
+    }
+
+    public static String backlogInfo() {
+        streamLock.lock();
+        try {
+            return describeBacklog();
+        } finally {
+            streamLock.unlock();
+        }
+    }
+
+    private static String describeBacklog() {
+        String CRLF = "\r\n";
+        if (backlog == null) {
+            return "repl_backlog_active:0" + CRLF +
+                    "repl_backlog_size:" + backlogSize() + CRLF +
+                    "repl_backlog_first_byte_offset:0" + CRLF +
+                    "repl_backlog_histlen:0";
+        }
+        return "repl_backlog_active:1" + CRLF +
+                "repl_backlog_size:" + backlog.size() + CRLF +
+                "repl_backlog_first_byte_offset:" + (backlog.startOffset() + 1) + CRLF +
+                "repl_backlog_histlen:" + backlog.historyLength();
+    }
+
+    private static String outputBufferLimit() {
+        return RedisServer.currentConfig().properties().getOrDefault("client-output-buffer-limit-replica", "0 0 0");
+    }
+
+    private static long disklessSyncDelayMillis() {
+        return RedisServer.replDisklessSyncDelayMillis();
+    }
+
+    private static int backlogSize() {
+        return RedisServer.replBacklogSize();
+    }
 }
@@ -0,0 +1,108 @@
+package replication;
+
+import core.RedisServer;
+import resp.SharedSegment;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Diskless full resync: the channel the snapshot writer streams the RDB payload into. Every chunk is
+ * written once into a shared segment and linked into the output buffer of each replica of the
+ * transfer, followed by the end marker. At most {@link #WINDOW_SEGMENTS} chunks are in flight; a
+ * segment frees its slot once the slowest replica has sent it, so the writer runs at the pace of the
+ * sockets instead of serializing the whole dataset into memory.
+ */
+final class SnapshotTransfer implements WritableByteChannel {
+    private static final int SEGMENT_SIZE = 16 * 1024;
+    private static final int WINDOW_SEGMENTS = 64;
+
+    private final List<ReplicaLink> targets;
+    private final String eofMark;
+    private final Semaphore window = new Semaphore(WINDOW_SEGMENTS);
+    private SharedSegment current;
+    private long bytesWritten = 0;
+    private boolean open = true;
+
+    SnapshotTransfer(List<ReplicaLink> targets) {
+        this.targets = List.copyOf(targets);
+        this.eofMark = ReplicationInfo.randomId();
+    }
+
+    List<ReplicaLink> targets() {
+        return targets;
+    }
+
+    String eofMark() {
+        return eofMark;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                acquireSegment();
+            }
+            current.append(src);
+            if (current.isFull()) {
+                publish();
+            }
+        }
+        bytesWritten += length;
+        return length;
+    }
+
+    /**
+     * Sends the end marker and whatever is still buffered once the writer has finished.
+     */
+    void finish() throws IOException {
+        write(ByteBuffer.wrap(eofMark.getBytes(StandardCharsets.US_ASCII)));
+        if (current != null) {
+            publish();
+        }
+    }
+
+    private void acquireSegment() throws IOException {
+        if (targets.stream().allMatch(ReplicaLink::isRemoved)) {
+            throw new IOException("All replicas of the transfer disconnected");
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Snapshot transfer interrupted");
+        }
+        current = new SharedSegment(RedisServer.getBufferPool(), SEGMENT_SIZE, window::release);
+    }
+
+    private void publish() {
+        for (ReplicaLink target : targets) {
+            if (!target.isRemoved()) {
+                current.retain();
+                target.queueSnapshot(current);
+            }
+        }
+        current.release();
+        current = null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,240 @@
+package resp;
+
+import utils.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+/**
+ * Per-client chain of reply bytes. Small writes are packed into pooled direct chunks and large
+ * byte arrays are linked in by reference, so a reply is copied at most once before it reaches
+ * the socket. Every chunk is kept in write mode; the bytes still to be sent are
+ * {@code [0, position)}, except for the head chunk, which starts at {@code headReadIndex}.
+ */
+public final class OutputBuffer {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int REFERENCE_THRESHOLD = 4 * 1024;
+    private static final int MAX_GATHER = 64;
+
+    private final BufferPool bufferPool;
+    private final ArrayDeque<ByteBuffer> chunks;
+    private final byte[] digits = new byte[20];
+    private ByteBuffer[] gatherArray;
+    private int[] gatherWriteIndexes;
+    // Chunks that view a shared segment, with the segment they hold a reference to.
+    private IdentityHashMap<ByteBuffer, SharedSegment> sharedChunks;
+    private int headReadIndex = 0;
+    private long size = 0;
+
+    public OutputBuffer(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.chunks = new ArrayDeque<>();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void write(int b) {
+        writableTail().put((byte) b);
+        size++;
+    }
+
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] bytes, int offset, int length) {
+        if (length >= REFERENCE_THRESHOLD) {
+            appendReference(ByteBuffer.wrap(bytes, offset, length));
+            return;
+        }
+        size += length;
+        while (length > 0) {
+            ByteBuffer tail = writableTail();
+            int n = Math.min(tail.remaining(), length);
+            tail.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Links the readable bytes of {@code buffer} into the chain without copying them. The caller must not
+     * modify the underlying bytes afterwards.
+     */
+    public void appendReference(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer reference = buffer.slice().asReadOnlyBuffer();
+        reference.position(length);
+        chunks.addLast(reference);
+        size += length;
+    }
+
+    /**
+     * Links {@code [from, to)} of a shared segment into the chain. The caller passes on one reference
+     * to the segment, which is released once those bytes have been written or discarded.
+     */
+    public void appendShared(SharedSegment segment, int from, int to) {
+        if (from == to) {
+            segment.release();
+            return;
+        }
+        ByteBuffer view = segment.view(from, to);
+        if (sharedChunks == null) {
+            sharedChunks = new IdentityHashMap<>();
+        }
+        sharedChunks.put(view, segment);
+        chunks.addLast(view);
+        size += to - from;
+    }
+
+    /**
+     * Writes a string made of 7-bit characters (protocol markers, numbers, status replies).
+     */
+    public void writeAscii(String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            ByteBuffer tail = writableTail();
+            tail.put((byte) s.charAt(i));
+        }
+        size += length;
+    }
+
+    public void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        write(digits, pos, digits.length - pos);
+    }
+
+    public void writeCrlf() {
+        write('\r');
+        write('\n');
+    }
+
+    /**
+     * Drops everything written after the buffer had {@code newSize} bytes pending.
+     */
+    public void truncate(long newSize) {
+        while (size > newSize) {
+            ByteBuffer tail = chunks.peekLast();
+            int start = chunks.size() == 1 ? headReadIndex : 0;
+            int pending = tail.position() - start;
+            long excess = size - newSize;
+            if (excess >= pending) {
+                chunks.pollLast();
+                releaseChunk(tail);
+                if (chunks.isEmpty()) {
+                    headReadIndex = 0;
+                }
+                size -= pending;
+            } else {
+                tail.position(tail.position() - (int) excess);
+                size = newSize;
+            }
+        }
+    }
+
+    /**
+     * Flushes as much as the channel accepts with gathering writes. Returns true once everything has been
+     * written; fully written chunks go back to the pool.
+     */
+    public boolean writeTo(GatheringByteChannel channel) throws IOException {
+        while (!chunks.isEmpty()) {
+            int count = Math.min(chunks.size(), MAX_GATHER);
+            if (gatherArray == null) {
+                gatherArray = new ByteBuffer[MAX_GATHER];
+                gatherWriteIndexes = new int[MAX_GATHER];
+            }
+            int i = 0;
+            for (ByteBuffer chunk : chunks) {
+                if (i == count) {
+                    break;
+                }
+                gatherWriteIndexes[i] = chunk.position();
+                chunk.limit(chunk.position());
+                chunk.position(i == 0 ? headReadIndex : 0);
+                gatherArray[i++] = chunk;
+            }
+
+            long written = channel.write(gatherArray, 0, count);
+
+            boolean headDrained = true;
+            for (i = 0; i < count; i++) {
+                ByteBuffer chunk = gatherArray[i];
+                int readIndex = chunk.position();
+                chunk.limit(chunk.capacity());
+                chunk.position(gatherWriteIndexes[i]);
+                gatherArray[i] = null;
+                if (!headDrained) {
+                    continue;
+                }
+                if (readIndex == gatherWriteIndexes[i]) {
+                    chunks.pollFirst();
+                    releaseChunk(chunk);
+                    headReadIndex = 0;
+                } else {
+                    headReadIndex = readIndex;
+                    headDrained = false;
+                }
+            }
+            size -= written;
+            if (!chunks.isEmpty() && written == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        ByteBuffer chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            releaseChunk(chunk);
+        }
+        headReadIndex = 0;
+        size = 0;
+    }
+
+    private void releaseChunk(ByteBuffer chunk) {
+        if (sharedChunks != null) {
+            SharedSegment segment = sharedChunks.remove(chunk);
+            if (segment != null) {
+                segment.release();
+                return;
+            }
+        }
+        if (!chunk.isReadOnly()) {
+            bufferPool.release(chunk);
+        }
+    }
+
+    private ByteBuffer writableTail() {
+        ByteBuffer tail = chunks.peekLast();
+        if (tail == null || tail.isReadOnly() || !tail.hasRemaining()) {
+            tail = bufferPool.acquire(CHUNK_SIZE);
+            chunks.addLast(tail);
+        }
+        return tail;
+    }
+}
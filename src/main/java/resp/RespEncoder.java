@@ -1,103 +1,181 @@
 package resp;
 
-import commands.RedisCommand;
+import db.WrongTypeException;
+import utils.ByteString;
+import utils.ParsedCommand;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 
 public final class RespEncoder {
     private static final String CRLF = "\r\n";
+    private static final byte[] CRLF_BYTES = CRLF.getBytes(StandardCharsets.US_ASCII);
 
-    public static <T> String encode(T response, boolean... isSimple) {
+    public static <T> void encode(OutputBuffer out, T response, boolean... isSimple) {
         if (response == null) {
-            return "$-1" + CRLF;
+            encodeNull(out);
+            return;
         }
         boolean simpleString = isSimple.length > 0 && isSimple[0];
 
-        return switch (response) {
-            case Exception e -> encodeError(e);
-            case String s -> simpleString ? encodeSimpleString(s) : encodeBulkString(s);
-            case Integer i -> encodeNumber(i);
-            case Long l -> encodeNumber(l);
-            case Float f -> encodeNumber(f);
-            case Double d -> encodeNumber(d);
-            case Boolean b -> encodeBoolean(b);
-            case List<?> list -> encodeList(list);
+        switch (response) {
+            case Exception e -> encodeError(out, e);
+            case String s -> {
+                if (simpleString) {
+                    encodeSimpleString(out, s);
+                } else {
+                    encodeBulkString(out, s);
+                }
+            }
+            case byte[] bytes -> encodeBulkString(out, bytes);
+            case ByteString bytes -> encodeBulkString(out, bytes.bytes());
+            case Integer i -> encodeNumber(out, i);
+            case Long l -> encodeNumber(out, l);
+            case Float f -> encodeNumber(out, f);
+            case Double d -> encodeNumber(out, d);
+            case Boolean b -> encodeBoolean(out, b);
+            case List<?> list -> encodeList(out, list);
             default -> throw new IllegalArgumentException("Unsupported type: " + response.getClass());
-        };
+        }
+    }
+
+    public static void encodeNull(OutputBuffer out) {
+        out.writeAscii("$-1" + CRLF);
+    }
+
+    private static void encodeError(OutputBuffer out, Exception e) {
+        encodeError(out, e instanceof WrongTypeException ? "WRONGTYPE" : "ERR", String.valueOf(e.getMessage()));
     }
 
-    private static String encodeError(Exception e) {
-        return "-ERR " + e.getMessage() + CRLF;
+    /**
+     * Error reply with its own code, such as {@code -LOADING ...}, for errors clients act on.
+     */
+    public static void encodeError(OutputBuffer out, String code, String message) {
+        out.write('-');
+        out.writeAscii(code);
+        out.write(' ');
+        out.write(message.getBytes(StandardCharsets.UTF_8));
+        out.writeCrlf();
     }
 
-    private static String encodeNumber(Number number) {
+    private static void encodeNumber(OutputBuffer out, Number number) {
         if (number instanceof Double || number instanceof Float) {
-            return "," + (number.doubleValue() >= 0 ? "+" : "-") + number + CRLF;
+            out.write(',');
+            if (number.doubleValue() >= 0) {
+                out.write('+');
+            }
+            out.writeAscii(number.toString());
+            out.writeCrlf();
+            return;
         }
-        return ":" + (number.longValue() >= 0 ? "+" : "-") + number + CRLF;
+        encodeInteger(out, number.longValue());
     }
 
-    private static String encodeBoolean(Boolean bool) {
-        return ":" + (bool ? "t" : "f") + CRLF;
+    public static void encodeInteger(OutputBuffer out, long value) {
+        out.write(':');
+        if (value >= 0) {
+            out.write('+');
+        }
+        out.writeLong(value);
+        out.writeCrlf();
     }
 
-    private static String encodeSimpleString(String string) {
+    private static void encodeBoolean(OutputBuffer out, Boolean bool) {
+        out.write(':');
+        out.write(bool ? 't' : 'f');
+        out.writeCrlf();
+    }
+
+    private static void encodeSimpleString(OutputBuffer out, String string) {
         if (string.contains(CRLF)) {
             throw new IllegalArgumentException("Simple string cannot contain CRLF");
         }
-        return "+" + string + CRLF;
+        out.write('+');
+        out.write(string.getBytes(StandardCharsets.UTF_8));
+        out.writeCrlf();
     }
 
-    private static String encodeBulkString(String string) {
-        return "$" + string.length() + CRLF + string + CRLF;
+    private static void encodeBulkString(OutputBuffer out, String string) {
+        encodeBulkString(out, string.getBytes(StandardCharsets.UTF_8));
     }
 
-    private static String encodeList(List<?> items) {
-        if (items == null) {
-            return "$-1" + CRLF;
-        }
-        StringBuilder encodedList = new StringBuilder()
-                .append("*")
-                .append(items.size())
-                .append(CRLF);
-        for (Object item : items) {
-            if (item == null) {
-                encodedList.append("$-1").append(CRLF);
-                continue;
-            }
-            encodedList.append(encode(item));
+    public static void encodeBulkString(OutputBuffer out, byte[] bytes) {
+        out.write('$');
+        out.writeLong(bytes.length);
+        out.writeCrlf();
+        out.write(bytes);
+        out.writeCrlf();
+    }
+
+    /**
+     * The digits of {@code value} as a bulk string, for integer-encoded values.
+     */
+    public static void encodeBulkString(OutputBuffer out, long value) {
+        int length = value < 0 ? 2 : 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            length++;
         }
-        return encodedList.toString();
+        out.write('$');
+        out.writeLong(length);
+        out.writeCrlf();
+        out.writeLong(value);
+        out.writeCrlf();
+    }
+
+    public static void encodeArrayHeader(OutputBuffer out, int size) {
+        out.write('*');
+        out.writeLong(size);
+        out.writeCrlf();
     }
 
-    public static String encodeTransaction(List<String> transaction) {
-        StringBuilder encodedTransaction = new StringBuilder();
-        encodedTransaction.append("*").append(transaction.size()).append(CRLF);
-        for (String item : transaction) {
-            encodedTransaction.append(item);
+    private static void encodeList(OutputBuffer out, List<?> items) {
+        encodeArrayHeader(out, items.size());
+        for (Object item : items) {
+            encode(out, item);
         }
-        return encodedTransaction.toString();
     }
 
-    public static String encodeSafeRdb(String base64RdbContent) {
-        try {
-            byte[] rdbBytes = Base64.getDecoder().decode(base64RdbContent);
-            String binaryData = new String(rdbBytes, StandardCharsets.ISO_8859_1);
+    /**
+     * RDB payloads are sent as a bulk string without the trailing CRLF.
+     */
+    public static void encodeRdb(OutputBuffer out, byte[] rdbBytes) {
+        out.write('$');
+        out.writeLong(rdbBytes.length);
+        out.writeCrlf();
+        out.write(rdbBytes);
+    }
 
-            return "$" + rdbBytes.length + CRLF +
-                    binaryData;
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to encode RDB data", e);
+    /**
+     * The command as a standalone byte array, for sending the same bytes to several destinations.
+     */
+    public static byte[] encodeCommand(ParsedCommand command) {
+        List<ByteString> args = command.args();
+        byte[] name = command.name().getBytes(StandardCharsets.UTF_8);
+        StringBuilder header = new StringBuilder();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        header.append('*').append(args.size() + 1).append(CRLF);
+        appendBulkString(bytes, header, name);
+        for (ByteString arg : args) {
+            appendBulkString(bytes, header, arg.bytes());
         }
+        return bytes.toByteArray();
     }
 
-    public static String encodeCommand(RedisCommand redisCommand) {
-        List<String> command = new ArrayList<>();
-        command.add(redisCommand.getName());
-        command.addAll(redisCommand.getArgs());
-        return encodeList(command);
+    private static void appendBulkString(ByteArrayOutputStream bytes, StringBuilder header, byte[] value) {
+        header.append('$').append(value.length).append(CRLF);
+        bytes.writeBytes(header.toString().getBytes(StandardCharsets.US_ASCII));
+        header.setLength(0);
+        bytes.writeBytes(value);
+        bytes.writeBytes(CRLF_BYTES);
+    }
+
+    public static void encodeCommand(OutputBuffer out, ParsedCommand command) {
+        List<ByteString> args = command.args();
+        encodeArrayHeader(out, args.size() + 1);
+        encodeBulkString(out, command.name());
+        for (ByteString arg : args) {
+            encodeBulkString(out, arg.bytes());
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,172 +1,217 @@
 package resp;
 
+import commands.CommandSpec;
+import commands.CommandTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.ByteString;
 import utils.ParsedCommand;
 
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
 
-
-public class RespParser {
+/**
+ * Incremental parser for commands sent as RESP arrays of bulk strings, one per connection. Whatever
+ * has been parsed of an incomplete command is kept between calls, so each byte is looked at once no
+ * matter how the command is split across reads: header lines stay in the buffer until their CRLF has
+ * arrived, and bulk payloads are copied straight into the argument as they come in. Malformed input
+ * stops the parser for good and is reported through {@link #protocolError()}; the commands before it
+ * are still returned.
+ * <p>
+ * Memory follows the bytes that have actually arrived, not the lengths the client announces: a bulk
+ * argument starts small and grows as its payload comes in, and {@link #pendingBytes()} lets the caller
+ * hold a command in progress to the query buffer limit.
+ */
+public final class RespParser {
     public static final byte DOLLAR_BYTE = '$';
     public static final byte ASTERISK_BYTE = '*';
-    public static final byte PLUS_BYTE = '+';
-    public static final byte MINUS_BYTE = '-';
-    public static final byte COLON_BYTE = ':';
-    public static final byte COMMA_BYTE = ',';
-    public static final byte HASH_BYTE = '#';
+    private static final long INVALID_LENGTH = Long.MIN_VALUE;
+    // proto-max-bulk-len: the largest argument a client may announce.
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_MULTIBULK_LENGTH = 1024 * 1024;
+    private static final int INITIAL_BULK_CAPACITY = 64 * 1024;
+    private static final int INITIAL_ARGUMENTS_CAPACITY = 16;
 
     private static final Logger logger = LoggerFactory.getLogger(RespParser.class);
 
-    public static List<Optional<ParsedCommand>> parseCommand(ByteBuffer readBuffer) {
-        List<Optional<ParsedCommand>> parsedCommands = new ArrayList<>();
-        while (readBuffer.hasRemaining()) {
-            readBuffer.mark();
-            try {
-                byte b = readBuffer.get();
-                if (b != ASTERISK_BYTE) {
-                    parsedCommands.add(Optional.empty());
-                    skipUntilCRLF(readBuffer);
-                    continue;
-                }
-                try {
-                    @SuppressWarnings("unchecked")
-                    List<String> input = (List<String>) parseInput(b, readBuffer);
-                    if (input == null || input.isEmpty()) {
-                        parsedCommands.add(Optional.empty());
-                        continue;
-                    }
-                    logger.debug("Parsed command: {}", input);
-                    parsedCommands.add(Optional.of(new ParsedCommand(input.getFirst(), input.subList(1, input.size()))));
-                } catch (IllegalArgumentException e) {
-                    logger.error(e.getMessage());
-                    parsedCommands.add(Optional.empty());
-                }
-            } catch (BufferUnderflowException | IllegalStateException e) {
-                logger.error(e.getMessage());
-                readBuffer.reset();
+    private final List<ParsedCommand> parsedCommands = new ArrayList<>();
+    // The command in progress: arguments still expected, its name and the arguments so far.
+    private int argumentsRemaining = 0;
+    private String name;
+    private List<ByteString> args;
+    // The bulk payload in progress, filled as it arrives and grown up to its announced length.
+    private byte[] bulk;
+    private int bulkLength;
+    private int bulkFilled;
+    // Payload bytes of the command in progress, including the arguments already complete.
+    private long pendingBytes;
+    private String protocolError;
+
+    /**
+     * Parses every command completed by the readable bytes of {@code buffer}, consuming them; a command
+     * still incomplete is remembered and finished by the next call. The returned list is reused by that
+     * next call.
+     */
+    public List<ParsedCommand> parse(ByteBuffer buffer) {
+        parsedCommands.clear();
+        while (protocolError == null) {
+            if (argumentsRemaining == 0 && !parseArrayHeader(buffer)) {
+                break;
+            }
+            if (argumentsRemaining == 0) {
+                continue;
+            }
+            if (bulk == null && !parseBulkHeader(buffer)) {
+                break;
+            }
+            if (bulk == null) {
+                continue;
+            }
+            if (!parseBulkPayload(buffer)) {
                 break;
             }
         }
         return parsedCommands;
     }
 
-    public static Object parseInput(Byte firstByte, ByteBuffer readBuffer) {
-        if (!readBuffer.hasRemaining()) {
-            throw new IllegalStateException("Incomplete RESP data");
-        }
-        return switch (firstByte) {
-            case PLUS_BYTE -> parseSimpleString(readBuffer);
-            case MINUS_BYTE -> parseErrorMessage(readBuffer);
-            case COLON_BYTE -> parseInteger(readBuffer);
-            case ASTERISK_BYTE -> parseList(readBuffer);
-            case DOLLAR_BYTE -> parseBulkString(readBuffer);
-            case HASH_BYTE -> parseBool(readBuffer);
-            case COMMA_BYTE -> parseDouble(readBuffer);
-            default -> throw new IllegalArgumentException("Unknown RESP type: " + (char)firstByte.byteValue());
-        };
+    /**
+     * Bytes held for the command still being received, to be checked against the query buffer limit.
+     */
+    public long pendingBytes() {
+        return pendingBytes;
     }
 
-    private static String readLine(ByteBuffer readBuffer) {
-        StringBuilder sb = new StringBuilder();
-        boolean foundCR = false;
-        while (readBuffer.hasRemaining()) {
-            byte b = readBuffer.get();
-            if (b == '\r') {
-                foundCR = true;
-            } else if (b == '\n' && foundCR) {
-                return sb.toString();
-            } else {
-                if (foundCR) {
-                    sb.append('\r');
-                    foundCR = false;
-                }
-                sb.append((char) b);
-            }
-        }
-        throw new IllegalStateException("Incomplete line");
-    }
-
-    private static String parseErrorMessage(ByteBuffer readBuffer) {
-        return readLine(readBuffer);
+    /**
+     * The malformed input that stopped {@link #parse}, or null if it saw none. The connection is expected
+     * to reply with it and close.
+     */
+    public String protocolError() {
+        return protocolError;
     }
 
-    private static Long parseInteger(ByteBuffer readBuffer) {
-        return Long.parseLong(readLine(readBuffer));
+    // Returns false when the header line has not fully arrived yet.
+    private boolean parseArrayHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = indexOfCrlf(buffer, start);
+        if (end < 0) {
+            return false;
+        }
+        buffer.position(end + 2);
+        if (buffer.get(start) != ASTERISK_BYTE) {
+            fail("expected '*', got '" + (char) buffer.get(start) + "'");
+            return true;
+        }
+        long count = parseLength(buffer, start + 1, end);
+        if (count == INVALID_LENGTH || count > MAX_MULTIBULK_LENGTH) {
+            fail("invalid multibulk length");
+            return true;
+        }
+        // Empty and null arrays carry no command.
+        if (count > 0) {
+            argumentsRemaining = (int) count;
+            name = null;
+            args = new ArrayList<>(Math.min(argumentsRemaining - 1, INITIAL_ARGUMENTS_CAPACITY));
+            pendingBytes = 0;
+        }
+        return true;
     }
 
-    private static Double parseDouble(ByteBuffer readBuffer) {
-        return Double.parseDouble(readLine(readBuffer));
+    private boolean parseBulkHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = indexOfCrlf(buffer, start);
+        if (end < 0) {
+            return false;
+        }
+        buffer.position(end + 2);
+        if (buffer.get(start) != DOLLAR_BYTE) {
+            fail("expected '$', got '" + (char) buffer.get(start) + "'");
+            return true;
+        }
+        long length = parseLength(buffer, start + 1, end);
+        if (length == INVALID_LENGTH || length < 0 || length > MAX_BULK_LENGTH) {
+            fail("invalid bulk length");
+            return true;
+        }
+        bulkLength = (int) length;
+        bulk = new byte[Math.min(bulkLength, INITIAL_BULK_CAPACITY)];
+        bulkFilled = 0;
+        return true;
     }
 
-    private static String parseBulkString(ByteBuffer readBuffer) {
-        int length = Integer.parseInt(readLine(readBuffer));
-        if (length == -1) {
-            return null;
+    // Returns false while the payload or its CRLF is still incomplete.
+    private boolean parseBulkPayload(ByteBuffer buffer) {
+        int n = Math.min(buffer.remaining(), bulkLength - bulkFilled);
+        if (bulkFilled + n > bulk.length) {
+            bulk = Arrays.copyOf(bulk, (int) Math.min(bulkLength, Math.max(2L * bulk.length, bulkFilled + n)));
         }
-        if (length < 0) {
-            throw new IllegalArgumentException("Invalid bulk string length: " + length);
+        buffer.get(buffer.position(), bulk, bulkFilled, n);
+        buffer.position(buffer.position() + n);
+        bulkFilled += n;
+        pendingBytes += n;
+        if (bulkFilled < bulkLength || buffer.remaining() < 2) {
+            return false;
         }
-        if (readBuffer.remaining() < length + 2) {
-            throw new IllegalStateException("Incomplete bulk string");
+        int position = buffer.position();
+        if (buffer.get(position) != '\r' || buffer.get(position + 1) != '\n') {
+            fail("missing CRLF after bulk payload");
+            return true;
         }
-
-        byte[] bytes = new byte[length];
-        readBuffer.get(bytes);
-        String result = new String(bytes);
-
-        if (readBuffer.get() != '\r' || readBuffer.get() != '\n') {
-            throw new IllegalStateException("Missing CRLF");
+        buffer.position(position + 2);
+        if (name == null) {
+            // Known commands share their table name instead of a new string per request.
+            CommandSpec spec = CommandTable.lookup(bulk);
+            name = spec != null ? spec.name() : new String(bulk, StandardCharsets.UTF_8);
+        } else {
+            args.add(new ByteString(bulk));
         }
-        return result;
-    }
-
-    private static String parseSimpleString(ByteBuffer readBuffer) {
-        return readLine(readBuffer);
+        bulk = null;
+        if (--argumentsRemaining == 0) {
+            parsedCommands.add(new ParsedCommand(name, args));
+            name = null;
+            args = null;
+            pendingBytes = 0;
+        }
+        return true;
     }
 
-    private static Boolean parseBool(ByteBuffer readBuffer) {
-        String value = readLine(readBuffer);
-        if ("t".equals(value)) return true;
-        if ("f".equals(value)) return false;
-        throw new IllegalArgumentException("Invalid boolean value: " + value);
+    private void fail(String message) {
+        protocolError = "Protocol error: " + message;
+        logger.debug(protocolError);
+        argumentsRemaining = 0;
+        name = null;
+        args = null;
+        bulk = null;
+        pendingBytes = 0;
     }
 
-    private static List<?> parseList(ByteBuffer readBuffer) {
-        int size = Integer.parseInt(readLine(readBuffer));
-        if (size == -1) {
-            return null;
-        }
-        if (size < 0) {
-            throw new IllegalArgumentException("Invalid array length: " + size);
-        }
-
-        List<Object> list = new ArrayList<>(size);
-        for (int i = 0; i < size; i++) {
-            if (!readBuffer.hasRemaining()) {
-                throw new IllegalStateException("Incomplete array");
+    private static int indexOfCrlf(ByteBuffer buffer, int from) {
+        int limit = buffer.limit() - 1;
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
             }
-            list.add(parseInput(readBuffer.get(), readBuffer));
         }
-        return list;
+        return -1;
     }
 
-    private static void skipUntilCRLF(ByteBuffer readBuffer) {
-        boolean foundCR = false;
-        while (readBuffer.hasRemaining()) {
-            byte b = readBuffer.get();
-            if (b == '\r') {
-                foundCR = true;
-            } else if (b == '\n' && foundCR) {
-                return;
-            } else {
-                foundCR = false;
+    // Parses the decimal length in [from, to), which may be -1 for a null value.
+    private static long parseLength(ByteBuffer buffer, int from, int to) {
+        boolean negative = from < to && buffer.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 10) {
+            return INVALID_LENGTH;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_LENGTH;
             }
+            value = value * 10 + digit;
         }
-        throw new IllegalStateException("Incomplete line while skipping");
+        return negative ? -value : value;
     }
 }
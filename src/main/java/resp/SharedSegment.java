@@ -0,0 +1,79 @@
+package resp;
+
+import utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled buffer that several output buffers send from at once, such as the replication stream
+ * every replica receives. The writer appends and holds one reference; each output buffer that links
+ * a range of it holds another, and the buffer goes back to the pool when the last one is released.
+ */
+public final class SharedSegment {
+    private final BufferPool bufferPool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final Runnable onFree;
+
+    public SharedSegment(BufferPool bufferPool, int capacity) {
+        this(bufferPool, capacity, null);
+    }
+
+    /**
+     * {@code onFree} runs on whichever thread drops the last reference.
+     */
+    public SharedSegment(BufferPool bufferPool, int capacity, Runnable onFree) {
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(capacity);
+        this.onFree = onFree;
+    }
+
+    /**
+     * Appends as much of {@code bytes} as fits and returns how many bytes were taken. Bytes handed
+     * out with {@link #view} are never written again.
+     */
+    public int append(byte[] bytes, int offset, int length) {
+        int n = Math.min(length, buffer.remaining());
+        buffer.put(bytes, offset, n);
+        return n;
+    }
+
+    public int append(ByteBuffer src) {
+        int n = Math.min(src.remaining(), buffer.remaining());
+        buffer.put(buffer.position(), src, src.position(), n);
+        buffer.position(buffer.position() + n);
+        src.position(src.position() + n);
+        return n;
+    }
+
+    public int used() {
+        return buffer.position();
+    }
+
+    public boolean isFull() {
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Read-only view of {@code [from, to)}, positioned at its end like the chunks of an {@link OutputBuffer}.
+     */
+    ByteBuffer view(int from, int to) {
+        ByteBuffer view = buffer.slice(from, to - from).asReadOnlyBuffer();
+        view.position(to - from);
+        return view;
+    }
+
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            bufferPool.release(buffer);
+            if (onFree != null) {
+                onFree.run();
+            }
+        }
+    }
+}
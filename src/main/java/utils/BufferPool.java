@@ -0,0 +1,85 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of direct buffers, bucketed by power-of-two multiples of the base size.
+ * Idle connections hand their buffers back so that only connections with data in
+ * flight hold memory. Buffers above the largest pooled class are left to the GC.
+ */
+public final class BufferPool {
+    private static final int MAX_POOLED_CLASSES = 11;
+    private static final long MAX_RETAINED_BYTES_PER_CLASS = 16L * 1024 * 1024;
+
+    private final int baseSize;
+    private final List<Queue<ByteBuffer>> freeLists;
+    private final AtomicInteger[] retained;
+    private final int[] maxRetained;
+
+    public BufferPool(int baseSize) {
+        if (Integer.bitCount(baseSize) != 1) {
+            throw new IllegalArgumentException("Base buffer size must be a power of two: " + baseSize);
+        }
+        this.baseSize = baseSize;
+        this.freeLists = new ArrayList<>(MAX_POOLED_CLASSES);
+        this.retained = new AtomicInteger[MAX_POOLED_CLASSES];
+        this.maxRetained = new int[MAX_POOLED_CLASSES];
+        for (int i = 0; i < MAX_POOLED_CLASSES; i++) {
+            freeLists.add(new ConcurrentLinkedQueue<>());
+            retained[i] = new AtomicInteger();
+            maxRetained[i] = (int) Math.max(1, MAX_RETAINED_BYTES_PER_CLASS / ((long) baseSize << i));
+        }
+    }
+
+    public int baseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least {@code minCapacity}, rounded up to the next class.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass < MAX_POOLED_CLASSES) {
+            ByteBuffer buffer = freeLists.get(sizeClass).poll();
+            if (buffer != null) {
+                retained[sizeClass].decrementAndGet();
+                return buffer.clear();
+            }
+        }
+        return ByteBuffer.allocateDirect(capacityOf(sizeClass));
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass >= MAX_POOLED_CLASSES || capacityOf(sizeClass) != buffer.capacity()) {
+            return;
+        }
+        if (retained[sizeClass].incrementAndGet() > maxRetained[sizeClass]) {
+            retained[sizeClass].decrementAndGet();
+            return;
+        }
+        freeLists.get(sizeClass).offer(buffer);
+    }
+
+    private int sizeClass(int capacity) {
+        if (capacity <= baseSize) {
+            return 0;
+        }
+        int units = (capacity + baseSize - 1) / baseSize;
+        return 32 - Integer.numberOfLeadingZeros(units - 1);
+    }
+
+    private int capacityOf(int sizeClass) {
+        long capacity = (long) baseSize << sizeClass;
+        return (int) Math.min(capacity, Integer.MAX_VALUE - 8);
+    }
+}
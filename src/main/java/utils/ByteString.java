@@ -0,0 +1,156 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable, binary-safe byte sequence used for keys and command arguments. The hash is computed
+ * once and cached, so repeated lookups of the same key do not rescan its bytes.
+ */
+public final class ByteString implements Comparable<ByteString> {
+    private final byte[] bytes;
+    private int hash;
+
+    /**
+     * Wraps {@code bytes} without copying; the array must not be modified afterwards.
+     */
+    public ByteString(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public static ByteString of(String value) {
+        return new ByteString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public byte byteAt(int index) {
+        return bytes[index];
+    }
+
+    /**
+     * Compares against a 7-bit keyword such as a command option, ignoring ASCII case.
+     */
+    public boolean equalsIgnoreCase(String keyword) {
+        if (keyword.length() != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            int a = bytes[i];
+            int b = keyword.charAt(i);
+            if (a != b && toLowerAscii(a) != toLowerAscii(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long parseLong() {
+        return parseLong(bytes);
+    }
+
+    /**
+     * Parses a base-10 long without going through a String. Only the canonical form is accepted, as Redis
+     * does: no '+' sign, no leading zeros and no "-0".
+     */
+    public static long parseLong(byte[] bytes) {
+        int length = bytes.length;
+        if (length == 0 || length > 20 || !isCanonicalInteger(bytes)) {
+            throw new NumberFormatException("value is not an integer");
+        }
+        boolean negative = bytes[0] == '-';
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            int digit = bytes[i] - '0';
+            if (result < (limit + digit) / 10) {
+                throw new NumberFormatException("value is not an integer");
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ByteString other)) {
+            return false;
+        }
+        int h = hash;
+        int otherHash = other.hash;
+        if (h != 0 && otherHash != 0 && h != otherHash) {
+            return false;
+        }
+        return Arrays.equals(bytes, other.bytes);
+    }
+
+    /**
+     * Whether {@code bytes} spell a long exactly as it prints: no sign but '-', no leading zeros. Does not
+     * check the range.
+     */
+    public static boolean isCanonicalInteger(byte[] bytes) {
+        int start = bytes.length > 0 && bytes[0] == '-' ? 1 : 0;
+        if (start == bytes.length || (bytes[start] == '0' && bytes.length > start + 1) || (start == 1 && bytes[1] == '0')) {
+            return false;
+        }
+        for (int i = start; i < bytes.length; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal or hexadecimal floating point number; unlike {@link Double#parseDouble}, surrounding
+     * whitespace and type suffixes such as "1.5d" are rejected.
+     */
+    public static double parseDouble(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new NumberFormatException("value is not a valid float");
+        }
+        for (byte b : bytes) {
+            if (b <= ' ') {
+                throw new NumberFormatException("value is not a valid float");
+            }
+        }
+        int last = toLowerAscii(bytes[bytes.length - 1]);
+        if (last == 'd' || last == 'f') {
+            throw new NumberFormatException("value is not a valid float");
+        }
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && bytes.length > 0) {
+            h = Arrays.hashCode(bytes);
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public int compareTo(ByteString other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int toLowerAscii(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
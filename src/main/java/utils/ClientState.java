@@ -1,39 +1,97 @@
 package utils;
 
-import commands.RedisCommand;
+import core.EventLoop;
+import resp.OutputBuffer;
+import resp.RespParser;
 
 import java.nio.ByteBuffer;
-import java.util.Deque;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 
 public final class ClientState {
-    private final ByteBuffer readBuffer;
-    private final ByteBuffer writeBuffer;
-    private final Deque<String> responseQueue;
-    private final Queue<RedisCommand> transactionQueue;
+    private final BufferPool bufferPool;
+    private ByteBuffer readBuffer;
+    private final OutputBuffer outputBuffer;
+    private final RespParser parser = new RespParser();
+    private final Queue<ParsedCommand> transactionQueue;
     private boolean transactionState = false;
     private ClientType clientType = ClientType.CLIENT;
+    private EventLoop owner;
+    private SelectionKey selectionKey;
+    // Set while a command such as WAIT holds the client; commands behind it wait here.
+    private boolean blocked = false;
+    private final List<ParsedCommand> deferredCommands = new ArrayList<>();
+    private int replicaListeningPort = 0;
+    private boolean writeScheduled = false;
+    // Set once a protocol error has been answered: the connection closes when its output is written.
+    private boolean closeAfterReply = false;
 
-    public ClientState(ByteBuffer readBuffer, ByteBuffer writeBuffer, Deque<String> responseQueue, Queue<RedisCommand> transactionQueue) {
-        this.readBuffer = readBuffer;
-        this.writeBuffer = writeBuffer;
-        this.responseQueue = responseQueue;
+    public ClientState(BufferPool bufferPool, Queue<ParsedCommand> transactionQueue) {
+        this.bufferPool = bufferPool;
+        this.outputBuffer = new OutputBuffer(bufferPool);
         this.transactionQueue = transactionQueue;
     }
 
     public ByteBuffer readBuffer() {
+        if (readBuffer == null) {
+            readBuffer = bufferPool.acquire(bufferPool.baseSize());
+        }
         return readBuffer;
     }
 
-    public ByteBuffer writeBuffer() {
-        return writeBuffer;
+    /**
+     * Moves the pending bytes into a buffer twice the size. Returns false once the current
+     * buffer has already reached {@code limit}.
+     */
+    public boolean growReadBuffer(long limit) {
+        ByteBuffer current = readBuffer();
+        if (current.capacity() >= limit) {
+            return false;
+        }
+        ByteBuffer grown = bufferPool.acquire((int) Math.min(2L * current.capacity(), limit));
+        current.flip();
+        grown.put(current);
+        bufferPool.release(current);
+        readBuffer = grown;
+        return true;
     }
 
-    public Deque<String> responseQueue() {
-        return responseQueue;
+    /**
+     * Whether the command still being received holds more than {@code limit} bytes. The master's
+     * stream is exempt, as it is from the read buffer limit in Redis.
+     */
+    public boolean exceedsQueryBufferLimit(long limit) {
+        return clientType != ClientType.MASTER && parser.pendingBytes() > limit;
     }
 
-    public Queue<RedisCommand> transactionQueue() {
+    public boolean hasBufferedInput() {
+        return readBuffer != null && readBuffer.position() > 0;
+    }
+
+    public void releaseReadBufferIfIdle() {
+        if (readBuffer != null && readBuffer.position() == 0) {
+            bufferPool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    public void releaseBuffers() {
+        bufferPool.release(readBuffer);
+        readBuffer = null;
+        outputBuffer.clear();
+    }
+
+    public RespParser parser() {
+        return parser;
+    }
+
+    public OutputBuffer outputBuffer() {
+        return outputBuffer;
+    }
+
+    public Queue<ParsedCommand> transactionQueue() {
         return transactionQueue;
     }
 
@@ -58,4 +116,80 @@ public final class ClientState {
         return clientType;
     }
 
+    public void setOwner(EventLoop owner) {
+        this.owner = owner;
+    }
+
+    public EventLoop getOwner() {
+        return owner;
+    }
+
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    /**
+     * True once the owner loop has closed the connection; only meaningful on that loop.
+     */
+    public boolean isClosed() {
+        return selectionKey != null && !selectionKey.isValid();
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public void block() {
+        this.blocked = true;
+    }
+
+    public void unblock() {
+        this.blocked = false;
+    }
+
+    /**
+     * Keeps commands parsed while the client is blocked, to run in order once it is released.
+     */
+    public void defer(List<ParsedCommand> commands) {
+        deferredCommands.addAll(commands);
+    }
+
+    public boolean hasDeferredCommands() {
+        return !deferredCommands.isEmpty();
+    }
+
+    public List<ParsedCommand> takeDeferred() {
+        List<ParsedCommand> commands = List.copyOf(deferredCommands);
+        deferredCommands.clear();
+        return commands;
+    }
+
+    public boolean isWriteScheduled() {
+        return writeScheduled;
+    }
+
+    public void setWriteScheduled(boolean writeScheduled) {
+        this.writeScheduled = writeScheduled;
+    }
+
+    public boolean isCloseAfterReply() {
+        return closeAfterReply;
+    }
+
+    public void closeAfterReply() {
+        this.closeAfterReply = true;
+    }
+
+    public void setReplicaListeningPort(int replicaListeningPort) {
+        this.replicaListeningPort = replicaListeningPort;
+    }
+
+    public int getReplicaListeningPort() {
+        return replicaListeningPort;
+    }
+
 }
@@ -0,0 +1,33 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Millisecond clock for key expiry. Epoch time is anchored once at startup and advanced with
+ * {@link System#nanoTime()}, so wall-clock adjustments and time-zone changes never move TTLs.
+ * Event loops refresh the cached value once per iteration and commands read it with {@link #millis()}.
+ * The value never moves backwards, but with several loops refreshing it, it can advance between two
+ * reads of the same batch; code that needs one instant reads it once.
+ */
+public final class Clock {
+    private static final long EPOCH_MILLIS_AT_START = System.currentTimeMillis();
+    private static final long NANOS_AT_START = System.nanoTime();
+
+    private static final AtomicLong cachedMillis = new AtomicLong(EPOCH_MILLIS_AT_START);
+
+    private Clock() {
+    }
+
+    public static long millis() {
+        return cachedMillis.get();
+    }
+
+    /**
+     * Reads the monotonic source and publishes it as the cached time, unless another thread has
+     * already published a later one.
+     */
+    public static long update() {
+        long now = EPOCH_MILLIS_AT_START + (System.nanoTime() - NANOS_AT_START) / 1_000_000L;
+        return cachedMillis.accumulateAndGet(now, Math::max);
+    }
+}
@@ -0,0 +1,104 @@
+package utils;
+
+/**
+ * Glob-style matching as KEYS and SCAN MATCH use it, byte for byte and without building a regex:
+ * {@code *} matches any run of bytes, {@code ?} any single byte, {@code [abc]}, {@code [a-z]} and
+ * {@code [^a]} a byte in or out of a class, and {@code \} escapes the next byte. A {@code [} without
+ * its {@code ]} extends to the end of the pattern.
+ * <p>
+ * Each {@code *} only ever resumes from the most recent one, so matching takes at most
+ * pattern length times string length steps, whatever the pattern.
+ */
+public final class GlobPattern {
+
+    private GlobPattern() {
+    }
+
+    public static boolean matches(byte[] pattern, byte[] string) {
+        int p = 0;
+        int s = 0;
+        // Where to resume after the last '*': the pattern after it and the next string byte to give it.
+        int starPattern = -1;
+        int starString = 0;
+        while (s < string.length) {
+            if (p < pattern.length && pattern[p] == '*') {
+                while (p < pattern.length && pattern[p] == '*') {
+                    p++;
+                }
+                if (p == pattern.length) {
+                    return true;
+                }
+                starPattern = p;
+                starString = s;
+                continue;
+            }
+            int next = p < pattern.length ? matchOne(pattern, p, string[s]) : -1;
+            if (next >= 0) {
+                p = next;
+                s++;
+            } else if (starPattern >= 0) {
+                p = starPattern;
+                s = ++starString;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length && pattern[p] == '*') {
+            p++;
+        }
+        return p == pattern.length;
+    }
+
+    /**
+     * Whether the pattern matches everything, so callers can skip matching altogether.
+     */
+    public static boolean matchesAll(byte[] pattern) {
+        for (byte b : pattern) {
+            if (b != '*') {
+                return false;
+            }
+        }
+        return pattern.length > 0;
+    }
+
+    // Returns where the pattern continues if the token at p matches c, or -1.
+    private static int matchOne(byte[] pattern, int p, byte c) {
+        return switch (pattern[p]) {
+            case '?' -> p + 1;
+            case '[' -> matchClass(pattern, p + 1, c & 0xFF);
+            case '\\' -> {
+                if (p + 1 == pattern.length) {
+                    yield c == '\\' ? p + 1 : -1;
+                }
+                yield pattern[p + 1] == c ? p + 2 : -1;
+            }
+            default -> pattern[p] == c ? p + 1 : -1;
+        };
+    }
+
+    private static int matchClass(byte[] pattern, int p, int c) {
+        boolean negate = p < pattern.length && pattern[p] == '^';
+        if (negate) {
+            p++;
+        }
+        boolean matched = false;
+        while (p < pattern.length && pattern[p] != ']') {
+            if (pattern[p] == '\\' && p + 1 < pattern.length) {
+                matched |= (pattern[p + 1] & 0xFF) == c;
+                p += 2;
+            } else if (p + 2 < pattern.length && pattern[p + 1] == '-' && pattern[p + 2] != ']') {
+                int low = pattern[p] & 0xFF;
+                int high = pattern[p + 2] & 0xFF;
+                matched |= c >= Math.min(low, high) && c <= Math.max(low, high);
+                p += 3;
+            } else {
+                matched |= (pattern[p] & 0xFF) == c;
+                p++;
+            }
+        }
+        if (matched == negate) {
+            return -1;
+        }
+        return p < pattern.length ? p + 1 : p;
+    }
+}
@@ -0,0 +1,48 @@
+package utils;
+
+/**
+ * LZF decompression as used for compressed RDB strings.
+ */
+public final class Lzf {
+
+    private Lzf() {
+    }
+
+    /**
+     * Decompresses {@code input} into {@code output}, which must be exactly the uncompressed size.
+     */
+    public static void decompress(byte[] input, byte[] output) {
+        int in = 0;
+        int out = 0;
+        while (in < input.length) {
+            int ctrl = input[in++] & 0xFF;
+            if (ctrl < 32) {
+                int length = ctrl + 1;
+                if (in + length > input.length || out + length > output.length) {
+                    throw new IllegalArgumentException("Corrupt LZF literal run");
+                }
+                System.arraycopy(input, in, output, out, length);
+                in += length;
+                out += length;
+                continue;
+            }
+            int length = ctrl >> 5;
+            int reference = out - ((ctrl & 0x1F) << 8) - 1;
+            if (length == 7) {
+                length += input[in++] & 0xFF;
+            }
+            reference -= input[in++] & 0xFF;
+            length += 2;
+            if (reference < 0 || out + length > output.length) {
+                throw new IllegalArgumentException("Corrupt LZF back reference");
+            }
+            // Back references may overlap the bytes they produce, so copy one byte at a time.
+            for (int i = 0; i < length; i++) {
+                output[out++] = output[reference++];
+            }
+        }
+        if (out != output.length) {
+            throw new IllegalArgumentException("LZF data decompressed to " + out + " bytes, expected " + output.length);
+        }
+    }
+}
@@ -1,5 +1,24 @@
 package utils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
-public record ParsedCommand(String name, List<String> args) {}
+public record ParsedCommand(String name, List<ByteString> args) {
+
+    /**
+     * Size of the command encoded as an array of bulk strings, the form masters and the AOF use.
+     */
+    public long encodedLength() {
+        long length = headerLength(args.size() + 1);
+        int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+        length += headerLength(nameLength) + nameLength + 2;
+        for (ByteString arg : args) {
+            length += headerLength(arg.length()) + arg.length() + 2;
+        }
+        return length;
+    }
+
+    private static int headerLength(long count) {
+        return 1 + Long.toString(count).length() + 2;
+    }
+}